@@ -12,13 +12,14 @@ import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
 import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.redis.Capabilities;
 import lucee.extension.io.cache.redis.Redis;
 import lucee.loader.util.Util;
 
 public class RedisFactory extends BasePooledObjectFactory<Redis> {
 	private final ClassLoader cl;
-	private final String host;
-	private final int port;
+	private volatile String host;
+	private volatile int port;
 	private final String username;
 	private final String password;
 	private final int databaseIndex;
@@ -27,10 +28,22 @@ public class RedisFactory extends BasePooledObjectFactory<Redis> {
 	private final long liveTimeout;
 	private final Log log;
 	private final boolean ssl;
+	private final String clientName;
+	// of the server the last connection was created for
+	private volatile Capabilities capabilities;
 
 	public RedisFactory(ClassLoader cl, String host, int port, String username, String password, boolean ssl, int socketTimeout, long idleTimeout, long liveTimeout,
 			int databaseIndex, Log log) {
+		this(cl, host, port, username, password, ssl, socketTimeout, idleTimeout, liveTimeout, databaseIndex, null, log);
+	}
+
+	/**
+	 * @param clientName name set for every connection (CLIENT SETNAME), null for none
+	 */
+	public RedisFactory(ClassLoader cl, String host, int port, String username, String password, boolean ssl, int socketTimeout, long idleTimeout, long liveTimeout,
+			int databaseIndex, String clientName, Log log) {
 		this.cl = cl;
+		this.clientName = Util.isEmpty(clientName, true) ? null : clientName.trim();
 		this.username = Util.isEmpty(username) ? null : username;
 		this.password = Util.isEmpty(password) ? null : password;
 		this.host = host;
@@ -46,6 +59,8 @@ public class RedisFactory extends BasePooledObjectFactory<Redis> {
 
 	@Override
 	public Redis create() throws IOException {
+		String host = this.host;
+		int port = this.port;
 		if (log != null) log.debug("redis-cache", "create connection to " + host + ":" + port);
 		Socket socket = getSocket();
 
@@ -58,17 +73,53 @@ public class RedisFactory extends BasePooledObjectFactory<Redis> {
 			throw new IOException("The Redis client was not able to create a connection to [" + host + ":" + port + "]", e);
 		}
 		Redis redis = new Redis(cl, socket);
-
-		if (password != null) {
-			if (username != null) redis.call("AUTH", username, password);
-			else redis.call("AUTH", password);
+		try {
+			Capabilities caps = Capabilities.handshake(redis, username, password, databaseIndex, clientName);
+			if (log != null && capabilities == null) log.debug("redis-cache", "server " + host + ":" + port + " runs version " + caps);
+			capabilities = caps;
 		}
-		if (databaseIndex > -1) {
-			redis.call("SELECT", String.valueOf(databaseIndex));
+		catch (IOException e) {
+			socket.close();
+			throw e;
 		}
 		return redis;
 	}
 
+	/**
+	 * @return the version and features of the server, null as long as no connection was created
+	 */
+	public Capabilities getCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * creates a factory for another node of the same deployment (cluster node, replica, ...), with the
+	 * same credentials and timeouts.
+	 */
+	public RedisFactory forNode(String host, int port) {
+		return new RedisFactory(cl, host, port, username, password, ssl, socketTimeout, idleTimeout, liveTimeout, databaseIndex, clientName, log);
+	}
+
+	/**
+	 * points the factory to another server, connections created before are not affected.
+	 */
+	public void setAddress(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public boolean isSsl() {
+		return ssl;
+	}
+
 	private Socket getSocket() throws IOException {
 		if (ssl) {
 
@@ -81,6 +132,29 @@ public class RedisFactory extends BasePooledObjectFactory<Redis> {
 		}
 	}
 
+	/**
+	 * @return true if the connection reached the live or the idle timeout and should not be used anymore
+	 */
+	public boolean expired(Redis redis) {
+		long now = System.currentTimeMillis();
+		if (liveTimeout > 0 && redis.created + liveTimeout < now) {
+			if (log != null) log.debug("redis-cache", "validateObject(reached live timeout:" + liveTimeout + ") " + host + ":" + port);
+			return true;
+		}
+		if (idleTimeout > 0 && redis.lastUsed + idleTimeout < now) {
+			if (log != null) log.debug("redis-cache", "validateObject(reached idle timeout:" + idleTimeout + ") " + host + ":" + port);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the timeout (ms) to connect and to wait for a reply, 0 or less for none
+	 */
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
 	/**
 	 * Use the default PooledObject implementation.
 	 */
@@ -93,15 +167,7 @@ public class RedisFactory extends BasePooledObjectFactory<Redis> {
 	public boolean validateObject(PooledObject<Redis> p) {
 		Redis redis = p.getObject();
 		// check timeout
-		long now = System.currentTimeMillis();
-		if (liveTimeout > 0 && redis.created + liveTimeout < now) {
-			if (log != null) log.debug("redis-cache", "validateObject(reached live timeout:" + liveTimeout + ") " + host + ":" + port);
-			return false;
-		}
-		if (idleTimeout > 0 && redis.lastUsed + idleTimeout < now) {
-			if (log != null) log.debug("redis-cache", "validateObject(reached idle timeout:" + idleTimeout + ") " + host + ":" + port);
-			return false;
-		}
+		if (expired(redis)) return false;
 
 		// check socket
 		Socket socket = redis.getSocket();
@@ -1,5 +1,9 @@
 package lucee.extension.io.cache.pool;
 
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.commons.pool2.PooledObjectFactory;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 
@@ -9,6 +13,7 @@ public class RedisPool extends GenericObjectPool<Redis> {
 
 	private RedisPoolListener listener;
 	private RedisPoolConfig config;
+	private final Set<Redis> borrowed = ConcurrentHashMap.newKeySet();
 
 	public RedisPool(PooledObjectFactory<Redis> factory, RedisPoolConfig config, RedisPoolListener listener) {
 		super(factory, config);
@@ -30,7 +35,9 @@ public class RedisPool extends GenericObjectPool<Redis> {
 	@Override
 	public Redis borrowObject(long borrowMaxWaitMillis) throws Exception {
 		if (listener != null) listener.doBorrowObject(this, borrowMaxWaitMillis);
-		return super.borrowObject(borrowMaxWaitMillis);
+		Redis redis = super.borrowObject(borrowMaxWaitMillis);
+		if (redis != null) borrowed.add(redis);
+		return redis;
 	}
 
 	@Override
@@ -53,10 +60,41 @@ public class RedisPool extends GenericObjectPool<Redis> {
 
 	@Override
 	public void returnObject(Redis redis) {
+		borrowed.remove(redis);
 		if (listener != null) listener.returnObject(this, redis);
 		super.returnObject(redis);
 	}
 
+	@Override
+	public void invalidateObject(Redis redis) throws Exception {
+		borrowed.remove(redis);
+		super.invalidateObject(redis);
+	}
+
+	/**
+	 * @return true if the connection was borrowed from this pool and not returned yet
+	 */
+	public boolean owns(Redis redis) {
+		return borrowed.contains(redis);
+	}
+
+	/**
+	 * closes the pool together with the connections currently borrowed, callers waiting for a reply on
+	 * one of them fail right away instead of running into the socket timeout.
+	 */
+	public void abort() {
+		close();
+		for (Redis redis: borrowed) {
+			Socket socket = redis.getSocket();
+			try {
+				if (socket != null) socket.close();
+			}
+			catch (Exception e) {
+				// the caller gets the error when it uses the connection
+			}
+		}
+	}
+
 	public int getMaxLowPriority() {
 		return config.getMaxLowPriority();
 	}
@@ -0,0 +1,28 @@
+package lucee.extension.io.cache.redis;
+
+import java.util.Arrays;
+
+/**
+ * byte[] keys with value semantics, so they can be used as keys of a map.
+ */
+final class ByteArrayWrapper {
+	final byte[] data;
+	private final int hash;
+
+	ByteArrayWrapper(byte[] data) {
+		this.data = data;
+		this.hash = Arrays.hashCode(data);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (!(o instanceof ByteArrayWrapper)) return false;
+		return Arrays.equals(data, ((ByteArrayWrapper) o).data);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+}
@@ -11,6 +11,7 @@ import lucee.commons.io.cache.Cache;
 import lucee.commons.io.cache.CacheEntry;
 import lucee.commons.io.cache.CacheEntryFilter;
 import lucee.commons.io.cache.exp.CacheException;
+import lucee.commons.io.log.Log;
 
 /**
  * this class handles all action that oare independent of the cache type used
@@ -102,6 +103,17 @@ public abstract class CacheSupport implements Cache {
 	public Object getValue(String key, Object defaultValue) {
 		CacheEntry entry = getCacheEntry(key, null);
 		if (entry == null) return defaultValue;
+		// entries read from Redis decode their value when it is read
+		if (entry instanceof RedisCacheEntry) {
+			try {
+				return ((RedisCacheEntry) entry).decode();
+			}
+			catch (IOException e) {
+				Log log = getLog();
+				if (log != null) log.error("redis-cache", e);
+				return defaultValue;
+			}
+		}
 		return entry.getValue();
 	}
 
@@ -129,6 +141,11 @@ public abstract class CacheSupport implements Cache {
 
 	public abstract CacheEntry getQuiet(String key, CacheEntry defaultValue);
 
+	/**
+	 * @return the log of the cache, null if none is defined
+	 */
+	abstract Log getLog();
+
 	// CachePro interface @Override
 	public abstract int clear() throws IOException;
 }
\ No newline at end of file
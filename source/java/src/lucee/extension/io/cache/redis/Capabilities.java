@@ -0,0 +1,177 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.util.List;
+
+import lucee.extension.io.cache.redis.Redis.Parser.ServerError;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Version and features of the server a connection was created for, so the cache can use the best
+ * form of a command the server supports and falls back on older servers.
+ */
+public class Capabilities {
+
+	/**
+	 * used as long as the version is not known, only what every server in use today supports
+	 */
+	public static final Capabilities UNKNOWN = new Capabilities(null, 2, 6, 12);
+
+	private final String version;
+	private final int major;
+	private final int minor;
+	private final int patch;
+
+	private Capabilities(String version, int major, int minor, int patch) {
+		this.version = version;
+		this.major = major;
+		this.minor = minor;
+		this.patch = patch;
+	}
+
+	/**
+	 * Authenticates the connection, selects the database, names the client and reads the version of the
+	 * server, all written in one go, so a new connection costs a single round trip. HELLO is only known
+	 * since Redis 6, older servers answer it with an error and are asked with INFO for their version.
+	 *
+	 * @param username null for none
+	 * @param password null for none
+	 * @param databaseIndex -1 for the default database
+	 * @param clientName null for none
+	 * @throws IOException if the authentication or the selection of the database fails
+	 */
+	public static Capabilities handshake(Redis redis, String username, String password, int databaseIndex, String clientName) throws IOException {
+		int auth = -1, hello, select = -1, setname = -1, count = 0;
+		if (password != null) {
+			if (username != null) redis.write("AUTH", username, password);
+			else redis.write("AUTH", password);
+			auth = count++;
+		}
+		// protocol 2, HELLO also answers with the version
+		redis.write("HELLO", "2");
+		hello = count++;
+		if (databaseIndex > -1) {
+			redis.write("SELECT", String.valueOf(databaseIndex));
+			select = count++;
+		}
+		if (clientName != null) {
+			redis.write("CLIENT", "SETNAME", clientName);
+			setname = count++;
+		}
+		redis.flush();
+
+		IOException err = null;
+		Object helloReply = null;
+		for (int i = 0; i < count; i++) {
+			try {
+				Object reply = redis.read();
+				if (i == hello) helloReply = reply;
+			}
+			catch (ServerError e) {
+				// read all replies before throwing, the errors of HELLO and CLIENT SETNAME are not fatal
+				if ((i == auth || i == select) && err == null) err = e;
+				if (i == setname && err == null && !(e.getMessage() + "").startsWith("ERR unknown")) err = e;
+			}
+		}
+		if (err != null) throw err;
+
+		String version = helloReply instanceof List ? version((List<Object>) helloReply) : null;
+		if (version == null) {
+			try {
+				version = infoVersion(redis.call("INFO", "server"));
+			}
+			catch (ServerError e) {
+				// INFO can be renamed or disabled
+			}
+		}
+		return parse(version);
+	}
+
+	/**
+	 * @return the value of "version" of the reply to HELLO
+	 */
+	private static String version(List<Object> reply) {
+		for (int i = 0; i + 1 < reply.size(); i += 2) {
+			if ("version".equals(str(reply.get(i)))) return str(reply.get(i + 1));
+		}
+		return null;
+	}
+
+	private static String infoVersion(Object reply) {
+		String info = str(reply);
+		if (info == null) return null;
+		String marker = "redis_version:";
+		int begin = info.indexOf(marker);
+		if (begin == -1) return null;
+		begin += marker.length();
+		int end = info.indexOf('\r', begin);
+		if (end == -1) end = info.indexOf('\n', begin);
+		return info.substring(begin, end == -1 ? info.length() : end).trim();
+	}
+
+	private static String str(Object o) {
+		if (o instanceof byte[]) return new String((byte[]) o, Coder.UTF8);
+		return o == null ? null : o.toString();
+	}
+
+	static Capabilities parse(String version) {
+		if (version == null) return UNKNOWN;
+		int[] parts = new int[3];
+		String[] arr = version.split("\\.");
+		try {
+			for (int i = 0; i < parts.length && i < arr.length; i++) {
+				parts[i] = Integer.parseInt(arr[i].replaceAll("[^0-9].*$", ""));
+			}
+		}
+		catch (NumberFormatException e) {
+			return UNKNOWN;
+		}
+		return new Capabilities(version, parts[0], parts[1], parts[2]);
+	}
+
+	private boolean atLeast(int major, int minor, int patch) {
+		if (this.major != major) return this.major > major;
+		if (this.minor != minor) return this.minor > minor;
+		return this.patch >= patch;
+	}
+
+	/**
+	 * @return true if this server is older than the other one
+	 */
+	public boolean olderThan(Capabilities other) {
+		return !atLeast(other.major, other.minor, other.patch);
+	}
+
+	/**
+	 * @return the version reported by the server, null if it is not known
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * SET key value EX seconds / PX milliseconds (2.6.12)
+	 */
+	public boolean setEx() {
+		return atLeast(2, 6, 12);
+	}
+
+	/**
+	 * UNLINK, DEL that frees the memory in the background (4.0)
+	 */
+	public boolean unlink() {
+		return atLeast(4, 0, 0);
+	}
+
+	/**
+	 * MEMORY USAGE (4.0)
+	 */
+	public boolean memoryUsage() {
+		return atLeast(4, 0, 0);
+	}
+
+	@Override
+	public String toString() {
+		return version == null ? "unknown" : version;
+	}
+}
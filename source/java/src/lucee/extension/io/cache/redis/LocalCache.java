@@ -0,0 +1,412 @@
+package lucee.extension.io.cache.redis;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in memory tier in front of Redis, holding entries in their serialized form.
+ * <p>
+ * The size is limited by the number of entries and/or by the summed up size of the serialized
+ * values. Eviction follows W-TinyLFU: new entries go to a small LRU window, when they leave the window
+ * they only get into the main space (a segmented LRU) if they were requested more often than the
+ * entry that would have to make room for them. Frequencies are estimated with a count-min sketch
+ * that halves all counters from time to time, so past popularity fades. Every entry has its own
+ * expiration, taken from the TTL of the put or the PTTL Redis reported when it was loaded.
+ * <p>
+ * Reads do not lock, they are recorded in a lossy buffer that is applied to the eviction policy
+ * whenever the lock is free.
+ */
+final class LocalCache {
+
+	private static final int STRIPES = 1024;
+	private static final int READ_BUFFER = 128;
+	private static final int READ_BUFFER_MASK = READ_BUFFER - 1;
+
+	private static final double WINDOW = 0.01d;
+	private static final double PROTECTED = 0.8d;
+
+	private final ConcurrentHashMap<ByteArrayWrapper, Node> data = new ConcurrentHashMap<>();
+
+	/**
+	 * every write increments the version of the stripe the key belongs to, a load only keeps its result
+	 * when the version did not change while it was in flight.
+	 */
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+
+	private final AtomicReferenceArray<Node> reads = new AtomicReferenceArray<>(READ_BUFFER);
+	private final AtomicInteger readIndex = new AtomicInteger();
+
+	// everything below is guarded by the lock
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue window = new Queue();
+	private final Queue probation = new Queue();
+	private final Queue protect = new Queue();
+	private final FrequencySketch sketch;
+	private final long maxEntries;
+	private final long maxBytes;
+
+	/**
+	 * @param maxEntries max number of entries, 0 for no limit
+	 * @param maxBytes max size of all serialized values together, 0 for no limit
+	 */
+	LocalCache(long maxEntries, long maxBytes) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.maxBytes = Math.max(0, maxBytes);
+		// without an entry limit we assume values of about 1kb
+		this.sketch = new FrequencySketch(this.maxEntries > 0 ? this.maxEntries : Math.max(1, this.maxBytes / 1024));
+	}
+
+	/**
+	 * @return the entry or null if there is none or it is expired
+	 */
+	NearCacheEntry get(byte[] bkey) {
+		Node node = data.get(new ByteArrayWrapper(bkey));
+		if (node == null) return null;
+		if (node.isExpired(System.currentTimeMillis())) {
+			if (data.remove(node.key, node)) unlink(node);
+			return null;
+		}
+		int index = readIndex.getAndIncrement() & READ_BUFFER_MASK;
+		reads.lazySet(index, node);
+		if ((index & 31) == 0 && lock.tryLock()) {
+			try {
+				drainReads();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+		return node.entry;
+	}
+
+	/**
+	 * to pass to {@link #put(byte[], NearCacheEntry, long, long)} when loading a value.
+	 */
+	long stamp(byte[] bkey) {
+		return versions.get(stripe(bkey));
+	}
+
+	/**
+	 * adds or replaces an entry written by this node.
+	 *
+	 * @param expires point in time (ms) the entry expires, 0 for never
+	 */
+	void put(byte[] bkey, NearCacheEntry entry, long expires) {
+		int stripe = stripe(bkey);
+		versions.incrementAndGet(stripe);
+		insert(new ByteArrayWrapper(bkey), entry, expires);
+	}
+
+	/**
+	 * adds an entry loaded from Redis, unless the key was written or invalidated since the stamp was
+	 * taken.
+	 *
+	 * @param expires point in time (ms) the entry expires, 0 for never, a negative value for not
+	 *            keeping it at all
+	 */
+	void put(byte[] bkey, NearCacheEntry entry, long expires, long stamp) {
+		if (expires < 0) return;
+		int stripe = stripe(bkey);
+		if (versions.get(stripe) != stamp) return;
+		Node node = insert(new ByteArrayWrapper(bkey), entry, expires);
+		// an invalidation may have arrived between the check and the insert
+		if (versions.get(stripe) != stamp && data.remove(node.key, node)) unlink(node);
+	}
+
+	void invalidate(byte[] bkey) {
+		// version first, so a load in flight cannot put the old value back
+		versions.incrementAndGet(stripe(bkey));
+		Node node = data.remove(new ByteArrayWrapper(bkey));
+		if (node != null) unlink(node);
+	}
+
+	void clear() {
+		for (int i = 0; i < STRIPES; i++) {
+			versions.incrementAndGet(i);
+		}
+		data.clear();
+		lock.lock();
+		try {
+			for (int i = 0; i < READ_BUFFER; i++) {
+				reads.lazySet(i, null);
+			}
+			window.clear();
+			probation.clear();
+			protect.clear();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		return data.size();
+	}
+
+	long bytes() {
+		lock.lock();
+		try {
+			return window.weight + probation.weight + protect.weight;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * converts the reply of PTTL to the point in time the entry expires.
+	 *
+	 * @return 0 for never, -1 if the key does not exist (anymore)
+	 */
+	static long toExpires(Object pttl) {
+		if (!(pttl instanceof Number)) return -1;
+		long ms = ((Number) pttl).longValue();
+		if (ms == -1) return 0;
+		if (ms < 0) return -1;
+		return System.currentTimeMillis() + Math.max(1, ms);
+	}
+
+	private Node insert(ByteArrayWrapper key, NearCacheEntry entry, long expires) {
+		Node node = new Node(key, entry, entry.size() + key.data.length, expires);
+		Node old = data.put(key, node);
+		lock.lock();
+		try {
+			if (old != null) remove(old);
+			// it may have been replaced or removed already
+			if (data.get(key) == node) {
+				sketch.increment(key.hashCode());
+				window.addLast(node);
+				evict();
+			}
+			drainReads();
+		}
+		finally {
+			lock.unlock();
+		}
+		return node;
+	}
+
+	private void unlink(Node node) {
+		lock.lock();
+		try {
+			remove(node);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	private void remove(Node node) {
+		if (node.queue != null) node.queue.remove(node);
+	}
+
+	private void drainReads() {
+		Node node;
+		for (int i = 0; i < READ_BUFFER; i++) {
+			node = reads.getAndSet(i, null);
+			if (node == null) continue;
+			sketch.increment(node.key.hashCode());
+			onAccess(node);
+		}
+	}
+
+	private void onAccess(Node node) {
+		Queue queue = node.queue;
+		if (queue == null) return; // removed in the meantime
+		if (queue == window || queue == protect) {
+			queue.moveToLast(node);
+		}
+		else {
+			// second hit, promote to the protected segment
+			probation.remove(node);
+			protect.addLast(node);
+			while (protect.first != null && exceeds(protect, (1d - WINDOW) * PROTECTED)) {
+				Node demoted = protect.first;
+				protect.remove(demoted);
+				probation.addLast(demoted);
+			}
+		}
+	}
+
+	private void evict() {
+		// entries leaving the window become candidates for the main space
+		while (window.first != null && exceeds(window, WINDOW)) {
+			Node candidate = window.first;
+			window.remove(candidate);
+			probation.addLast(candidate);
+		}
+
+		long now = System.currentTimeMillis();
+		while (exceeds()) {
+			Node victim = probation.first;
+			if (victim == null) {
+				victim = protect.first != null ? protect.first : window.first;
+			}
+			else {
+				// the candidate only takes the place of the victim if it was requested more often
+				Node candidate = probation.last;
+				if (candidate != victim && (candidate.isExpired(now) || !(victim.isExpired(now) || admit(candidate, victim)))) victim = candidate;
+			}
+			if (victim == null) break;
+			remove(victim);
+			data.remove(victim.key, victim);
+		}
+	}
+
+	private boolean admit(Node candidate, Node victim) {
+		return sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode());
+	}
+
+	private boolean exceeds() {
+		return (maxEntries > 0 && window.count + probation.count + protect.count > maxEntries)
+				|| (maxBytes > 0 && window.weight + probation.weight + protect.weight > maxBytes);
+	}
+
+	private boolean exceeds(Queue queue, double share) {
+		return (maxEntries > 0 && queue.count > Math.max(1L, (long) (maxEntries * share))) || (maxBytes > 0 && queue.weight > Math.max(1L, (long) (maxBytes * share)));
+	}
+
+	private static int stripe(byte[] bkey) {
+		return (Arrays.hashCode(bkey) & Integer.MAX_VALUE) % STRIPES;
+	}
+
+	private static final class Node {
+		private final ByteArrayWrapper key;
+		private final NearCacheEntry entry;
+		private final long weight;
+		private final long expires;
+		private Queue queue;
+		private Node prev;
+		private Node next;
+
+		Node(ByteArrayWrapper key, NearCacheEntry entry, long weight, long expires) {
+			this.key = key;
+			this.entry = entry;
+			this.weight = weight;
+			this.expires = expires;
+		}
+
+		boolean isExpired(long now) {
+			return expires > 0 && expires <= now;
+		}
+	}
+
+	/**
+	 * intrusive doubly linked list, least recently used first.
+	 */
+	private static final class Queue {
+		private Node first;
+		private Node last;
+		private long count;
+		private long weight;
+
+		void addLast(Node node) {
+			node.queue = this;
+			node.prev = last;
+			node.next = null;
+			if (last == null) first = node;
+			else last.next = node;
+			last = node;
+			count++;
+			weight += node.weight;
+		}
+
+		void remove(Node node) {
+			if (node.prev == null) first = node.next;
+			else node.prev.next = node.next;
+			if (node.next == null) last = node.prev;
+			else node.next.prev = node.prev;
+			node.prev = node.next = null;
+			node.queue = null;
+			count--;
+			weight -= node.weight;
+		}
+
+		void moveToLast(Node node) {
+			if (last == node) return;
+			remove(node);
+			addLast(node);
+		}
+
+		void clear() {
+			Node node = first;
+			Node next;
+			while (node != null) {
+				next = node.next;
+				node.prev = node.next = null;
+				node.queue = null;
+				node = next;
+			}
+			first = last = null;
+			count = weight = 0;
+		}
+	}
+
+	/**
+	 * count-min sketch with 4 bit counters, 16 of them packed into every long.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(long capacity) {
+			int len = Integer.highestOneBit((int) Math.max(64L, Math.min(capacity, 1 << 22)) - 1) << 1;
+			table = new long[len];
+			mask = len - 1;
+			sampleSize = len * 10;
+		}
+
+		int frequency(int hash) {
+			int min = 15;
+			for (int i = 0; i < 4; i++) {
+				long h = spread(hash, i);
+				min = Math.min(min, (int) ((table[index(h)] >>> offset(h)) & 0xFL));
+			}
+			return min;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				long h = spread(hash, i);
+				int index = index(h);
+				int offset = offset(h);
+				if (((table[index] >>> offset) & 0xFL) < 15) {
+					table[index] += 1L << offset;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize) reset();
+		}
+
+		// halve all counters, so the popularity of the past fades
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			additions = additions / 2;
+		}
+
+		private static long spread(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			return h + (h >>> 32);
+		}
+
+		private int index(long h) {
+			return (int) h & mask;
+		}
+
+		private static int offset(long h) {
+			return (int) ((h >>> 40) & 15L) << 2;
+		}
+	}
+}
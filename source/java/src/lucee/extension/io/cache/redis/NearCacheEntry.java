@@ -5,6 +5,7 @@ import java.util.Date;
 
 import lucee.commons.io.cache.CacheEntry;
 import lucee.extension.io.cache.util.Coder;
+import lucee.extension.io.cache.util.LazyStruct;
 import lucee.loader.engine.CFMLEngineFactory;
 import lucee.runtime.type.Struct;
 
@@ -16,6 +17,10 @@ public class NearCacheEntry implements CacheEntry {
 	private long created;
 	private byte[] serialized;
 	private long count;
+	// the value decoded once and shared by all copies, see copy(ClassLoader, boolean, boolean)
+	private volatile Object shared = NONE;
+
+	private static final Object NONE = new Object();
 
 	public NearCacheEntry(byte[] key, Object val, int exp, long count) {
 		this.key = key;
@@ -41,8 +46,38 @@ public class NearCacheEntry implements CacheEntry {
 	 * copied NearCacheEntries.
 	 */
 	public NearCacheEntry copy(ClassLoader cl) throws IOException {
+		return copy(cl, false);
+	}
+
+	/**
+	 * @param lazyStructs structs stored as BSON are copied as lazy structs sharing the serialized bytes,
+	 *            see {@link Coder#evaluate(ClassLoader, byte[], boolean)}
+	 */
+	public NearCacheEntry copy(ClassLoader cl, boolean lazyStructs) throws IOException {
+		return copy(cl, lazyStructs, false);
+	}
+
+	/**
+	 * Values nobody can change (strings, numbers, booleans, dates) are only decoded for the first copy,
+	 * all further copies share that value. A lazy struct is decoded once as well, every copy gets its own
+	 * lazy struct sharing the index and the members already decoded (copy on write, it only decodes
+	 * what it reads and changes nothing shared). Anything else is decoded for every copy, unless the
+	 * caller does not change the value (readOnly), then every value is shared.
+	 *
+	 * @param readOnly the caller promises not to change the value
+	 */
+	public NearCacheEntry copy(ClassLoader cl, boolean lazyStructs, boolean readOnly) throws IOException {
 		byte[] bytes = serialized();
-		return new NearCacheEntry(key, Coder.evaluate(cl, bytes), exp, count, bytes);
+		Object v = shared;
+		if (v == NONE) {
+			v = Coder.evaluate(cl, bytes, lazyStructs);
+			if (!readOnly && !(v instanceof LazyStruct) && !LazyStruct.isImmutable(v)) return new NearCacheEntry(key, v, exp, count, bytes);
+			// a race only decodes the value twice
+			shared = v;
+		}
+		// the shared lazy struct is never handed out, it is the template for the copies
+		if (v instanceof LazyStruct && !readOnly) v = ((LazyStruct) v).duplicate(true);
+		return new NearCacheEntry(key, v, exp, count, bytes);
 	}
 
 	@Override
@@ -0,0 +1,274 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisFactory;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Invalidation channel between the local caches of all nodes sharing a cache, based on Redis
+ * Pub/Sub, for servers without "CLIENT TRACKING".
+ * <p>
+ * After a write reached Redis, the key is queued for publishing. A publisher thread collects the
+ * queued keys for a short moment, so a burst of writes to the same keys ends up in a few messages,
+ * and publishes them on the channel of the cache. A subscriber thread evicts the keys published by
+ * other nodes from the local cache. Messages can get lost while the subscription is down, so the
+ * local cache is not used until the subscription is back and everything it had is dropped.
+ */
+public class NearCacheInvalidation {
+
+	private static final byte VERSION = 1;
+	private static final byte TYPE_KEYS = 0;
+	private static final byte TYPE_ALL = 1;
+
+	private static final int MAX_KEYS_PER_MESSAGE = 1000;
+	private static final int MAX_MESSAGE_SIZE = 64 * 1024;
+
+	private static final byte[] MESSAGE = "message".getBytes(Coder.UTF8);
+
+	private final RedisFactory factory;
+	private final byte[] channel;
+	private final LocalCache local;
+	private final long delay;
+	private final Log log;
+	private final byte[] origin;
+	private final RedisMultiplexer connection;
+
+	private final Set<ByteArrayWrapper> keys = ConcurrentHashMap.newKeySet();
+	private volatile boolean all;
+	private final Object token = new Object();
+
+	private volatile boolean connected;
+	private volatile boolean closed;
+	private volatile Redis subscription;
+
+	/**
+	 * @param factory factory used to create the connections
+	 * @param channel name of the channel, all nodes sharing the cache need to use the same
+	 * @param local local cache invalidated by the messages of the other nodes
+	 * @param delay how long (ms) keys are collected before they get published
+	 * @param log log, can be null
+	 */
+	NearCacheInvalidation(RedisFactory factory, String channel, LocalCache local, long delay, Log log) {
+		this.factory = factory;
+		this.channel = channel.getBytes(Coder.UTF8);
+		this.local = local;
+		this.delay = Math.max(0, delay);
+		this.log = log;
+		this.connection = new RedisMultiplexer(factory, 1, log);
+
+		UUID uuid = UUID.randomUUID();
+		this.origin = ByteBuffer.allocate(16).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+	}
+
+	public void start() {
+		Thread subscriber = new Thread(this::subscribeLoop, "redis-cache-invalidation-subscriber");
+		subscriber.setDaemon(true);
+		subscriber.start();
+
+		Thread publisher = new Thread(this::publishLoop, "redis-cache-invalidation-publisher");
+		publisher.setDaemon(true);
+		publisher.start();
+	}
+
+	/**
+	 * @return false while the subscription is down, then the local cache may have missed invalidations
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * queues a key for publishing, to call after the write reached Redis.
+	 */
+	public void publish(byte[] bkey) {
+		keys.add(new ByteArrayWrapper(bkey));
+		signal();
+	}
+
+	/**
+	 * tells the other nodes to drop everything, to call after the cache was cleared.
+	 */
+	public void publishAll() {
+		all = true;
+		signal();
+	}
+
+	/**
+	 * drops the connections, the subscription is established again.
+	 */
+	public void reconnect() {
+		connection.reconnect();
+		Redis redis = subscription;
+		if (redis != null) close(redis);
+	}
+
+	public void close() {
+		closed = true;
+		connected = false;
+		signal();
+		connection.close();
+		Redis redis = subscription;
+		if (redis != null) close(redis);
+	}
+
+	private void signal() {
+		synchronized (token) {
+			token.notifyAll();
+		}
+	}
+
+	private void publishLoop() {
+		while (!closed) {
+			try {
+				synchronized (token) {
+					if (!all && keys.isEmpty() && !closed) token.wait();
+				}
+				// collect what else comes in, a burst of writes should not become a burst of messages
+				if (delay > 0) Thread.sleep(delay);
+				if (closed) return;
+
+				List<Object[]> commands = new ArrayList<>();
+				if (all) {
+					all = false;
+					// the keys written before are covered by this message
+					keys.clear();
+					commands.add(new Object[] { "PUBLISH", channel, encode(TYPE_ALL, null) });
+				}
+				else {
+					List<byte[]> batch = new ArrayList<>();
+					int size = 0;
+					Iterator<ByteArrayWrapper> it = keys.iterator();
+					ByteArrayWrapper key;
+					while (it.hasNext()) {
+						key = it.next();
+						it.remove();
+						batch.add(key.data);
+						size += key.data.length + 4;
+						if (batch.size() >= MAX_KEYS_PER_MESSAGE || size >= MAX_MESSAGE_SIZE) {
+							commands.add(new Object[] { "PUBLISH", channel, encode(TYPE_KEYS, batch) });
+							batch.clear();
+							size = 0;
+						}
+					}
+					if (!batch.isEmpty()) commands.add(new Object[] { "PUBLISH", channel, encode(TYPE_KEYS, batch) });
+				}
+				if (!commands.isEmpty()) connection.pipeline(commands);
+			}
+			catch (InterruptedException ie) {
+				return;
+			}
+			catch (Exception e) {
+				if (log != null && !closed) log.error("redis-cache", e);
+				// we cannot tell which keys did not make it
+				all = true;
+				sleep(1000);
+			}
+		}
+	}
+
+	private void subscribeLoop() {
+		while (!closed) {
+			Redis redis = null;
+			try {
+				redis = factory.create();
+				Socket socket = redis.getSocket();
+				if (socket != null) socket.setKeepAlive(true);
+				subscription = redis;
+				redis.call("SUBSCRIBE", channel);
+				// we may have missed messages while we were not subscribed
+				local.clear();
+				connected = true;
+
+				Object msg;
+				while (!closed) {
+					msg = redis.read();
+					if (msg instanceof List) receive((List<?>) msg);
+				}
+			}
+			catch (Exception e) {
+				if (log != null && !closed) log.error("redis-cache", e);
+			}
+			finally {
+				connected = false;
+				local.clear();
+				subscription = null;
+				if (redis != null) close(redis);
+			}
+			if (!closed) sleep(1000);
+		}
+	}
+
+	private void receive(List<?> msg) throws IOException {
+		if (msg.size() < 3 || !(msg.get(0) instanceof byte[]) || !Arrays.equals(MESSAGE, (byte[]) msg.get(0)) || !(msg.get(2) instanceof byte[])) return;
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream((byte[]) msg.get(2)));
+		if (in.readByte() != VERSION) return;
+		byte[] from = new byte[origin.length];
+		in.readFully(from);
+		// our own writes
+		if (Arrays.equals(origin, from)) return;
+
+		if (in.readByte() == TYPE_ALL) {
+			local.clear();
+			return;
+		}
+		int count = in.readInt();
+		byte[] key;
+		for (int i = 0; i < count; i++) {
+			key = new byte[in.readInt()];
+			in.readFully(key);
+			local.invalidate(key);
+		}
+	}
+
+	private byte[] encode(byte type, List<byte[]> keys) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeByte(VERSION);
+		out.write(origin);
+		out.writeByte(type);
+		if (type == TYPE_KEYS) {
+			out.writeInt(keys.size());
+			for (byte[] key: keys) {
+				out.writeInt(key.length);
+				out.write(key);
+			}
+		}
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	private void close(Redis redis) {
+		try {
+			Socket socket = redis.getSocket();
+			if (socket != null) socket.close();
+		}
+		catch (Exception e) {
+			if (log != null) log.error("redis-cache", e);
+		}
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
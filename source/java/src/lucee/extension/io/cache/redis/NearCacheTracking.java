@@ -0,0 +1,193 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisFactory;
+import lucee.extension.io.cache.redis.Redis.Parser.ServerError;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Local read cache kept consistent across nodes by Redis server assisted client side caching (Redis
+ * 6+).
+ * <p>
+ * Keys not found locally are loaded through a dedicated RESP3 connection ("HELLO 3") with "CLIENT
+ * TRACKING" enabled. Redis then pushes an invalidation message on that same connection whenever one
+ * of those keys (in BCAST mode any key starting with one of the configured prefixes) gets modified or
+ * expires, no matter which client did it. While that connection is down, the local cache is not used.
+ */
+public class NearCacheTracking implements RedisMultiplexer.Listener {
+
+	private static final byte[] INVALIDATE = "invalidate".getBytes(Coder.UTF8);
+
+	private final LocalCache local;
+	private final RedisMultiplexer connection;
+	private final boolean bcast;
+	private final String[] prefixes;
+	private final byte[][] bprefixes;
+	private final boolean sliding;
+	private final Log log;
+	private volatile boolean connected;
+
+	/**
+	 * @param factory factory used to create the tracking connection
+	 * @param bcast if true broadcasting mode is used, otherwise Redis only informs about keys read
+	 *            through the tracking connection
+	 * @param prefixes key prefixes for the broadcasting mode, empty for all keys
+	 * @param local where the loaded values are kept
+	 * @param sliding values are loaded with the script that refreshes a sliding expiration
+	 * @param log log, can be null
+	 */
+	NearCacheTracking(RedisFactory factory, boolean bcast, String[] prefixes, LocalCache local, boolean sliding, Log log) {
+		this.local = local;
+		this.bcast = bcast;
+		this.prefixes = prefixes == null ? new String[0] : prefixes;
+		this.bprefixes = new byte[this.prefixes.length][];
+		for (int i = 0; i < this.prefixes.length; i++) {
+			bprefixes[i] = Coder.toBytes(this.prefixes[i]);
+		}
+		this.sliding = sliding;
+		this.log = log;
+		this.connection = new RedisMultiplexer(factory, 1, log, this);
+	}
+
+	/**
+	 * establishes the tracking connection.
+	 *
+	 * @return false if the server does not support client side caching.
+	 */
+	public boolean start() {
+		try {
+			connection.call("PING");
+			return true;
+		}
+		catch (ServerError se) {
+			if (log != null) log.error("redis-cache", "Redis does not support client side caching (HELLO 3/CLIENT TRACKING), near cache tracking is disabled", se);
+			connection.close();
+			return false;
+		}
+		catch (IOException ioe) {
+			// not reachable right now, we try again with the next load
+			if (log != null) log.error("redis-cache", ioe);
+			return true;
+		}
+	}
+
+	/**
+	 * @return the locally cached entry or null if there is none or the tracking connection is down
+	 */
+	public NearCacheEntry get(byte[] bkey) {
+		if (!connected) return null;
+		return local.get(bkey);
+	}
+
+	/**
+	 * loads the value from Redis through the tracking connection and keeps it locally until it gets
+	 * invalidated or expires, a key that is not tracked is not kept.
+	 *
+	 * @return the raw value or null if the key does not exist
+	 */
+	public byte[] load(byte[] bkey) throws IOException {
+		long stamp = local.stamp(bkey);
+		List<Object> res;
+		if (sliding) res = (List<Object>) slidingLoad(bkey);
+		// GET last, so an error for it (WRONGTYPE) is the last reply
+		else res = connection.pipeline(Arrays.asList(new Object[] { "PTTL", bkey }, new Object[] { "GET", bkey }));
+		byte[] val = res.get(1) instanceof byte[] ? (byte[]) res.get(1) : null;
+		if (val != null && connected && tracked(bkey)) local.put(bkey, new NearCacheEntry(bkey, null, 0, 0, val), LocalCache.toExpires(res.get(0)), stamp);
+		return val;
+	}
+
+	/**
+	 * @return false for a key Redis does not send invalidations for, in BCAST mode only keys starting
+	 *         with one of the prefixes are tracked
+	 */
+	private boolean tracked(byte[] bkey) {
+		if (!bcast || bprefixes.length == 0) return true;
+		for (byte[] prefix: bprefixes) {
+			if (startsWith(bkey, prefix)) return true;
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		if (data.length < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * see {@link RedisCache#SLIDING_LOAD}, a value with a sliding expiration comes without time to live
+	 * and is not kept.
+	 */
+	private Object slidingLoad(byte[] bkey) throws IOException {
+		try {
+			return connection.call("EVALSHA", RedisCache.SLIDING_LOAD_SHA, "1", bkey);
+		}
+		catch (ServerError e) {
+			if (!(e.getMessage() + "").startsWith("NOSCRIPT")) throw e;
+			return connection.call("EVAL", RedisCache.SLIDING_LOAD, "1", bkey);
+		}
+	}
+
+	/**
+	 * drops the tracking connection, the next load connects again.
+	 */
+	public void reconnect() {
+		connection.reconnect();
+	}
+
+	public void close() {
+		connected = false;
+		connection.close();
+		local.clear();
+	}
+
+	@Override
+	public void connected(Redis redis) throws IOException {
+		redis.call("HELLO", "3");
+		List<Object> args = new ArrayList<>();
+		args.add("CLIENT");
+		args.add("TRACKING");
+		args.add("ON");
+		if (bcast) {
+			args.add("BCAST");
+			for (String prefix: prefixes) {
+				args.add("PREFIX");
+				args.add(prefix);
+			}
+		}
+		redis.call(args.toArray());
+		// whatever we have was not tracked by this connection
+		local.clear();
+		connected = true;
+	}
+
+	@Override
+	public void disconnected(IOException cause) {
+		connected = false;
+		local.clear();
+	}
+
+	@Override
+	public void push(Redis.Push message) {
+		if (message.size() < 2 || !(message.get(0) instanceof byte[]) || !Arrays.equals(INVALIDATE, (byte[]) message.get(0))) return;
+
+		Object keys = message.get(1);
+		// null means the whole database was flushed
+		if (keys == null) {
+			local.clear();
+			return;
+		}
+		if (keys instanceof List) {
+			for (Object key: (List<?>) keys) {
+				if (key instanceof byte[]) local.invalidate((byte[]) key);
+			}
+		}
+	}
+}
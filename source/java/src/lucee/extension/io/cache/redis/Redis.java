@@ -1,17 +1,14 @@
 package lucee.extension.io.cache.redis;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.math.BigInteger;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
-import lucee.extension.io.cache.util.Coder;
 import lucee.runtime.exp.PageException;
 
 /**
@@ -22,25 +19,52 @@ import lucee.runtime.exp.PageException;
 public class Redis {
 	/**
 	 * Implements the encoding (writing) side.
+	 * <p>
+	 * The encoder keeps its own output buffer, length headers are taken from precomputed tables and
+	 * strings are encoded as UTF-8 straight into that buffer, so encoding a regular command does not
+	 * allocate.
 	 */
 	static class Encoder {
 		/**
 		 * CRLF is used a lot.
 		 */
-		private static byte[] CRLF = new byte[] { '\r', '\n' };
+		private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+		/**
+		 * headers for small lengths are precomputed, this covers nearly all commands and most values.
+		 */
+		private static final int HEADER_CACHE_SIZE = 256;
+		private static final byte[][] BULK_HEADERS = headers('$');
+		private static final byte[][] ARRAY_HEADERS = headers('*');
+
+		private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
 
 		/**
 		 * This stream we will write to.
 		 */
 		private final OutputStream out;
 
+		private final byte[] buffer;
+		private int pos;
+
 		/**
 		 * Construct the encoder with the passed outputstream the encoder will write to.
 		 *
 		 * @param out Will be used to write all encoded data to.
+		 * @param bufferSize size of the internal output buffer
 		 */
-		Encoder(OutputStream out) {
+		Encoder(OutputStream out, int bufferSize) {
 			this.out = out;
+			// we need at least space for a header or a single encoded char
+			this.buffer = new byte[Math.max(bufferSize, 64)];
+		}
+
+		private static byte[][] headers(char type) {
+			byte[][] headers = new byte[HEADER_CACHE_SIZE][];
+			for (int i = 0; i < HEADER_CACHE_SIZE; i++) {
+				headers[i] = (type + Integer.toString(i) + "\r\n").getBytes();
+			}
+			return headers;
 		}
 
 		/**
@@ -51,38 +75,84 @@ public class Redis {
 		 * @link https://redis.io/topics/protocol#resp-bulk-strings
 		 */
 		void write(byte[] value) throws IOException {
-			out.write('$');
-			out.write(Long.toString(value.length).getBytes());
-			out.write(CRLF);
-			out.write(value);
-			out.write(CRLF);
+			writeHeader(BULK_HEADERS, '$', value.length);
+			writeRaw(value, 0, value.length);
+			writeRaw(CRLF);
+		}
+
+		/**
+		 * Write a String in the "RESP Bulk String" format, the chars are encoded as UTF-8 directly into
+		 * the output buffer.
+		 *
+		 * @param value The string to write.
+		 * @throws IOException Propagated from the output stream.
+		 */
+		void write(String value) throws IOException {
+			final int len = value.length();
+			writeHeader(BULK_HEADERS, '$', utf8Length(value));
+			char c;
+			for (int i = 0; i < len; i++) {
+				if (buffer.length - pos < 4) flushBuffer();
+				c = value.charAt(i);
+				if (c < 0x80) {
+					buffer[pos++] = (byte) c;
+				}
+				else if (c < 0x800) {
+					buffer[pos++] = (byte) (0xc0 | (c >> 6));
+					buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+				else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+					buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+				}
+				else if (Character.isSurrogate(c)) {
+					// unpaired surrogate, same replacement String.getBytes(UTF8) does
+					buffer[pos++] = (byte) '?';
+				}
+				else {
+					buffer[pos++] = (byte) (0xe0 | (c >> 12));
+					buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			writeRaw(CRLF);
 		}
 
 		/**
-		 * Write a long value in the "RESP Integers" format.
+		 * Write a long value as "RESP Bulk String", this is how Redis expects numeric arguments of a
+		 * command.
 		 *
 		 * @param val The value to write.
 		 * @throws IOException Propagated from the output stream.
-		 * @link https://redis.io/topics/protocol#resp-integers
 		 */
 		void write(long val) throws IOException {
-			out.write(':');
-			out.write(Long.toString(val).getBytes());
-			out.write(CRLF);
+			writeHeader(BULK_HEADERS, '$', digits(val));
+			writeNumber(val);
+			writeRaw(CRLF);
 		}
 
 		/**
 		 * Write a list of objects in the "RESP Arrays" format.
+		 * <p>
+		 * Arguments of type byte[][] or List (multiple keys) are flattened into the array without building
+		 * an intermediate collection.
 		 *
-		 * @param list A list of objects that contains Strings, Longs, Integers and (recursively) Lists.
+		 * @param arr Strings, byte arrays, Longs, Integers, byte[][] and Lists of byte arrays.
 		 * @throws IOException Propagated from the output stream.
 		 * @throws IllegalArgumentException If the list contains unencodable objects.
 		 * @link https://redis.io/topics/protocol#resp-arrays
 		 */
 		void write(Object[] arr) throws IOException, IllegalArgumentException {
-			out.write('*');
-			out.write(Long.toString(arr.length).getBytes());
-			out.write(CRLF);
+			int count = 0;
+			for (Object o: arr) {
+				if (o instanceof byte[][]) count += ((byte[][]) o).length;
+				else if (o instanceof List) count += ((List<?>) o).size();
+				else count++;
+			}
+			writeHeader(ARRAY_HEADERS, '*', count);
 
 			for (Object o: arr) {
 				if (o instanceof byte[]) {
@@ -93,25 +163,130 @@ public class Redis {
 						write(barr);
 					}
 				}
-				else if (o instanceof String) {
-					// write((Serializable) o);
-					write(((String) o).getBytes(Coder.UTF8));
-				}
-				else if (o instanceof Long) {
-					write((Long) o);
-				}
-				else if (o instanceof Integer) {
-					write(((Integer) o).longValue());
+				else if (o instanceof List) {
+					List<?> list = (List<?>) o;
+					for (int i = 0, size = list.size(); i < size; i++) {
+						writeElement(list.get(i));
+					}
 				}
 				else {
-					throw new IllegalArgumentException("Unexpected type " + o.getClass().getCanonicalName());
+					writeElement(o);
 				}
 			}
 		}
 
+		private void writeElement(Object o) throws IOException {
+			if (o instanceof byte[]) {
+				write((byte[]) o);
+			}
+			else if (o instanceof String) {
+				write((String) o);
+			}
+			else if (o instanceof Long) {
+				write(((Long) o).longValue());
+			}
+			else if (o instanceof Integer) {
+				write(((Integer) o).longValue());
+			}
+			else {
+				throw new IllegalArgumentException("Unexpected type " + (o == null ? "null" : o.getClass().getCanonicalName()));
+			}
+		}
+
 		void flush() throws IOException {
+			flushBuffer();
 			out.flush();
 		}
+
+		private void writeHeader(byte[][] cache, char type, int len) throws IOException {
+			if (len < HEADER_CACHE_SIZE) {
+				writeRaw(cache[len]);
+				return;
+			}
+			if (buffer.length - pos < 24) flushBuffer();
+			buffer[pos++] = (byte) type;
+			writeNumber(len);
+			buffer[pos++] = '\r';
+			buffer[pos++] = '\n';
+		}
+
+		private void writeNumber(long val) throws IOException {
+			if (buffer.length - pos < 20) flushBuffer();
+			if (val == Long.MIN_VALUE) {
+				System.arraycopy(MIN_LONG, 0, buffer, pos, MIN_LONG.length);
+				pos += MIN_LONG.length;
+				return;
+			}
+			if (val < 0) {
+				buffer[pos++] = '-';
+				val = -val;
+			}
+			int end = pos + digits(val);
+			int i = end;
+			do {
+				buffer[--i] = (byte) ('0' + (val % 10));
+				val /= 10;
+			}
+			while (val != 0);
+			pos = end;
+		}
+
+		private void writeRaw(byte[] barr) throws IOException {
+			writeRaw(barr, 0, barr.length);
+		}
+
+		private void writeRaw(byte[] barr, int off, int len) throws IOException {
+			if (len > buffer.length - pos) {
+				flushBuffer();
+				// large values go straight to the stream
+				if (len > buffer.length) {
+					out.write(barr, off, len);
+					return;
+				}
+			}
+			System.arraycopy(barr, off, buffer, pos, len);
+			pos += len;
+		}
+
+		private void flushBuffer() throws IOException {
+			if (pos > 0) {
+				out.write(buffer, 0, pos);
+				pos = 0;
+			}
+		}
+
+		private static int digits(long val) {
+			if (val == Long.MIN_VALUE) return MIN_LONG.length;
+			int sign = 0;
+			if (val < 0) {
+				sign = 1;
+				val = -val;
+			}
+			int d = 1;
+			while (val >= 10) {
+				val /= 10;
+				d++;
+			}
+			return d + sign;
+		}
+
+		static int utf8Length(String str) {
+			final int len = str.length();
+			int count = len;
+			char c;
+			for (int i = 0; i < len; i++) {
+				c = str.charAt(i);
+				if (c < 0x80) continue;
+				if (c < 0x800) count++;
+				else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+					// 2 chars -> 4 bytes
+					count += 2;
+					i++;
+				}
+				else if (!Character.isSurrogate(c)) count += 2;
+			}
+			return count;
+		}
 	}
 
 	/**
@@ -142,21 +317,39 @@ public class Redis {
 		private final InputStream input;
 		private final ClassLoader cl;
 
+		/**
+		 * Read buffer, numbers and simple strings are decoded in place from it.
+		 */
+		private final byte[] buffer;
+		private int pos;
+		private int limit;
+
+		/**
+		 * Reused for simple strings that do not fit into the remaining read buffer.
+		 */
+		private byte[] scratch = new byte[64];
+
 		/**
 		 * Constructor.
 		 *
 		 * @param input The stream to read the data from.
+		 * @param bufferSize size of the internal read buffer
 		 */
-		Parser(ClassLoader cl, InputStream input) {
+		Parser(ClassLoader cl, InputStream input, int bufferSize) {
 			this.cl = cl;
 			this.input = input;
+			this.buffer = new byte[Math.max(bufferSize, 64)];
 		}
 
 		/**
 		 * Parse incoming data from the stream.
 		 * <p>
 		 * Based on each of the markers which will identify the type of data being sent, the parsing is
-		 * delegated to the type-specific methods.
+		 * delegated to the type-specific methods. Arrays are returned as random access lists.
+		 * <p>
+		 * The RESP3 types (only used by connections that switched protocol with "HELLO 3") are mapped to
+		 * the closest RESP2 representation, maps and sets become flat lists, push messages are returned as
+		 * {@link Push}.
 		 *
 		 * @return The parsed object
 		 * @throws IOException Propagated from the stream
@@ -164,7 +357,7 @@ public class Redis {
 		 */
 		Object parse() throws IOException, ProtocolException {
 			Object ret;
-			int read = this.input.read();
+			int read = this.read();
 			switch (read) {
 			case '+':
 				ret = this.parseSimpleString();
@@ -178,23 +371,52 @@ public class Redis {
 				ret = this.parseBulkString();
 				break;
 			case '*':
-				long len = this.parseNumber();
-				if (len == -1) {
-					ret = null;
-				}
-				else {
-					List<Object> arr = new LinkedList<>();
-					for (long i = 0; i < len; i++) {
-						arr.add(this.parse());
-					}
-					ret = arr;
-				}
+			case '~':
+				ret = this.parseAggregate(this.parseNumber(), new ArrayList<>());
+				break;
+			case '%':
+				long pairs = this.parseNumber();
+				ret = this.parseAggregate(pairs == -1 ? -1 : pairs * 2, new ArrayList<>());
+				break;
+			case '>':
+				ret = this.parseAggregate(this.parseNumber(), new Push());
+				break;
+			case '_':
+				expectCrLf();
+				ret = null;
+				break;
+			case '#':
+				ret = next() == 't';
+				expectCrLf();
+				break;
+			case ',':
+				String d = new String(this.parseSimpleString()).trim();
+				if ("inf".equalsIgnoreCase(d)) ret = Double.POSITIVE_INFINITY;
+				else if ("-inf".equalsIgnoreCase(d)) ret = Double.NEGATIVE_INFINITY;
+				else ret = Double.valueOf(d);
+				break;
+			case '(':
+				ret = new BigInteger(new String(this.parseSimpleString()));
+				break;
+			case '=':
+				// verbatim string, the first 4 bytes are the format ("txt:")
+				byte[] verbatim = this.parseBulkString();
+				ret = verbatim == null || verbatim.length < 4 ? verbatim : Arrays.copyOfRange(verbatim, 4, verbatim.length);
+				break;
+			case '!':
+				byte[] error = this.parseBulkString();
+				throw new ServerError(error == null ? "" : new String(error));
+			case '|':
+				// attributes are out of band information for the next reply, we simply skip them
+				long attributes = this.parseNumber();
+				this.parseAggregate(attributes == -1 ? -1 : attributes * 2, new ArrayList<>());
+				ret = this.parse();
 				break;
 			case -1:
 				// EOF mid-response = connection closed by peer (Redis dead, proxy disabled, network drop).
 				// Returning null here masks the failure as "SET succeeded, returned null" which the async
 				// drain treats as success and removes the entry from the near cache — data lost silently.
-				throw new IOException("Unexpected EOF from Redis (connection closed before response)");
+				throw eof();
 			default:
 				throw new ProtocolException("Unexpected input: " + (byte) read);
 			}
@@ -202,6 +424,30 @@ public class Redis {
 			return ret;
 		}
 
+		private List<Object> parseAggregate(long len, ArrayList<Object> arr) throws IOException {
+			if (len == -1) {
+				return null;
+			}
+			if (len > Integer.MAX_VALUE) {
+				throw new ProtocolException("Unsupported length for array");
+			}
+			final int size = (int) len;
+			arr.ensureCapacity(size);
+			ServerError error = null;
+			for (int i = 0; i < size; i++) {
+				// an error element (e.g. inside EXEC) must not leave the rest of the array unread
+				try {
+					arr.add(this.parse());
+				}
+				catch (ServerError se) {
+					if (error == null) error = se;
+					arr.add(null);
+				}
+			}
+			if (error != null) throw error;
+			return arr;
+		}
+
 		/**
 		 * Parse "RESP Bulk string" as a String object.
 		 *
@@ -217,18 +463,30 @@ public class Redis {
 				throw new ProtocolException("Unsupported value length for bulk string");
 			}
 			final int numBytes = (int) expectedLength;
-			final byte[] buffer = new byte[numBytes];
-			int read = 0;
-			while (read < expectedLength) {
-				read += input.read(buffer, read, numBytes - read);
-			}
-			if (input.read() != '\r') {
-				throw new ProtocolException("Expected CR");
-			}
-			if (input.read() != '\n') {
-				throw new ProtocolException("Expected LF");
+			final byte[] value = new byte[numBytes];
+
+			// what we already have buffered
+			int read = Math.min(limit - pos, numBytes);
+			System.arraycopy(buffer, pos, value, 0, read);
+			pos += read;
+
+			// the rest is read directly into the target array
+			int len;
+			while (read < numBytes) {
+				if (numBytes - read < buffer.length) {
+					if (!fill()) throw eof();
+					len = Math.min(limit - pos, numBytes - read);
+					System.arraycopy(buffer, pos, value, read, len);
+					pos += len;
+				}
+				else {
+					len = input.read(value, read, numBytes - read);
+					if (len == -1) throw eof();
+				}
+				read += len;
 			}
-			return buffer;
+			expectCrLf();
+			return value;
 		}
 
 		/**
@@ -238,33 +496,106 @@ public class Redis {
 		 * @throws IOException Propagated from underlying stream.
 		 */
 		private byte[] parseSimpleString() throws IOException {
-			return scanCr(1024);
-		}
-
-		private long parseNumber() throws IOException {
-			return Long.valueOf(new String(scanCr(1024)));
-		}
+			// most of the time the complete line is already buffered
+			for (int i = pos; i < limit; i++) {
+				if (buffer[i] == '\r') {
+					byte[] value = Arrays.copyOfRange(buffer, pos, i);
+					pos = i + 1;
+					expectLf();
+					return value;
+				}
+			}
 
-		private byte[] scanCr(int size) throws IOException {
 			int idx = 0;
 			int ch;
-			byte[] buffer = new byte[size];
-			while ((ch = input.read()) != '\r') {
-				buffer[idx++] = (byte) ch;
-				if (idx == size) {
+			while ((ch = next()) != '\r') {
+				if (idx == scratch.length) {
 					// increase buffer size.
-					size *= 2;
-					buffer = java.util.Arrays.copyOf(buffer, size);
+					scratch = Arrays.copyOf(scratch, scratch.length * 2);
 				}
+				scratch[idx++] = (byte) ch;
 			}
-			if (input.read() != '\n') {
+			expectLf();
+			return Arrays.copyOf(scratch, idx);
+		}
+
+		/**
+		 * Decodes a number terminated by CRLF directly from the stream.
+		 */
+		private long parseNumber() throws IOException {
+			int ch = next();
+			boolean negative = ch == '-';
+			if (negative) ch = next();
+
+			long value = 0;
+			int digits = 0;
+			while (ch != '\r') {
+				if (ch < '0' || ch > '9') {
+					throw new ProtocolException("Unexpected character in number: " + (byte) ch);
+				}
+				value = value * 10 + (ch - '0');
+				digits++;
+				ch = next();
+			}
+			if (digits == 0) throw new ProtocolException("Expected number");
+			expectLf();
+			return negative ? -value : value;
+		}
+
+		private void expectCrLf() throws IOException {
+			if (next() != '\r') {
+				throw new ProtocolException("Expected CR");
+			}
+			expectLf();
+		}
+
+		private void expectLf() throws IOException {
+			if (next() != '\n') {
 				throw new ProtocolException("Expected LF");
 			}
+		}
+
+		/**
+		 * next byte from the buffer, -1 in case the stream has ended.
+		 */
+		private int read() throws IOException {
+			if (pos == limit && !fill()) return -1;
+			return buffer[pos++] & 0xff;
+		}
 
-			return Arrays.copyOfRange(buffer, 0, idx);
+		/**
+		 * next byte of a response we are in the middle of, the stream ending here is an error.
+		 */
+		private int next() throws IOException {
+			if (pos == limit && !fill()) throw eof();
+			return buffer[pos++] & 0xff;
+		}
+
+		private boolean fill() throws IOException {
+			if (pos < limit) return true;
+			int len = input.read(buffer, 0, buffer.length);
+			if (len <= 0) {
+				pos = limit = 0;
+				return false;
+			}
+			pos = 0;
+			limit = len;
+			return true;
+		}
+
+		private static IOException eof() {
+			return new IOException("Unexpected EOF from Redis (connection closed before response)");
 		}
 	}
 
+	/**
+	 * An out of band message the server pushes to a RESP3 connection (e.g. client side caching
+	 * invalidations), this is not the reply to any command.
+	 */
+	public static class Push extends ArrayList<Object> {
+		private static final long serialVersionUID = 2717652387711745893L;
+	}
+
 	/**
 	 * Used for writing the data to the server.
 	 */
@@ -306,8 +637,8 @@ public class Redis {
 	public Redis(ClassLoader cl, Socket socket, int inputBufferSize, int outputBufferSize) throws IOException {
 		this.cl = cl;
 		this.socket = socket;
-		this.reader = new Parser(cl, new BufferedInputStream(socket.getInputStream(), inputBufferSize));
-		this.writer = new Encoder(new BufferedOutputStream(socket.getOutputStream(), outputBufferSize));
+		this.reader = new Parser(cl, socket.getInputStream(), inputBufferSize);
+		this.writer = new Encoder(socket.getOutputStream(), outputBufferSize);
 		this.lastUsed = this.created = System.currentTimeMillis();
 	}
 
@@ -324,38 +655,22 @@ public class Redis {
 	 * @throws PageException
 	 */
 	public Object call(Object... args) throws IOException {
-
-		// has keys?
-		boolean hasKeys = false;
-		for (Object o: args) {
-			if (o instanceof byte[][] || o instanceof List) {
-				hasKeys = true;
-				break;
-			}
-		}
-		if (hasKeys) {
-			List<Object> list = new ArrayList<>();
-			for (Object o: args) {
-				if (o instanceof byte[][]) {
-					for (byte[] barr: (byte[][]) o) {
-						list.add(barr);
-					}
-				}
-				else if (o instanceof List) {
-					for (byte[] barr: (List<byte[]>) o) {
-						list.add(barr);
-					}
-				}
-				else list.add(o);
-			}
-			args = list.toArray();
-		}
-
 		writer.write(args);
 		writer.flush();
 		return read();
 	}
 
+	/**
+	 * Writes a command to the output buffer without flushing it or waiting for the reply.
+	 */
+	void write(Object... args) throws IOException {
+		writer.write(args);
+	}
+
+	void flush() throws IOException {
+		writer.flush();
+	}
+
 	/**
 	 * Does a blocking read to wait for redis to send data.
 	 */
@@ -406,7 +721,7 @@ public class Redis {
 
 			@Override
 			public List<Object> read() throws IOException {
-				List<Object> ret = new LinkedList<>();
+				List<Object> ret = new ArrayList<>(n);
 				while (n-- > 0) {
 					ret.add(reader.parse());
 				}
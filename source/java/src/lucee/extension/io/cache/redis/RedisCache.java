@@ -3,13 +3,25 @@ package lucee.extension.io.cache.redis;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.pool2.impl.BaseObjectPoolConfig;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
@@ -25,10 +37,13 @@ import lucee.extension.io.cache.pool.RedisPoolConfig;
 import lucee.extension.io.cache.pool.RedisPoolListener;
 import lucee.extension.io.cache.pool.RedisPoolListenerNotifyOnReturn;
 import lucee.extension.io.cache.redis.InfoParser.DebugObject;
+import lucee.extension.io.cache.redis.Redis.Parser.ServerError;
 import lucee.extension.io.cache.redis.Redis.Pipeline;
 import lucee.extension.io.cache.redis.sm.SecretReciever;
 import lucee.extension.io.cache.redis.sm.SecretReciever.CredDat;
+import lucee.extension.io.cache.util.BulkDecoder;
 import lucee.extension.io.cache.util.Coder;
+import lucee.extension.io.cache.util.Compression;
 import lucee.loader.engine.CFMLEngine;
 import lucee.loader.engine.CFMLEngineFactory;
 import lucee.loader.util.Util;
@@ -38,7 +53,44 @@ import lucee.runtime.util.Cast;
 
 public class RedisCache extends CacheSupport implements Command {
 
-	private static long counter = Long.MIN_VALUE;
+	private static final AtomicLong counter = new AtomicLong(Long.MIN_VALUE);
+	private static final byte[] LPOP = "LPOP".getBytes(Coder.UTF8);
+	private static final byte[] SCAN_START = "0".getBytes(Coder.UTF8);
+	private static final String SCAN_COUNT = "1000";
+	private static final int UNLINK_CHUNK = 500;
+
+	/**
+	 * GET that sets the time to live of a value with a sliding expiration (see
+	 * {@link Coder#withIdle(byte[], int)}) to its idle time again, in the same round trip. A list is
+	 * consumed like with a plain GET that fails with WRONGTYPE.
+	 */
+	private static final String SLIDING_GET = "local t = redis.call('TYPE', KEYS[1]).ok\n"
+			+ "if t == 'list' then return redis.call('LPOP', KEYS[1]) end\n"
+			+ "if t ~= 'string' then return false end\n"
+			+ "local v = redis.call('GET', KEYS[1])\n"
+			+ "if #v >= 8 and string.byte(v, 1) == 193 and string.byte(v, 2) == 252 and string.byte(v, 4) == 241 then\n"
+			+ "  local a, b, c, d = string.byte(v, 5, 8)\n"
+			+ "  redis.call('EXPIRE', KEYS[1], ((a * 256 + b) * 256 + c) * 256 + d)\n"
+			+ "end\n"
+			+ "return v";
+	private static final String SLIDING_GET_SHA = sha1(SLIDING_GET);
+
+	/**
+	 * like {@link #SLIDING_GET} for a load into the near cache, answers with the remaining time to live
+	 * (PTTL) and the value. The time to live is false for what must not be kept locally, a value with a
+	 * sliding expiration (a local hit would not refresh it) or a consumed list.
+	 */
+	static final String SLIDING_LOAD = "local t = redis.call('TYPE', KEYS[1]).ok\n"
+			+ "if t == 'list' then return {false, redis.call('LPOP', KEYS[1])} end\n"
+			+ "if t ~= 'string' then return {false, false} end\n"
+			+ "local v = redis.call('GET', KEYS[1])\n"
+			+ "if #v >= 8 and string.byte(v, 1) == 193 and string.byte(v, 2) == 252 and string.byte(v, 4) == 241 then\n"
+			+ "  local a, b, c, d = string.byte(v, 5, 8)\n"
+			+ "  redis.call('EXPIRE', KEYS[1], ((a * 256 + b) * 256 + c) * 256 + d)\n"
+			+ "  return {false, v}\n"
+			+ "end\n"
+			+ "return {redis.call('PTTL', KEYS[1]), v}";
+	static final String SLIDING_LOAD_SHA = sha1(SLIDING_LOAD);
 
 	protected final Object TOKEN = new Object();
 
@@ -58,12 +110,112 @@ public class RedisCache extends CacheSupport implements Command {
 
 	private int databaseIndex;
 
-	private RedisPool pool;
+	private volatile RedisPool pool;
+
+	/**
+	 * Shared, pipelined connections used instead of the pool for regular cache operations and commands,
+	 * null unless enabled with the `multiplex` init argument.
+	 */
+	private RedisMultiplexer multiplexer;
+
+	/**
+	 * Slot routing over the primaries of a Redis Cluster or, with the `shards` init argument, over
+	 * independent instances ({@link RedisShards}), null unless enabled with the `cluster` or `shards`
+	 * init argument. The pool then belongs to the configured node and is only used for commands without
+	 * a key.
+	 */
+	private RedisCluster cluster;
+
+	/**
+	 * Discovery of the primary through Sentinel, null unless enabled with the `sentinels` init argument.
+	 */
+	private RedisSentinel sentinel;
+
+	/**
+	 * Routing of read only commands to the replicas, null unless enabled with the `readFrom` init
+	 * argument. Writes and the drain of the async storage always go to the primary.
+	 */
+	private RedisReplicas replicas;
+
+	/**
+	 * pools replaced after a failover, until all their connections are returned
+	 */
+	private final List<RedisPool> retired = new CopyOnWriteArrayList<>();
+	private RedisPoolConfig poolConfig;
+	private RedisPoolListener poolListener;
+	private final Object failoverLock = new Object();
+	private volatile boolean released;
+
+	/**
+	 * Local read cache invalidated by Redis (CLIENT TRACKING), null unless enabled with the
+	 * `nearCacheTracking` init argument.
+	 */
+	private NearCacheTracking tracking;
+
+	/**
+	 * Bounded local read cache (L1), null unless enabled with `nearCacheMaxEntries`/`nearCacheMaxBytes`
+	 * or `nearCacheTracking`.
+	 */
+	private LocalCache local;
+
+	/**
+	 * Pub/Sub invalidation between the local caches of all nodes, null unless enabled with the
+	 * `nearCacheInvalidation` init argument.
+	 */
+	private NearCacheInvalidation invalidation;
+
+	private String cacheName;
+
+	/**
+	 * max number of keys per MGET when entries/values are read
+	 */
+	private int mgetChunkSize = 100;
+
+	/**
+	 * how values stored with Java serialization are compressed
+	 */
+	private Compression compression = Compression.GZIP;
+
+	/**
+	 * structs, arrays, queries and dates are stored in the compact binary format instead of BSON/Java
+	 * serialization
+	 */
+	private boolean compact;
+
+	/**
+	 * values are stored in a type tagged envelope, so reading them does not need to try formats, see
+	 * {@link lucee.extension.io.cache.util.Envelope}
+	 */
+	private boolean envelope;
+
+	/**
+	 * structs stored as BSON are read as {@link lucee.extension.io.cache.util.LazyStruct}, members are
+	 * only decoded when read
+	 */
+	private boolean lazyStructs;
+
+	/**
+	 * the callers never change values read from the cache, so the near cache hands out the same decoded
+	 * value for every hit
+	 */
+	private boolean nearCacheReadOnly;
+
+	/**
+	 * bulk reads with values of at least that many bytes are decoded in parallel, 0 never
+	 */
+	private int parallelDecodeThreshold;
+
+	/**
+	 * values put with an idle time (and no time span) expire when they were not read for that long,
+	 * instead of that long after they were put
+	 */
+	private boolean sliding;
 
 	private String host;
 	private int port;
 
 	private String username;
+	private String clientName;
 	/**
 	 * Whether the near-cache (async drain thread + local read cache) is enabled.
 	 * Set from the `nearCache` init argument; defaults to true (existing behaviour).
@@ -108,6 +260,7 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public void init(Config config, String cacheName, Struct arguments) throws IOException {
+		this.cacheName = cacheName;
 		init(config, arguments);
 	}
 
@@ -120,7 +273,7 @@ public class RedisCache extends CacheSupport implements Command {
 		if (config == null) config = CFMLEngineFactory.getInstance().getThreadConfig();
 
 		async = caster.toBooleanValue(arguments.get("nearCache", null), true);
-		if (async) storage.start();
+		if (async) storage.start(caster.toIntValue(arguments.get("nearCacheWriteWorkers", null), 1));
 
 		nearCacheWriteCommitDelay = caster.toIntValue(arguments.get("nearCacheWriteCommitDelay", null), 0);
 		nearCacheWriteCommitDelay = nearCacheWriteCommitDelay <= 0 ? null : nearCacheWriteCommitDelay;
@@ -146,6 +299,9 @@ public class RedisCache extends CacheSupport implements Command {
 		password = caster.toString(arguments.get("password", null), null);
 		if (Util.isEmpty(password)) password = null;
 
+		// name of the connections in CLIENT LIST
+		clientName = caster.toString(arguments.get("clientName", null), null);
+
 		ssl = caster.toBooleanValue(arguments.get("ssl", null), false);
 
 		// secret manager
@@ -170,8 +326,28 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 
 		defaultExpire = caster.toIntValue(arguments.get("timeToLiveSeconds", null), 0);
+		mgetChunkSize = Math.max(1, caster.toIntValue(arguments.get("mgetChunkSize", null), 100));
 
 		databaseIndex = caster.toIntValue(arguments.get("databaseIndex", null), -1);
+		boolean clustered = caster.toBooleanValue(arguments.get("cluster", null), false);
+		if (clustered && databaseIndex > 0) {
+			if (log != null) log.warn("redis-cache", "databaseIndex is ignored in cluster mode, Redis Cluster only supports database 0");
+		}
+		if (clustered) databaseIndex = -1;
+		// independent instances, keys spread with a consistent hash ring
+		List<String> shards = new ArrayList<>();
+		String shardList = caster.toString(arguments.get("shards", null), null);
+		if (!Util.isEmpty(shardList, true)) {
+			if (clustered) {
+				if (log != null) log.warn("redis-cache", "shards are ignored in cluster mode");
+			}
+			else {
+				for (String shard: shardList.split(",")) {
+					if (!Util.isEmpty(shard, true)) shards.add(shard.trim());
+				}
+			}
+		}
+		String distributed = clustered ? "cluster mode" : (shards.isEmpty() ? null : "sharded mode");
 		String logName = caster.toString(arguments.get("log", null), null);
 		if (!Util.isEmpty(logName, true) && config != null) {
 			logName = logName.trim();
@@ -183,13 +359,74 @@ public class RedisCache extends CacheSupport implements Command {
 					+ idleTimeout + ";username:" + username + ";password:" + password + ";defaultExpire:" + defaultExpire + ";databaseIndex:" + databaseIndex + ";");
 		}
 
+		// gzip (default), deflate, none or a registered codec
+		String codec = caster.toString(arguments.get("compression", null), null);
+		compression = Compression.getInstance(codec, caster.toIntValue(arguments.get("compressionLevel", null), -1),
+				caster.toIntValue(arguments.get("compressionThreshold", null), 512));
+		if (compression == null) {
+			if (log != null) log.warn("redis-cache", "there is no compression codec [" + codec + "], values are compressed with gzip");
+			compression = Compression.getInstance("gzip", -1, caster.toIntValue(arguments.get("compressionThreshold", null), 512));
+		}
+
+		// bson (default) or compact
+		String serialization = caster.toString(arguments.get("serialization", null), null);
+		compact = "compact".equalsIgnoreCase(serialization == null ? null : serialization.trim());
+		if (!compact && !Util.isEmpty(serialization, true) && !"bson".equalsIgnoreCase(serialization.trim())) {
+			if (log != null) log.warn("redis-cache", "invalid value [" + serialization + "] for serialization, valid values are [bson, compact]");
+		}
+		// only enable it when all nodes sharing the cache run a version that can read it
+		envelope = caster.toBooleanValue(arguments.get("envelope", null), false);
+		lazyStructs = caster.toBooleanValue(arguments.get("lazyStructs", null), false);
+		nearCacheReadOnly = caster.toBooleanValue(arguments.get("nearCacheReadOnly", null), false);
+		parallelDecodeThreshold = caster.toIntValue(arguments.get("parallelDecodeThreshold", null), 256 * 1024);
+		sliding = caster.toBooleanValue(arguments.get("slidingExpiration", null), false);
+
+		// Sentinel, the primary it reports wins over host/port
+		List<RedisFactory> sentinels = new ArrayList<>();
+		String sentinelList = caster.toString(arguments.get("sentinels", null), null);
+		if (!Util.isEmpty(sentinelList, true)) {
+			String sentinelUsername = caster.toString(arguments.get("sentinelUsername", null), null);
+			String sentinelPassword = caster.toString(arguments.get("sentinelPassword", null), null);
+			for (String s: sentinelList.split(",")) {
+				if (Util.isEmpty(s, true)) continue;
+				s = s.trim();
+				int index = s.lastIndexOf(':');
+				String h = index == -1 ? s : s.substring(0, index).trim();
+				int p = index == -1 ? 26379 : caster.toIntValue(s.substring(index + 1).trim(), 26379);
+				// sentinels do not know databases and the connection only sends commands we wait for
+				sentinels.add(new RedisFactory(cl, h, p, sentinelUsername, sentinelPassword, ssl, socketTimeout, 0L, 0L, -1, log));
+			}
+		}
+		if (!sentinels.isEmpty()) {
+			if (distributed != null) {
+				if (log != null) log.warn("redis-cache", "sentinels are ignored in " + distributed);
+			}
+			else {
+				String masterName = caster.toString(arguments.get("sentinelMasterName", null), null);
+				if (Util.isEmpty(masterName, true)) masterName = caster.toString(arguments.get("masterName", null), null);
+				if (Util.isEmpty(masterName, true)) masterName = "mymaster";
+				sentinel = new RedisSentinel(sentinels, masterName.trim(), this::failover, log);
+				try {
+					String[] addr = sentinel.resolve();
+					host = addr[0];
+					port = caster.toIntValue(addr[1], port);
+				}
+				catch (IOException e) {
+					// we go with host/port, the subscriber switches as soon as a sentinel answers
+					if (log != null) log.error("redis-cache", e);
+				}
+			}
+		}
+
 		RedisPoolListener listener = new RedisPoolListenerNotifyOnReturn(token);
+		poolListener = listener;
+		poolConfig = getPoolConfig(arguments);
 
 		if (username == null && secretName != null) {
 			CredDat cred = SecretReciever.getCredential(secretName, region, accessKeyId, secretKey, false, false);
 			pool = new RedisPool(
-					new RedisFactory(cl, choose(host, cred.host), choose(port, cred.port), cred.user, cred.pass, ssl, socketTimeout, idleTimeout, liveTimeout, databaseIndex, log),
-					getPoolConfig(arguments), listener);
+					new RedisFactory(cl, choose(host, cred.host), choose(port, cred.port), cred.user, cred.pass, ssl, socketTimeout, idleTimeout, liveTimeout, databaseIndex, clientName, log),
+					poolConfig, listener);
 
 			// validate a connection
 			Redis conn = null;
@@ -200,16 +437,120 @@ public class RedisCache extends CacheSupport implements Command {
 				// in case the connection does not work, we force an update on the credentials loaded from SM
 				cred = SecretReciever.getCredential(secretName, region, accessKeyId, secretKey, true, true);
 				pool = new RedisPool(new RedisFactory(cl, choose(host, cred.host), choose(port, cred.port), cred.user, cred.pass, ssl, socketTimeout, idleTimeout, liveTimeout,
-						databaseIndex, log), getPoolConfig(arguments), listener);
+						databaseIndex, clientName, log), poolConfig, listener);
 			}
 			finally {
 				releaseConnection(conn);
 			}
 
 		}
-		else pool = new RedisPool(new RedisFactory(cl, host, port, username, password, ssl, socketTimeout, idleTimeout, liveTimeout, databaseIndex, log), getPoolConfig(arguments),
+		else pool = new RedisPool(new RedisFactory(cl, host, port, username, password, ssl, socketTimeout, idleTimeout, liveTimeout, databaseIndex, clientName, log), poolConfig,
 				listener);
 
+		if (clustered) {
+			List<String> seeds = new ArrayList<>();
+			String nodes = caster.toString(arguments.get("clusterNodes", null), null);
+			if (!Util.isEmpty(nodes, true)) {
+				for (String node: nodes.split(",")) {
+					if (!Util.isEmpty(node, true)) seeds.add(node.trim());
+				}
+			}
+			cluster = new RedisCluster(pool, seeds, poolConfig, listener, log);
+			try {
+				cluster.refresh();
+			}
+			catch (IOException e) {
+				// not reachable right now, the first command tries again
+				if (log != null) log.error("redis-cache", e);
+			}
+		}
+		else if (!shards.isEmpty()) {
+			cluster = new RedisShards(pool, shards, caster.toIntValue(arguments.get("shardVirtualNodes", null), 160), poolConfig, listener, log);
+			cluster.refresh();
+		}
+
+		if (caster.toBooleanValue(arguments.get("multiplex", null), false)) {
+			if (cluster != null) {
+				if (log != null) log.warn("redis-cache", "multiplex is ignored in " + distributed);
+			}
+			else multiplexer = new RedisMultiplexer((RedisFactory) pool.getFactory(), caster.toIntValue(arguments.get("multiplexConnections", null), 1), log);
+		}
+
+		// primary (default), replica, replicaPreferred or nearest
+		String readFrom = caster.toString(arguments.get("readFrom", null), null);
+		int readMode = RedisReplicas.toMode(readFrom);
+		if (readMode == -1) {
+			if (log != null) log.warn("redis-cache", "invalid value [" + readFrom + "] for readFrom, valid values are [primary, replica, replicaPreferred, nearest]");
+		}
+		else if (readMode != RedisReplicas.PRIMARY) {
+			if (cluster != null) {
+				if (log != null) log.warn("redis-cache", "readFrom is ignored in " + distributed);
+			}
+			else {
+				List<String> addresses = new ArrayList<>();
+				String list = caster.toString(arguments.get("replicas", null), null);
+				if (!Util.isEmpty(list, true)) {
+					for (String addr: list.split(",")) {
+						if (!Util.isEmpty(addr, true)) addresses.add(addr.trim());
+					}
+				}
+				replicas = new RedisReplicas((RedisFactory) pool.getFactory(), addresses, readMode, caster.toLongValue(arguments.get("readFromMaxLag", null), 0L),
+						caster.toLongValue(arguments.get("readFromCheckInterval", null), 1000L), poolConfig, listener, log);
+				replicas.start();
+			}
+		}
+
+		long maxEntries = caster.toLongValue(arguments.get("nearCacheMaxEntries", null), 0L);
+		long maxBytes = caster.toLongValue(arguments.get("nearCacheMaxBytes", null), 0L);
+
+		// none (default), default/true or bcast
+		String trackingMode = caster.toString(arguments.get("nearCacheTracking", null), null);
+		if (!Util.isEmpty(trackingMode, true) && cluster != null) {
+			if (log != null) log.warn("redis-cache", "nearCacheTracking is not supported in " + distributed + ", use nearCacheInvalidation instead");
+		}
+		else if (!Util.isEmpty(trackingMode, true)) {
+			trackingMode = trackingMode.trim().toLowerCase();
+			boolean bcast = "bcast".equals(trackingMode) || "broadcast".equals(trackingMode);
+			if (bcast || "default".equals(trackingMode) || caster.toBooleanValue(trackingMode, false)) {
+				LocalCache lc = new LocalCache(maxEntries <= 0 && maxBytes <= 0 ? 10000L : maxEntries, maxBytes);
+				tracking = new NearCacheTracking((RedisFactory) pool.getFactory(), bcast, toPrefixes(caster.toString(arguments.get("nearCacheTrackingPrefixes", null), null)), lc,
+						sliding, log);
+				if (tracking.start()) local = lc;
+				else tracking = null;
+			}
+		}
+		// for servers without tracking
+		boolean pubsub = false;
+		if (caster.toBooleanValue(arguments.get("nearCacheInvalidation", null), false)) {
+			if (tracking == null) pubsub = true;
+			else if (log != null) log.warn("redis-cache", "nearCacheInvalidation is ignored when nearCacheTracking is enabled");
+		}
+		if (pubsub) {
+			local = new LocalCache(maxEntries <= 0 && maxBytes <= 0 ? 10000L : maxEntries, maxBytes);
+			String channel = caster.toString(arguments.get("nearCacheInvalidationChannel", null), null);
+			if (Util.isEmpty(channel, true)) channel = "lucee:redis-cache:invalidate:" + databaseIndex + ":" + (Util.isEmpty(cacheName, true) ? "default" : cacheName.trim().toLowerCase());
+			invalidation = new NearCacheInvalidation((RedisFactory) pool.getFactory(), channel.trim(), local, caster.toLongValue(arguments.get("nearCacheInvalidationDelay", null), 10L), log);
+			invalidation.start();
+		}
+		// without tracking or invalidation, other nodes cannot invalidate what we keep locally
+		else if (local == null && (maxEntries > 0 || maxBytes > 0)) {
+			if (async) local = new LocalCache(maxEntries, maxBytes);
+			else if (log != null) log.warn("redis-cache", "nearCacheMaxEntries/nearCacheMaxBytes are ignored when nearCache=false and neither nearCacheTracking nor nearCacheInvalidation is enabled");
+		}
+
+		// last, a failover replaces everything set up above
+		if (sentinel != null) sentinel.start();
+	}
+
+	private static String[] toPrefixes(String list) {
+		List<String> prefixes = new ArrayList<>();
+		if (!Util.isEmpty(list, true)) {
+			for (String prefix: list.split(",")) {
+				// keys are stored lower case
+				if (!Util.isEmpty(prefix, true)) prefixes.add(Coder.toStringKey(prefix));
+			}
+		}
+		return prefixes.toArray(new String[prefixes.size()]);
 	}
 
 	protected RedisPoolConfig getPoolConfig(Struct arguments) throws IOException {
@@ -263,29 +604,42 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public CacheEntry getCacheEntry(String skey) throws IOException {
-		long cnt = counter();
 		byte[] bkey = Coder.toKey(skey);
 		if (async) {
+			// a write for this key still pending is served from here, so there is nothing to wait for
 			NearCacheEntry val = storage.get(bkey);
 			if (val != null) {
-				return val.copy(cl);
+				return val.copy(cl, lazyStructs, nearCacheReadOnly);
 			}
-			storage.doJoin(cnt, true);
 		}
-		Redis conn = getConnection();
+		if (local != null) {
+			NearCacheEntry entry = getLocal(bkey);
+			if (entry != null) return entry.copy(cl, lazyStructs, nearCacheReadOnly);
+			byte[] val = load(bkey);
+			if (val == null) throw new IOException("Cache key [" + skey + "] does not exists");
+			return new RedisCacheEntry(this, bkey, val, cl, lazyStructs);
+		}
+		// a sliding read changes the time to live, a replica cannot do that
+		Redis conn = replicas == null || sliding ? null : replicas.borrow();
+		if (conn == null && routed()) {
+			byte[] val = getRouted(bkey);
+			if (val == null) throw new IOException("Cache key [" + skey + "] does not exists");
+			return new RedisCacheEntry(this, bkey, val, cl, lazyStructs);
+		}
+		if (conn == null) conn = getConnection();
 		try {
 			byte[] val = null;
 			try {
-				val = (byte[]) conn.call("GET", bkey);
+				val = get(conn, bkey);
 			}
 			catch (Exception e) {
 				if (log != null) log.error("redis-cache", e);
 				String msg = e.getMessage() + "";
-				if (msg.startsWith("WRONGTYPE")) val = (byte[]) conn.call("LPOP", bkey);
+				if (msg.startsWith("WRONGTYPE")) val = lpop(conn, bkey);
 			}
 			if (val == null) throw new IOException("Cache key [" + skey + "] does not exists");
 
-			return new RedisCacheEntry(this, bkey, Coder.evaluate(cl, val), val.length);
+			return new RedisCacheEntry(this, bkey, val, cl, lazyStructs);
 		}
 		catch (SocketException se) {
 			invalidateConnection(conn);
@@ -302,6 +656,163 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 	}
 
+	/**
+	 * consumes the head of a list stored at the key, a replica cannot do that, so it is done by the
+	 * primary.
+	 */
+	private byte[] lpop(Redis conn, byte[] bkey) throws IOException {
+		if (replicas != null && replicas.owner(conn) != null) return (byte[]) command(new byte[][] { LPOP, bkey }, false);
+		return (byte[]) conn.call("LPOP", bkey);
+	}
+
+	/**
+	 * @return a connection to a replica if reads go there (see the `readFrom` init argument), otherwise
+	 *         one to the primary
+	 */
+	private Redis getReadConnection() throws IOException {
+		if (replicas != null) {
+			Redis conn = replicas.borrow();
+			if (conn != null) return conn;
+		}
+		return getConnection();
+	}
+
+	private byte[] getRouted(byte[] bkey) throws IOException {
+		if (sliding) return (byte[]) script(null, SLIDING_GET, SLIDING_GET_SHA, bkey);
+		try {
+			return (byte[]) route(bkey, "GET", bkey);
+		}
+		catch (IOException e) {
+			if (!(e.getMessage() + "").startsWith("WRONGTYPE")) throw e;
+			if (log != null) log.error("redis-cache", e);
+			return (byte[]) route(bkey, "LPOP", bkey);
+		}
+	}
+
+	/**
+	 * GET, with a sliding expiration the script that also refreshes the time to live.
+	 */
+	private byte[] get(Redis conn, byte[] bkey) throws IOException {
+		if (!sliding) return (byte[]) conn.call("GET", bkey);
+		return (byte[]) script(conn, SLIDING_GET, SLIDING_GET_SHA, bkey);
+	}
+
+	/**
+	 * runs a script for a single key, it is sent by its SHA and only when Redis does not know it yet
+	 * (NOSCRIPT) as a whole, what also loads it.
+	 *
+	 * @param conn null to route the call, see {@link #routed()}
+	 */
+	private Object script(Redis conn, String script, String sha, byte[] bkey) throws IOException {
+		try {
+			return conn == null ? route(bkey, "EVALSHA", sha, "1", bkey) : conn.call("EVALSHA", sha, "1", bkey);
+		}
+		catch (IOException e) {
+			if (!(e.getMessage() + "").startsWith("NOSCRIPT")) throw e;
+			return conn == null ? route(bkey, "EVAL", script, "1", bkey) : conn.call("EVAL", script, "1", bkey);
+		}
+	}
+
+	private static String sha1(String str) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b: MessageDigest.getInstance("SHA-1").digest(str.getBytes(Coder.UTF8))) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			return sb.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return true if commands go through the multiplexer or the cluster instead of a connection
+	 *         borrowed from the pool
+	 */
+	private boolean routed() {
+		return multiplexer != null || cluster != null;
+	}
+
+	/**
+	 * executes a command through the multiplexer or on the cluster node serving the key, see
+	 * {@link #routed()}.
+	 */
+	private Object route(byte[] bkey, Object... args) throws IOException {
+		if (cluster != null) return cluster.call(bkey, args);
+		return multiplexer.call(args);
+	}
+
+	private List<Object> route(byte[] bkey, List<Object[]> commands) throws IOException {
+		if (cluster != null) return cluster.pipeline(bkey, commands);
+		return multiplexer.pipeline(commands);
+	}
+
+	private NearCacheEntry getLocal(byte[] bkey) {
+		if (tracking != null) return tracking.get(bkey);
+		// we may have missed invalidations
+		if (invalidation != null && !invalidation.isConnected()) return null;
+		return local.get(bkey);
+	}
+
+	/**
+	 * reads a value together with its remaining time to live and keeps it in the local cache.
+	 */
+	private byte[] load(byte[] bkey) throws IOException {
+		try {
+			if (tracking != null) return tracking.load(bkey);
+
+			long stamp = local.stamp(bkey);
+			List<Object> res;
+			if (sliding) {
+				// a value with a sliding expiration is not kept locally, reads have to refresh it
+				Redis conn = routed() ? null : getConnection();
+				try {
+					res = (List<Object>) script(conn, SLIDING_LOAD, SLIDING_LOAD_SHA, bkey);
+				}
+				catch (Exception e) {
+					if (conn != null && !(e instanceof ServerError)) {
+						invalidateConnection(conn);
+						conn = null;
+					}
+					throw engine.getExceptionUtil().toIOException(e);
+				}
+				finally {
+					releaseConnection(conn);
+				}
+			}
+			// GET last, so an error for it (WRONGTYPE) is the last reply
+			else if (routed()) {
+				res = route(bkey, Arrays.asList(new Object[] { "PTTL", bkey }, new Object[] { "GET", bkey }));
+			}
+			else {
+				Redis conn = getConnection();
+				try {
+					res = conn.pipeline().call("PTTL", bkey).call("GET", bkey).read();
+				}
+				catch (Exception e) {
+					if (!(e.getMessage() + "").startsWith("WRONGTYPE")) {
+						invalidateConnection(conn);
+						conn = null;
+					}
+					throw engine.getExceptionUtil().toIOException(e);
+				}
+				finally {
+					releaseConnection(conn);
+				}
+			}
+			byte[] val = res.get(1) instanceof byte[] ? (byte[]) res.get(1) : null;
+			if (val != null) local.put(bkey, new NearCacheEntry(bkey, null, 0, 0, val), LocalCache.toExpires(res.get(0)), stamp);
+			return val;
+		}
+		catch (IOException e) {
+			if (!(e.getMessage() + "").startsWith("WRONGTYPE")) throw e;
+			if (log != null) log.error("redis-cache", e);
+			// a list is consumed, nothing we can keep locally
+			return (byte[]) command(new byte[][] { LPOP, bkey }, false);
+		}
+	}
+
 	public Struct getPoolInfo() {
 		while (pool == null) {
 			if (log != null) log.debug("redis-cache", "waiting for the pool");
@@ -342,38 +853,171 @@ public class RedisCache extends CacheSupport implements Command {
 		data.setEL("ReturnedCount", pool.getReturnedCount());
 		data.setEL("SoftMinEvictableIdleTimeMillis", pool.getSoftMinEvictableIdleTimeMillis());
 		data.setEL("TimeBetweenEvictionRunsMillis", pool.getTimeBetweenEvictionRunsMillis());
+		data.setEL("MultiplexConnections", multiplexer == null ? 0 : multiplexer.size());
+		data.setEL("ClusterNodes", cluster == null ? 0 : cluster.size());
+		data.setEL("ReplicaNodes", replicas == null ? 0 : replicas.size());
+		data.setEL("NearCacheEntries", local == null ? 0 : local.size());
+		data.setEL("NearCacheBytes", local == null ? 0 : local.bytes());
 
 		return data;
 	}
 
+	/**
+	 * Size and idle time of a value. DEBUG OBJECT is disabled on most servers since Redis 7 and on
+	 * managed services, from Redis 4.0 on MEMORY USAGE and OBJECT IDLETIME are asked instead, in one
+	 * round trip. The size is then the memory the value uses in Redis.
+	 */
 	DebugObject getDebugObject(Redis conn, byte[] bkey) throws IOException {
-		Object res = conn.call("DEBUG", "OBJECT", bkey);
-		DebugObject deObj = null;
-		if (res instanceof byte[]) {
-			deObj = InfoParser.parseDebugObject(null, new String((byte[]) res));
+		if (capabilities().memoryUsage()) {
+			conn.write("MEMORY", "USAGE", bkey);
+			conn.write("OBJECT", "IDLETIME", bkey);
+			conn.flush();
+			Object size;
+			ServerError err = null;
+			try {
+				size = conn.read();
+			}
+			catch (ServerError e) {
+				// read the other reply first, so the connection stays usable
+				size = null;
+				err = e;
+			}
+			Object idle;
+			try {
+				idle = conn.read();
+			}
+			catch (ServerError e) {
+				// not available with an LFU maxmemory-policy
+				idle = null;
+			}
+			if (err != null) throw err;
+			return toDebugObject(size, idle);
 		}
+		return toDebugObject(conn.call("DEBUG", "OBJECT", bkey));
+	}
+
+	/**
+	 * like {@link #getDebugObject(Redis, byte[])} on the node serving the key in cluster mode or with
+	 * shards, on a connection of the pool otherwise.
+	 */
+	DebugObject getDebugObject(byte[] bkey) throws IOException {
+		if (cluster != null) {
+			// follows MOVED/ASK, the key usually lives on another node than the configured one
+			if (capabilities().memoryUsage()) {
+				Object size = cluster.call(bkey, "MEMORY", "USAGE", bkey);
+				Object idle;
+				try {
+					idle = cluster.call(bkey, "OBJECT", "IDLETIME", bkey);
+				}
+				catch (ServerError e) {
+					// not available with an LFU maxmemory-policy
+					idle = null;
+				}
+				return toDebugObject(size, idle);
+			}
+			return toDebugObject(cluster.call(bkey, "DEBUG", "OBJECT", bkey));
+		}
+		Redis conn = getConnection();
+		try {
+			return getDebugObject(conn, bkey);
+		}
+		catch (ServerError e) {
+			// an error reply, the connection is still fine
+			throw e;
+		}
+		catch (Exception e) {
+			invalidateConnection(conn);
+			conn = null;
+			throw engine.getExceptionUtil().toIOException(e);
+		}
+		finally {
+			releaseConnectionEL(conn);
+		}
+	}
+
+	@Override
+	Log getLog() {
+		return log;
+	}
+
+	private DebugObject toDebugObject(Object size, Object idle) {
+		if (size == null) return null;
+		DebugObject deObj = new DebugObject();
+		deObj.serializedLength = engine.getCastUtil().toIntValue(size, 0);
+		deObj.lruSecondsIdle = engine.getCastUtil().toIntValue(idle, 0);
 		return deObj;
 	}
 
+	private static DebugObject toDebugObject(Object res) {
+		if (res instanceof byte[]) return InfoParser.parseDebugObject(null, new String((byte[]) res));
+		return null;
+	}
+
+	/**
+	 * @return the version and features of the server, see {@link Capabilities}, in cluster mode or with
+	 *         shards the ones all nodes support (the configured host need not be one of them)
+	 */
+	Capabilities capabilities() {
+		if (cluster != null) return cluster.capabilities();
+		Capabilities caps = ((RedisFactory) pool.getFactory()).getCapabilities();
+		return caps == null ? Capabilities.UNKNOWN : caps;
+	}
+
+	/**
+	 * @return UNLINK if the server knows it (4.0), DEL otherwise
+	 */
+	private String delete() {
+		return capabilities().unlink() ? "UNLINK" : "DEL";
+	}
+
 	@Override
 	public CacheEntry getCacheEntry(String skey, CacheEntry defaultValue) {
-		long cnt = counter();
 		byte[] bkey = Coder.toKey(skey);
 		if (async) {
 			NearCacheEntry val = storage.get(bkey);
 			if (val != null) {
 				try {
-					return val.copy(cl);
+					return val.copy(cl, lazyStructs, nearCacheReadOnly);
 				}
 				catch (IOException e) {
 					return defaultValue;
 				}
 			}
-			storage.doJoin(cnt, true);
+		}
+		if (local != null) {
+			try {
+				NearCacheEntry entry = getLocal(bkey);
+				if (entry != null) return entry.copy(cl, lazyStructs, nearCacheReadOnly);
+				byte[] val = load(bkey);
+				if (val == null) return defaultValue;
+				return new RedisCacheEntry(this, bkey, val, cl, lazyStructs);
+			}
+			catch (Exception e) {
+				if (log != null) log.error("redis-cache", e);
+				return defaultValue;
+			}
 		}
 		Redis conn = null;
 		try {
-			conn = getConnection();
+			if (replicas != null && !sliding) conn = replicas.borrow();
+		}
+		catch (IOException e1) {
+			if (log != null) log.error("redis-cache", e1);
+			return defaultValue;
+		}
+		if (conn == null && routed()) {
+			try {
+				byte[] val = getRouted(bkey);
+				if (val == null) return defaultValue;
+				return new RedisCacheEntry(this, bkey, val, cl, lazyStructs);
+			}
+			catch (Exception e) {
+				if (log != null) log.error("redis-cache", e);
+				return defaultValue;
+			}
+		}
+		try {
+			if (conn == null) conn = getConnection();
 		}
 		catch (IOException e1) {
 			if (log != null) log.error("redis-cache", e1);
@@ -382,16 +1026,16 @@ public class RedisCache extends CacheSupport implements Command {
 		try {
 			byte[] val = null;
 			try {
-				val = (byte[]) conn.call("GET", bkey);
+				val = get(conn, bkey);
 			}
 			catch (Exception e) {
 				if (log != null) log.error("redis-cache", e);
 				String msg = e.getMessage() + "";
-				if (msg.startsWith("WRONGTYPE")) val = (byte[]) conn.call("LPOP", bkey);
+				if (msg.startsWith("WRONGTYPE")) val = lpop(conn, bkey);
 			}
 			if (val == null) return defaultValue;
 
-			return new RedisCacheEntry(this, bkey, Coder.evaluate(cl, val), val.length);
+			return new RedisCacheEntry(this, bkey, val, cl, lazyStructs);
 		}
 		catch (Exception e) {
 			if (log != null) log.error("redis-cache", e);
@@ -407,7 +1051,32 @@ public class RedisCache extends CacheSupport implements Command {
 	@Override
 	public void put(String key, Object val, Long idle, Long live) throws IOException {
 		long cnt = counter();
-		// expires
+		int exp = expires(idle, live);
+		byte[] bkey = Coder.toKey(key);
+		if (local != null) local.invalidate(bkey);
+
+		int slide = slide(idle, live, exp);
+		if (async) {
+			NearCacheEntry entry = storage.put(bkey, val, exp, slide, cnt);
+			// with tracking, only what was read through the tracked connection is kept locally, a value with a
+			// sliding expiration never, a local hit would not refresh its time to live
+			if (local != null && tracking == null && slide == 0) local.put(bkey, entry, exp > 0 ? System.currentTimeMillis() + exp * 1000L : 0L);
+		}
+		else putBytes(bkey, Coder.withIdle(Coder.serialize(val, compression, compact, envelope), slide), exp);
+	}
+
+	/**
+	 * @return the idle time to record with the value if it has a sliding expiration, 0 otherwise
+	 */
+	private int slide(Long idle, Long live, int exp) {
+		if (!sliding || idle == null || idle.longValue() <= 0) return 0;
+		return live != null && live.longValue() > 0 ? 0 : exp;
+	}
+
+	/**
+	 * @return the time to live in seconds, 0 for none
+	 */
+	private int expires(Long idle, Long live) {
 		int exp;
 		if (live != null && live.longValue() > 0) {
 			exp = (int) (live.longValue() / 1000);
@@ -420,23 +1089,31 @@ public class RedisCache extends CacheSupport implements Command {
 		else {
 			exp = defaultExpire;
 		}
-		byte[] bkey = Coder.toKey(key);
-
-		if (async) {
-			storage.put(bkey, val, exp, cnt);
-		}
-		else put(bkey, val, exp);
-	}
-
-	private void put(byte[] bkey, Object val, int exp) throws IOException {
-		putBytes(bkey, Coder.serialize(val), exp);
+		return exp;
 	}
 
 	void putBytes(byte[] bkey, byte[] serialized, int exp) throws IOException {
+		boolean setEx = capabilities().setEx();
+		if (routed()) {
+			if (exp > 0 && setEx) {
+				route(bkey, "SET", bkey, serialized, "EX", Integer.toString(exp));
+			}
+			else if (exp > 0) {
+				route(bkey, Arrays.asList(new Object[] { "SET", bkey, serialized }, new Object[] { "EXPIRE", bkey, Integer.toString(exp) }));
+			}
+			else {
+				route(bkey, "SET", bkey, serialized);
+			}
+			if (invalidation != null) invalidation.publish(bkey);
+			return;
+		}
 
 		Redis conn = getConnection();
 		try {
-			if (exp > 0) {
+			if (exp > 0 && setEx) {
+				conn.call("SET", bkey, serialized, "EX", Integer.toString(exp));
+			}
+			else if (exp > 0) {
 				conn.pipeline().call("SET", bkey, serialized).call("EXPIRE", bkey, Integer.toString(exp)).read();
 			}
 			else {
@@ -451,6 +1128,7 @@ public class RedisCache extends CacheSupport implements Command {
 		finally {
 			releaseConnection(conn);
 		}
+		if (invalidation != null) invalidation.publish(bkey);
 	}
 
 	@Override
@@ -460,7 +1138,10 @@ public class RedisCache extends CacheSupport implements Command {
 			NearCacheEntry val = storage.get(bkey);
 			if (val != null) return true;
 		}
-		Redis conn = getConnection();
+		if (local != null && getLocal(bkey) != null) return true;
+		Redis conn = replicas == null ? null : replicas.borrow();
+		if (conn == null && routed()) return engine.getCastUtil().toBooleanValue(route(bkey, "EXISTS", bkey), false);
+		if (conn == null) conn = getConnection();
 		try {
 			return engine.getCastUtil().toBooleanValue(conn.call("EXISTS", bkey));
 		}
@@ -476,11 +1157,151 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public boolean remove(String key) throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		byte[] bkey = Coder.toKey(key);
+		// a pending write must not bring the key back after the DEL
+		if (async) storage.join(bkey);
+		if (local != null) local.invalidate(bkey);
+		boolean removed;
+		String del = delete();
+		if (routed()) removed = engine.getCastUtil().toBooleanValue(route(bkey, del, bkey), false);
+		else {
+			Redis conn = getConnection();
+			try {
+				removed = engine.getCastUtil().toBooleanValue(conn.call(del, bkey));
+			}
+			catch (Exception e) {
+				invalidateConnection(conn);
+				conn = null;
+				throw engine.getExceptionUtil().toIOException(e);
+			}
+			finally {
+				releaseConnection(conn);
+			}
+		}
+		if (removed && invalidation != null) invalidation.publish(bkey);
+		return removed;
+	}
 
-		Redis conn = getConnection();
+	public boolean remove(String[] keys) throws IOException {
+		if (keys == null || keys.length == 0) return false;
+		byte[][] bkeys = Coder.toKeys(keys);
+		if (async) {
+			for (byte[] bkey: bkeys) {
+				storage.join(bkey);
+			}
+		}
+		if (local != null) {
+			for (byte[] bkey: bkeys) {
+				local.invalidate(bkey);
+			}
+		}
+		boolean removed;
+		String del = delete();
+		if (cluster != null) {
+			// keys of different slots (nodes with shards) cannot be removed with a single command
+			List<byte[]> routing = new ArrayList<>();
+			List<Object[]> commands = new ArrayList<>();
+			for (List<byte[]> group: cluster.group(Arrays.asList(bkeys), UNLINK_CHUNK)) {
+				routing.add(group.get(0));
+				commands.add(new Object[] { del, group });
+			}
+			long count = 0;
+			for (Object res: cluster.pipeline(routing, commands)) {
+				count += engine.getCastUtil().toLongValue(res, 0L);
+			}
+			removed = count > 0;
+		}
+		else if (multiplexer != null) removed = engine.getCastUtil().toBooleanValue(multiplexer.call(del, bkeys), false);
+		else {
+			Redis conn = getConnection();
+			try {
+				removed = engine.getCastUtil().toBooleanValue(conn.call(del, bkeys));
+			}
+			catch (Exception e) {
+				invalidateConnection(conn);
+				conn = null;
+				throw engine.getExceptionUtil().toIOException(e);
+			}
+			finally {
+				releaseConnection(conn);
+			}
+		}
+		if (removed && invalidation != null) {
+			for (byte[] bkey: bkeys) {
+				invalidation.publish(bkey);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Reads the values of all keys with as few round trips as possible. Pending writes and the near
+	 * cache are asked first, the rest is read with MGET in chunks of {@link #mgetChunkSize} keys and
+	 * decoded like {@link #getCacheEntry(String)} does, in parallel for big results (see
+	 * {@link BulkDecoder}). Values read from Redis are not kept in the near cache, MGET does not tell
+	 * their time to live.
+	 *
+	 * @return the values of the keys that exist, in the order of the keys
+	 */
+	public Map<String, Object> getAll(Collection<String> keys) throws IOException {
+		Map<String, Object> result = new LinkedHashMap<>();
+		if (keys == null || keys.isEmpty()) return result;
+
+		Map<ByteArrayWrapper, Object> found = new HashMap<>();
+		Map<ByteArrayWrapper, byte[]> missing = new LinkedHashMap<>();
+		for (String key: keys) {
+			byte[] bkey = Coder.toKey(key);
+			ByteArrayWrapper wrapper = new ByteArrayWrapper(bkey);
+			if (found.containsKey(wrapper) || missing.containsKey(wrapper)) continue;
+			NearCacheEntry entry = async ? storage.get(bkey) : null;
+			if (entry == null && local != null) entry = getLocal(bkey);
+			if (entry != null) found.put(wrapper, entry.copy(cl, lazyStructs, nearCacheReadOnly).getValue());
+			else missing.put(wrapper, bkey);
+		}
+
+		if (!missing.isEmpty()) {
+			List<byte[]> bkeys = new ArrayList<>(missing.values());
+			// the values are aligned with bkeys, that may have been reordered
+			List<byte[]> values = mget(bkeys);
+			BulkDecoder decoder = BulkDecoder.decode(cl, values, lazyStructs, parallelDecodeThreshold);
+			for (int i = 0; i < decoder.size(); i++) {
+				if (values.get(i) != null) found.put(new ByteArrayWrapper(bkeys.get(i)), decoder.get(i));
+			}
+		}
+
+		for (String key: keys) {
+			ByteArrayWrapper wrapper = new ByteArrayWrapper(Coder.toKey(key));
+			if (found.containsKey(wrapper)) result.put(key, found.get(wrapper));
+		}
+		return result;
+	}
+
+	/**
+	 * reads the keys with MGET on any kind of connection, see {@link #mget(Redis, List)}
+	 */
+	private List<byte[]> mget(List<byte[]> keys) throws IOException {
+		if (routed()) {
+			List<byte[]> routing = new ArrayList<>();
+			List<Object[]> commands = new ArrayList<>();
+			List<List<byte[]>> chunks = chunks(keys, mgetChunkSize);
+			for (List<byte[]> chunk: chunks) {
+				routing.add(chunk.get(0));
+				commands.add(new Object[] { "MGET", chunk });
+			}
+			List<Object> res = cluster != null ? cluster.pipeline(routing, commands) : multiplexer.pipeline(commands);
+			List<byte[]> ordered = new ArrayList<>(keys.size());
+			List<byte[]> values = new ArrayList<>(keys.size());
+			for (int i = 0; i < chunks.size(); i++) {
+				ordered.addAll(chunks.get(i));
+				values.addAll((List<byte[]>) res.get(i));
+			}
+			keys.clear();
+			keys.addAll(ordered);
+			return values;
+		}
+		Redis conn = getReadConnection();
 		try {
-			return engine.getCastUtil().toBooleanValue(conn.call("DEL", Coder.toKey(key)));
+			return mget(conn, keys);
 		}
 		catch (Exception e) {
 			invalidateConnection(conn);
@@ -492,33 +1313,95 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 	}
 
-	public boolean remove(String[] keys) throws IOException {
-		if (keys == null || keys.length == 0) return false;
-		if (async) storage.doJoin(counter(), false);
-		Redis conn = getConnection();
-		try {
-			return engine.getCastUtil().toBooleanValue(conn.call("DEL", Coder.toKeys(keys)));
+	/**
+	 * Writes all values with one pipelined SET ... EX per value instead of a round trip for each. With
+	 * asynchronous writes (the near cache) the values are queued like with
+	 * {@link #put(String, Object, Long, Long)}.
+	 *
+	 * @param idle see {@link #put(String, Object, Long, Long)}
+	 * @param live see {@link #put(String, Object, Long, Long)}
+	 */
+	public void putAll(Map<String, Object> values, Long idle, Long live) throws IOException {
+		if (values == null || values.isEmpty()) return;
+		int exp = expires(idle, live);
+		if (async) {
+			for (Map.Entry<String, Object> e: values.entrySet()) {
+				put(e.getKey(), e.getValue(), idle, live);
+			}
+			return;
+		}
+
+		boolean setEx = capabilities().setEx();
+		int slide = slide(idle, live, exp);
+		List<byte[]> keys = new ArrayList<>(values.size());
+		List<Object[]> commands = new ArrayList<>(values.size());
+		for (Map.Entry<String, Object> e: values.entrySet()) {
+			byte[] bkey = Coder.toKey(e.getKey());
+			if (local != null) local.invalidate(bkey);
+			byte[] serialized = Coder.withIdle(Coder.serialize(e.getValue(), compression, compact, envelope), slide);
+			keys.add(bkey);
+			commands.add(new Object[] { "SET", bkey, serialized });
+			if (exp > 0) {
+				// one command with EX, a second one with EXPIRE on servers before 2.6.12
+				if (setEx) commands.set(commands.size() - 1, new Object[] { "SET", bkey, serialized, "EX", Integer.toString(exp) });
+				else {
+					keys.add(bkey);
+					commands.add(new Object[] { "EXPIRE", bkey, Integer.toString(exp) });
+				}
+			}
 		}
-		catch (Exception e) {
-			invalidateConnection(conn);
-			conn = null;
-			throw engine.getExceptionUtil().toIOException(e);
+
+		if (cluster != null) cluster.pipeline(keys, commands);
+		else if (multiplexer != null) multiplexer.pipeline(commands);
+		else {
+			Redis conn = getConnection();
+			IOException err = null;
+			try {
+				for (Object[] command: commands) {
+					conn.write(command);
+				}
+				conn.flush();
+				for (int i = commands.size(); i > 0; i--) {
+					try {
+						conn.read();
+					}
+					catch (ServerError e) {
+						// read the other replies first, so the connection stays usable
+						if (err == null) err = e;
+					}
+				}
+			}
+			catch (Exception e) {
+				invalidateConnection(conn);
+				conn = null;
+				throw engine.getExceptionUtil().toIOException(e);
+			}
+			finally {
+				releaseConnection(conn);
+			}
+			if (err != null) throw err;
 		}
-		finally {
-			releaseConnection(conn);
+		if (invalidation != null) {
+			for (byte[] bkey: keys) {
+				invalidation.publish(bkey);
+			}
 		}
 	}
 
 	@Override
 	public int remove(CacheKeyFilter filter) throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		if (async) storage.join();
+		if (local != null) local.clear();
+		if (cluster != null) {
+			int removed = 0;
+			for (int count: cluster.forEachMaster(c -> unlink(c, filter))) {
+				removed += count;
+			}
+			return removed;
+		}
 		Redis conn = getConnection();
 		try {
-			List<byte[]> lkeys = _bkeys(conn, filter);
-			if (lkeys == null || lkeys.size() == 0) return 0;
-			Long rtn = engine.getCastUtil().toLong(conn.call("DEL", lkeys), null);
-			if (rtn == null) return 0;
-			return rtn.intValue();
+			return unlink(conn, filter);
 		}
 		catch (Exception e) {
 			invalidateConnection(conn);
@@ -532,19 +1415,7 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public List<String> keys() throws IOException {
-		if (async) storage.doJoin(counter(), false);
-		Redis conn = getConnection();
-		try {
-			return toList((List<byte[]>) conn.call("KEYS", "*"));
-		}
-		catch (Exception e) {
-			invalidateConnection(conn);
-			conn = null;
-			throw engine.getExceptionUtil().toIOException(e);
-		}
-		finally {
-			releaseConnection(conn);
-		}
+		return keys((CacheKeyFilter) null);
 	}
 
 	// private Set<String> _keys(Jedis conn) throws IOException {
@@ -553,8 +1424,16 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public List<String> keys(CacheKeyFilter filter) throws IOException {
-		if (async) storage.doJoin(counter(), false);
-		Redis conn = getConnection();
+		if (async) storage.join();
+		if (cluster != null) {
+			List<String> keys = new ArrayList<>();
+			// every primary has keys of its own
+			for (List<String> list: cluster.forEachMaster(c -> _skeys(c, filter))) {
+				keys.addAll(list);
+			}
+			return keys;
+		}
+		Redis conn = getReadConnection();
 		try {
 			return _skeys(conn, filter);
 		}
@@ -569,35 +1448,173 @@ public class RedisCache extends CacheSupport implements Command {
 	}
 
 	private List<byte[]> _bkeys(Redis conn, CacheKeyFilter filter) throws IOException {
+		// SCAN can return a key more than once
+		Set<ByteArrayWrapper> keys = new LinkedHashSet<>();
+		scan(conn, filter, (c, batch) -> {
+			for (byte[] key: batch) {
+				keys.add(new ByteArrayWrapper(key));
+			}
+		});
+		List<byte[]> list = new ArrayList<byte[]>(keys.size());
+		for (ByteArrayWrapper key: keys) {
+			list.add(key.data);
+		}
+		return list;
+	}
+
+	private List<String> _skeys(Redis conn, CacheKeyFilter filter) throws IOException {
+		// SCAN can return a key more than once
+		Set<String> keys = new LinkedHashSet<>();
+		scan(conn, filter, (c, batch) -> {
+			for (byte[] key: batch) {
+				keys.add(new String(key, UTF8));
+			}
+		});
+		return new ArrayList<String>(keys);
+	}
+
+	/**
+	 * Walks the keys matching the filter with SCAN instead of KEYS, so Redis is never blocked by a
+	 * single call and the keys are never all in memory at once. The keys are passed on batch by batch,
+	 * a key can be passed more than once.
+	 */
+	private void scan(Redis conn, CacheKeyFilter filter, KeyConsumer consumer) throws IOException {
+		Object cursor = SCAN_START;
+		List<byte[]> keys = new ArrayList<>();
+		do {
+			keys.clear();
+			cursor = scan(conn, cursor, filter, keys);
+			if (!keys.isEmpty()) consumer.accept(conn, keys);
+		}
+		while (!isScanEnd(cursor));
+	}
+
+	/**
+	 * a single SCAN call, adds the keys accepted by the filter to the given list.
+	 *
+	 * @return the cursor for the next call
+	 */
+	private Object scan(Redis conn, Object cursor, CacheKeyFilter filter, List<byte[]> keys) throws IOException {
 		boolean isWildCardFilter = CacheUtil.isWildCardFiler(filter);
 		boolean all = isWildCardFilter || CacheUtil.allowAll(filter);
-		List<byte[]> skeys = (List<byte[]>) conn.call("KEYS", isWildCardFilter ? filter.toPattern() : "*");
-		List<byte[]> list = new ArrayList<byte[]>();
-		if (skeys == null || skeys.size() == 0) return list;
+		List<Object> res = (List<Object>) conn.call("SCAN", cursor, "MATCH", isWildCardFilter ? filter.toPattern() : "*", "COUNT", SCAN_COUNT);
+		List<byte[]> batch = (List<byte[]>) res.get(1);
+		if (batch != null) {
+			for (byte[] key: batch) {
+				if (all || filter.accept(new String(key, UTF8))) keys.add(key);
+			}
+		}
+		return res.get(0);
+	}
 
-		Iterator<byte[]> it = skeys.iterator();
-		byte[] key;
-		while (it.hasNext()) {
-			key = it.next();
-			if (all || filter.accept(new String(key, UTF8))) list.add(key);
+	/**
+	 * reads the values for the given keys with MGET, split into chunks of {@link #mgetChunkSize} keys
+	 * that are all written before the first reply is read. In cluster mode a chunk only contains keys
+	 * of the same slot (of the same instance with shards), the keys get reordered accordingly.
+	 *
+	 * @return the values aligned with the keys, null for keys that do not exist (anymore)
+	 */
+	private List<byte[]> mget(Redis conn, List<byte[]> keys) throws IOException {
+		if (cluster == null && keys.size() <= mgetChunkSize) return (List<byte[]>) conn.call("MGET", keys);
+
+		List<List<byte[]>> chunks = chunks(keys, mgetChunkSize);
+		for (List<byte[]> chunk: chunks) {
+			conn.write("MGET", chunk);
+		}
+		conn.flush();
+		List<byte[]> ordered = new ArrayList<>(keys.size());
+		List<byte[]> values = new ArrayList<>(keys.size());
+		IOException err = null;
+		for (List<byte[]> chunk: chunks) {
+			ordered.addAll(chunk);
+			try {
+				values.addAll((List<byte[]>) conn.read());
+			}
+			catch (IOException e) {
+				// read the other replies first, so the connection stays usable
+				if (cluster != null && RedisCluster.isRedirect(e)) {
+					// the slot moved since the keys were scanned
+					values.addAll((List<byte[]>) cluster.call(chunk.get(0), "MGET", chunk));
+				}
+				else if (err == null) err = e;
+			}
 		}
-		return list;
+		if (err != null) throw err;
+		keys.clear();
+		keys.addAll(ordered);
+		return values;
 	}
 
-	private List<String> _skeys(Redis conn, CacheKeyFilter filter) throws IOException {
+	/**
+	 * splits keys into chunks for a multi key command, in cluster mode a chunk only contains keys of
+	 * the same slot, with shards keys of the same instance.
+	 */
+	private List<List<byte[]>> chunks(List<byte[]> keys, int size) throws IOException {
+		if (cluster != null) return cluster.group(keys, size);
+		List<List<byte[]>> chunks = new ArrayList<>();
+		for (int i = 0; i < keys.size(); i += size) {
+			chunks.add(keys.subList(i, Math.min(keys.size(), i + size)));
+		}
+		return chunks;
+	}
+
+	/**
+	 * Removes the keys matching the filter while walking them with SCAN. The keys of every batch are
+	 * removed with UNLINK, or DEL on servers before 4.0, in chunks that are sent together with the
+	 * next SCAN, so removing does not add round trips.
+	 *
+	 * @return number of keys removed
+	 */
+	private int unlink(Redis conn, CacheKeyFilter filter) throws IOException {
 		boolean isWildCardFilter = CacheUtil.isWildCardFiler(filter);
 		boolean all = isWildCardFilter || CacheUtil.allowAll(filter);
-		List<byte[]> skeys = (List<byte[]>) conn.call("KEYS", isWildCardFilter ? filter.toPattern() : "*");
-		List<String> list = new ArrayList<String>();
-		Iterator<byte[]> it = skeys.iterator();
-		if (skeys == null || skeys.size() == 0) return list;
+		String pattern = isWildCardFilter ? filter.toPattern() : "*";
+		Object cursor = SCAN_START;
+		List<Object> res;
+		List<byte[]> keys;
+		int pending = 0;
+		int removed = 0;
+		String del = delete();
+		do {
+			conn.write("SCAN", cursor, "MATCH", pattern, "COUNT", SCAN_COUNT);
+			conn.flush();
+			// the replies of the UNLINKs sent before come first
+			for (; pending > 0; pending--) {
+				removed += engine.getCastUtil().toIntValue(conn.read(), 0);
+			}
+			res = (List<Object>) conn.read();
+			cursor = res.get(0);
+			keys = (List<byte[]>) res.get(1);
+			if (keys == null) continue;
+			List<byte[]> accepted = new ArrayList<>(keys.size());
+			for (byte[] key: keys) {
+				if (!all && !filter.accept(new String(key, UTF8))) continue;
+				accepted.add(key);
+				if (invalidation != null) invalidation.publish(key);
+			}
+			for (List<byte[]> chunk: chunks(accepted, UNLINK_CHUNK)) {
+				conn.write(del, chunk);
+				pending++;
+			}
+		}
+		while (!isScanEnd(cursor));
 
-		byte[] key;
-		while (it.hasNext()) {
-			key = it.next();
-			if (all || filter.accept(new String(key, UTF8))) list.add(new String(key, UTF8));
+		if (pending > 0) {
+			conn.flush();
+			for (; pending > 0; pending--) {
+				removed += engine.getCastUtil().toIntValue(conn.read(), 0);
+			}
 		}
-		return list;
+		return removed;
+	}
+
+	@FunctionalInterface
+	private interface KeyConsumer {
+		void accept(Redis conn, List<byte[]> keys) throws IOException;
+	}
+
+	private static boolean isScanEnd(Object cursor) {
+		return cursor instanceof byte[] && Arrays.equals(SCAN_START, (byte[]) cursor);
 	}
 
 	@Override
@@ -607,50 +1624,29 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public List<CacheEntry> entries(CacheKeyFilter filter) throws IOException {
-		if (async) storage.doJoin(counter(), false);
-
-		Redis conn = getConnection();
-		try {
-			List<byte[]> lkeys = _bkeys(conn, filter);
-			List<CacheEntry> list = new ArrayList<CacheEntry>();
-
-			if (lkeys == null || lkeys.size() == 0) return list;
-
-			byte[][] keys = lkeys.toArray(new byte[lkeys.size()][]);
+		List<CacheEntry> list = new ArrayList<CacheEntry>();
+		Iterator<CacheEntry> it = entriesIterator(filter);
+		while (it.hasNext()) {
+			list.add(it.next());
+		}
+		return list;
+	}
 
-			List<byte[]> values = (List<byte[]>) conn.call("MGET", keys);
-			if (keys.length == values.size()) { // because this is not atomar, it is possible that a key expired in meantime, but we try this way,
-												// because it is much faster than the else solution
-				int i = 0;
-				byte[] k;
-				for (byte[] val: values) {
-					k = keys[i++];
-					list.add(new RedisCacheEntry(this, k, val == null ? null : Coder.evaluate(cl, val), val == null ? 0 : val.length));
-				}
-			}
-			else {
-				byte[] val;
-				for (byte[] key: keys) {
-					val = null;
-					try {
-						val = (byte[]) conn.call("GET", key);
-					}
-					catch (Exception jde) {
-						if (log != null) log.error("redis-cache", jde);
-					}
-					if (val != null) list.add(new RedisCacheEntry(this, key, Coder.evaluate(cl, val), val.length));
-				}
+	/**
+	 * Lazy view of {@link #entries(CacheKeyFilter)}, keys and values are fetched batch by batch while
+	 * iterating, so only a single batch is in memory and a caller that stops early does not pay for
+	 * the rest. No connection is held between the batches, so the iterator does not need to be closed.
+	 * Errors while fetching the next batch are thrown as runtime exceptions.
+	 */
+	public Iterator<CacheEntry> entriesIterator(CacheKeyFilter filter) throws IOException {
+		return new ScanIterator<CacheEntry>(filter) {
+			@Override
+			CacheEntry toValue(int index, byte[] key, byte[] val) throws IOException {
+				// because this is not atomar, it is possible that a key expired in meantime
+				if (val == null) return new RedisCacheEntry(RedisCache.this, key, null, 0);
+				return new RedisCacheEntry(RedisCache.this, key, val, cl, lazyStructs);
 			}
-			return list;
-		}
-		catch (Exception e) {
-			invalidateConnection(conn);
-			conn = null;
-			throw engine.getExceptionUtil().toIOException(e);
-		}
-		finally {
-			releaseConnection(conn);
-		}
+		};
 	}
 
 	// there was the wrong generic type defined in the older interface, because of that we do not define
@@ -664,27 +1660,129 @@ public class RedisCache extends CacheSupport implements Command {
 	// a generic type at all here, just to be sure
 	@Override
 	public List values(CacheKeyFilter filter) throws IOException {
-		if (async) storage.doJoin(counter(), false);
-		Redis conn = getConnection();
-		try {
-			List<byte[]> lkeys = _bkeys(conn, filter);
-			List<Object> list = new ArrayList<Object>();
+		List<Object> list = new ArrayList<Object>();
+		Iterator<Object> it = valuesIterator(filter);
+		while (it.hasNext()) {
+			list.add(it.next());
+		}
+		return list;
+	}
+
+	/**
+	 * Lazy view of {@link #values(CacheKeyFilter)}, see {@link #entriesIterator(CacheKeyFilter)}.
+	 */
+	public Iterator<Object> valuesIterator(CacheKeyFilter filter) throws IOException {
+		return new ScanIterator<Object>(filter) {
+			private BulkDecoder decoder;
+
+			@Override
+			void fetched(List<byte[]> values) {
+				decoder = BulkDecoder.decode(cl, values, lazyStructs, parallelDecodeThreshold);
+			}
+
+			@Override
+			Object toValue(int index, byte[] key, byte[] val) throws IOException {
+				return decoder.get(index);
+			}
+		};
+	}
 
-			if (lkeys == null || lkeys.size() == 0) return list;
+	/**
+	 * Walks the keys matching a filter with SCAN and reads the values of every SCAN batch with
+	 * pipelined MGETs, one batch at a time when the previous one is consumed. A connection is only
+	 * borrowed for fetching a batch. In cluster mode the primaries are walked one after the other.
+	 */
+	private abstract class ScanIterator<T> implements Iterator<T> {
+		private final CacheKeyFilter filter;
+		private final List<RedisCluster.Node> nodes;
+		// SCAN can return a key more than once
+		private final Set<ByteArrayWrapper> seen = new HashSet<>();
+		private final List<byte[]> keys = new ArrayList<>();
+		private List<byte[]> values;
+		private int index;
+		private int node;
+		private Object cursor = SCAN_START;
+		private boolean done;
+
+		ScanIterator(CacheKeyFilter filter) throws IOException {
+			this.filter = filter;
+			if (async) storage.join();
+			this.nodes = cluster == null ? null : cluster.masters();
+		}
+
+		abstract T toValue(int index, byte[] key, byte[] val) throws IOException;
+
+		/**
+		 * called with the values of every batch fetched
+		 */
+		void fetched(List<byte[]> values) {}
 
-			List<byte[]> values = (List<byte[]>) conn.call("MGET", lkeys);
-			for (byte[] val: values) {
-				list.add(Coder.evaluate(cl, val));
+		@Override
+		public boolean hasNext() {
+			try {
+				while ((values == null || index >= values.size()) && !done) {
+					fetch();
+				}
+			}
+			catch (IOException e) {
+				throw engine.getCastUtil().toPageRuntimeException(e);
 			}
-			return list;
+			return values != null && index < values.size();
 		}
-		catch (Exception e) {
-			invalidateConnection(conn);
-			conn = null;
-			throw engine.getExceptionUtil().toIOException(e);
+
+		@Override
+		public T next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			int i = index++;
+			try {
+				return toValue(i, keys.get(i), values.get(i));
+			}
+			catch (IOException e) {
+				throw engine.getCastUtil().toPageRuntimeException(e);
+			}
 		}
-		finally {
-			releaseConnection(conn);
+
+		private void fetch() throws IOException {
+			keys.clear();
+			values = null;
+			index = 0;
+			RedisCluster.Node n = nodes == null ? null : nodes.get(node);
+			Redis conn = n == null ? getReadConnection() : n.borrow();
+			try {
+				List<byte[]> batch = new ArrayList<>();
+				boolean end = false;
+				// SCAN may return empty batches, we go on until there is something or the end is reached
+				while (keys.isEmpty() && !end) {
+					batch.clear();
+					cursor = scan(conn, cursor, filter, batch);
+					end = isScanEnd(cursor);
+					for (byte[] key: batch) {
+						if (seen.add(new ByteArrayWrapper(key))) keys.add(key);
+					}
+				}
+				values = keys.isEmpty() ? new ArrayList<byte[]>() : mget(conn, keys);
+				fetched(values);
+				if (end) {
+					// in cluster mode every primary has keys of its own
+					if (nodes != null && node + 1 < nodes.size()) {
+						node++;
+						cursor = SCAN_START;
+					}
+					else done = true;
+				}
+			}
+			catch (Exception e) {
+				if (n == null) invalidateConnection(conn);
+				else n.invalidate(conn);
+				conn = null;
+				done = true;
+				values = new ArrayList<byte[]>();
+				throw engine.getExceptionUtil().toIOException(e);
+			}
+			finally {
+				if (n == null) releaseConnection(conn);
+				else n.release(conn);
+			}
 		}
 	}
 
@@ -700,7 +1798,21 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public Struct getCustomInfo() throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		if (async) storage.join();
+		if (cluster != null) {
+			// the configured host need not be one of the nodes, every node reports for itself
+			Struct nodes = engine.getCreationUtil().createStruct();
+			Struct data = null;
+			for (RedisCluster.Node node: cluster.masters()) {
+				String info = node.execute(c -> new String((byte[]) c.call("INFO"), Coder.UTF8));
+				if (data == null) data = InfoParser.parse(CacheUtil.getInfo(this), info);
+				nodes.setEL(node.toString(), InfoParser.parse(engine.getCreationUtil().createStruct(), info));
+			}
+			if (data == null) data = engine.getCreationUtil().createStruct();
+			data.setEL("nodes", nodes);
+			data.setEL("connectionPool", getPoolInfo());
+			return data;
+		}
 		Redis conn = getConnection();
 		try {
 			byte[] barr = (byte[]) conn.call("INFO");
@@ -749,12 +1861,21 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public int clear() throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		if (async) storage.join();
+		if (local != null) local.clear();
+		if (cluster != null) {
+			int removed = 0;
+			for (int count: cluster.forEachMaster(c -> unlink(c, null))) {
+				removed += count;
+			}
+			if (invalidation != null) invalidation.publishAll();
+			return removed;
+		}
 		Redis conn = getConnection();
 		try {
-			List<byte[]> bkeys = (List<byte[]>) conn.call("KEYS", "*");
-			if (bkeys == null || bkeys.size() == 0) return 0;
-			return engine.getCastUtil().toIntValue(conn.call("DEL", bkeys), 0);
+			int removed = unlink(conn, null);
+			if (invalidation != null) invalidation.publishAll();
+			return removed;
 		}
 		catch (Exception e) {
 			invalidateConnection(conn);
@@ -852,11 +1973,61 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 	}
 
+	/**
+	 * Sentinel reported a new primary. Connections are created for the new primary from now on, the
+	 * pool is replaced and the connections to the old primary are closed, so callers waiting on them
+	 * fail right away instead of running into the socket timeout one by one.
+	 */
+	private void failover(String host, int port) {
+		synchronized (failoverLock) {
+			if (released) return;
+			RedisPool old = pool;
+			RedisFactory factory = (RedisFactory) old.getFactory();
+			if (host.equals(factory.getHost()) && port == factory.getPort()) return;
+			if (log != null) log.info("redis-cache",
+					"primary [" + sentinel.getMasterName() + "] switched from [" + factory.getHost() + ":" + factory.getPort() + "] to [" + host + ":" + port + "]");
+
+			// the new primary may not have received the latest writes
+			if (local != null) local.clear();
+			factory.setAddress(host, port);
+			retired.add(old);
+			pool = new RedisPool(factory, poolConfig, poolListener);
+			old.abort();
+
+			if (multiplexer != null) multiplexer.reconnect();
+			if (tracking != null) tracking.reconnect();
+			if (invalidation != null) invalidation.reconnect();
+			if (async) storage.reconnect();
+			if (replicas != null) replicas.reconnect();
+		}
+	}
+
+	/**
+	 * @return the pool the connection was borrowed from, the current pool, the one of a replica or one
+	 *         replaced by a failover
+	 */
+	private RedisPool owner(Redis conn) {
+		RedisPool p = pool;
+		if (retired.isEmpty() && replicas == null || p.owns(conn)) return p;
+		if (replicas != null) {
+			RedisPool r = replicas.owner(conn);
+			if (r != null) return r;
+		}
+		for (RedisPool r: retired) {
+			if (r.owns(conn)) {
+				// the last one out
+				if (r.getNumActive() <= 1) retired.remove(r);
+				return r;
+			}
+		}
+		return p;
+	}
+
 	protected void releaseConnection(Redis conn) throws IOException {
 		if (conn == null) return;
 
 		try {
-			pool.returnObject(conn);
+			owner(conn).returnObject(conn);
 		}
 		catch (Exception e) {
 			if (log != null) log.error("redis-cache", e);
@@ -876,7 +2047,7 @@ public class RedisCache extends CacheSupport implements Command {
 	protected void releaseConnectionEL(Redis conn) {
 		if (conn == null) return;
 		try {
-			pool.returnObject(conn);
+			owner(conn).returnObject(conn);
 		}
 		catch (Exception e) {
 			if (log != null) log.error("redis-cache", e);
@@ -894,6 +2065,14 @@ public class RedisCache extends CacheSupport implements Command {
 
 	// CachePro interface @Override
 	public void verify() throws IOException {
+		if (cluster != null) {
+			// the configured host need not be one of the nodes, all of them have to answer
+			for (RedisCluster.Node node: cluster.masters()) {
+				String res = node.execute(c -> new String((byte[]) c.call("PING"), Coder.UTF8));
+				if (!"PONG".equals(res)) throw new CacheException("Could connect to Redis [" + node + "], but Redis did not answer to the ping as expected (response:" + res + ")");
+			}
+			return;
+		}
 		Redis conn = getConnection();
 		try {
 			String res = new String((byte[]) conn.call("PING"), Coder.UTF8);
@@ -911,102 +2090,257 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 	}
 
-	private static class Storage extends Thread {
+	/**
+	 * Called by Lucee (by reflection) when the cache connection is released, because it was updated or
+	 * removed, the extension was updated or the engine is reset. Stops every thread started for this
+	 * instance and closes all its connections, a new instance is created for the next use.
+	 */
+	public void release() {
+		if (released) return;
+		released = true;
+		// no failover while we close what it would replace
+		if (sentinel != null) sentinel.close();
+		// the drains still need the connections closed below to write what is pending
+		if (async) storage.stop();
+		if (tracking != null) tracking.close();
+		if (invalidation != null) invalidation.close();
+		if (multiplexer != null) multiplexer.close();
+		if (replicas != null) replicas.close();
+		if (cluster != null) cluster.close();
+		synchronized (failoverLock) {
+			pool.close();
+			for (RedisPool r: retired) {
+				r.close();
+			}
+			retired.clear();
+		}
+	}
+
+	private static class Storage {
+
+		/**
+		 * max number of entries written in one go
+		 */
+		private static final int MAX_BATCH = 1000;
+
+		/**
+		 * max time (ms) a caller waits for pending writes
+		 */
+		private static final long MAX_JOIN = 100000L;
 
-		// Map overwrites on duplicate puts (LDEV-6327); queue preserves drain order.
+		/**
+		 * max time (ms) a release waits for pending writes and then for every drain to end
+		 */
+		private static final long MAX_STOP = 10000L;
+
+		// Map overwrites on duplicate puts (LDEV-6327); queues preserve drain order.
 		private final ConcurrentHashMap<ByteArrayWrapper, NearCacheEntry> entries;
-		private final ConcurrentLinkedQueue<ByteArrayWrapper> drainQueue;
 		private final RedisCache cache;
-		private long current = Long.MIN_VALUE;
-		private final Object tokenAddToNear = new Object();
-		private final Object tokenAddToCache = new Object();
+		private Drain[] drains = new Drain[0];
 
 		public Storage(RedisCache cache) {
 			this.cache = cache;
 			this.entries = new ConcurrentHashMap<>();
-			this.drainQueue = new ConcurrentLinkedQueue<>();
 		}
 
-		public NearCacheEntry get(byte[] bkey) {
-			return entries.get(new ByteArrayWrapper(bkey));
+		/**
+		 * starts the drain workers, every key is always drained by the same worker, so the writes for a
+		 * key stay in order.
+		 */
+		public void start(int workers) {
+			Drain[] drains = new Drain[Math.max(1, workers)];
+			for (int i = 0; i < drains.length; i++) {
+				drains[i] = new Drain(this, i);
+			}
+			this.drains = drains;
+			for (Drain drain: drains) {
+				drain.start();
+			}
 		}
 
-		public long getCurrent() {
-			return current;
+		/**
+		 * writes what is pending and stops the drain workers, their connections are closed. Entries still
+		 * pending after {@link #MAX_STOP} are lost.
+		 */
+		public void stop() {
+			join(MAX_STOP);
+			Drain[] drains = this.drains;
+			for (Drain drain: drains) {
+				drain.stopped = true;
+				drain.interrupt();
+			}
+			for (Drain drain: drains) {
+				try {
+					drain.join(MAX_STOP);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
 		}
 
-		public void doJoin(long count, boolean one) {
-
-			long startCurr = getCurrent();
-			if (startCurr > count || drainQueue.isEmpty()) {
-				return;
+		/**
+		 * the drains connect again before their next write.
+		 */
+		public void reconnect() {
+			for (Drain drain: drains) {
+				drain.reconnect();
 			}
+		}
 
-			// wait until it is done, but not to long in case of a constant stream
-			int max = 100;
-			long curr;
-			// if we have entries, we wait until there are no entries anymore or they are newer than the request
-			while (true) {
-				if (--max <= 0) {
-					break;
-				}
-				curr = getCurrent();
-				if (one && startCurr < curr) {
-					break;
-				}
-				if (curr > count || drainQueue.isEmpty()) {
-					break;
-				}
-				synchronized (tokenAddToCache) {
+		public NearCacheEntry get(byte[] bkey) {
+			return entries.get(new ByteArrayWrapper(bkey));
+		}
+
+		/**
+		 * waits until no write is pending anymore for the given key, writes to other keys do not matter.
+		 */
+		public void join(byte[] bkey) {
+			ByteArrayWrapper wkey = new ByteArrayWrapper(bkey);
+			long deadline = System.currentTimeMillis() + MAX_JOIN;
+			NearCacheEntry entry;
+			long remaining;
+			while ((entry = entries.get(wkey)) != null) {
+				remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) break;
+				// the drain (or a newer put replacing the entry) notifies the entry
+				synchronized (entry) {
 					try {
-						tokenAddToCache.wait(1000);
+						if (entries.get(wkey) == entry) entry.wait(remaining);
 					}
-					catch (Exception e) {
-						if (cache.log != null) cache.log.error("redis-cache", e);
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
 						break;
 					}
 				}
 			}
 		}
 
-		public void put(byte[] bkey, Object val, int exp, long count) throws IOException {
+		/**
+		 * waits until everything queued before the call is written, entries queued in the meantime do
+		 * not hold it up.
+		 */
+		public void join() {
+			join(MAX_JOIN);
+		}
+
+		private void join(long max) {
+			Drain[] drains = this.drains;
+			long[] watermarks = new long[drains.length];
+			for (int i = 0; i < drains.length; i++) {
+				watermarks[i] = drains[i].queued.get();
+			}
+			long deadline = System.nanoTime() + max * 1000000L;
+			long park = 50000L;
+			for (int i = 0; i < drains.length; i++) {
+				while (drains[i].done < watermarks[i]) {
+					if (System.nanoTime() - deadline > 0) return;
+					LockSupport.parkNanos(park);
+					if (park < 5000000L) park <<= 1;
+				}
+			}
+		}
+
+		/**
+		 * @param slide idle time in seconds of a value with a sliding expiration, written with it, 0 for none
+		 */
+		public NearCacheEntry put(byte[] bkey, Object val, int exp, int slide, long count) throws IOException {
 			// Serialise now so subsequent caller mutation cannot reach the cache (LDEV-4413 write-side).
-			byte[] bytes = Coder.serialize(val);
+			byte[] bytes = Coder.withIdle(Coder.serialize(val, cache.compression, cache.compact, cache.envelope), slide);
 			NearCacheEntry entry = new NearCacheEntry(bkey, null, exp, count, bytes);
 			ByteArrayWrapper wkey = new ByteArrayWrapper(bkey);
-			entries.put(wkey, entry);
-			drainQueue.offer(wkey);
-			synchronized (tokenAddToNear) {
-				tokenAddToNear.notifyAll();
+			NearCacheEntry old = entries.put(wkey, entry);
+			// whoever waits for the old entry has to wait for this one now
+			if (old != null) {
+				synchronized (old) {
+					old.notifyAll();
+				}
 			}
+			Drain drain = drains[(wkey.hashCode() & Integer.MAX_VALUE) % drains.length];
+			drain.queue.offer(wkey);
+			drain.queued.incrementAndGet();
+			synchronized (drain.tokenAddToNear) {
+				drain.tokenAddToNear.notifyAll();
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Writes the entries queued for one stripe of the keys to Redis. All entries ready are written as
+	 * one pipelined batch on a connection of its own, so the throughput is not bound to the round trip
+	 * time.
+	 */
+	private static class Drain extends Thread {
+
+		private final Storage storage;
+		private final ConcurrentLinkedQueue<ByteArrayWrapper> queue = new ConcurrentLinkedQueue<>();
+		private final Object tokenAddToNear = new Object();
+
+		/**
+		 * number of keys queued and number of them processed, the queue is processed in order, so when
+		 * done reached a value queued had before, everything queued up to then is written.
+		 */
+		private final AtomicLong queued = new AtomicLong();
+		private volatile long done;
+
+		private volatile Redis conn;
+		private volatile boolean reconnect;
+		private volatile boolean stopped;
+
+		Drain(Storage storage, int index) {
+			super("redis-cache-drain-" + index);
+			this.storage = storage;
+			setDaemon(true);
 		}
 
 		@Override
 		public void run() {
-			while (true) {
+			RedisCache cache = storage.cache;
+			// polled but not written yet, a failed batch is retried before anything else to keep the order
+			List<ByteArrayWrapper> polled = new ArrayList<>();
+			try {
+				drain(cache, polled);
+			}
+			finally {
+				Redis c = conn;
+				conn = null;
+				if (c != null) close(c);
+			}
+		}
+
+		private void drain(RedisCache cache, List<ByteArrayWrapper> polled) {
+			while (!stopped) {
 				try {
-					ByteArrayWrapper wkey;
-					while ((wkey = drainQueue.poll()) != null) {
-						// Re-read from the map — a newer put may have overwritten since enqueue.
-						NearCacheEntry entry = entries.get(wkey);
-						if (entry == null) continue;
-						current = entry.count();
-						try {
-							cache.putBytes(entry.getByteKey(), entry.serialized(), entry.getExpires());
+					while (!polled.isEmpty() || !queue.isEmpty()) {
+						ByteArrayWrapper wkey;
+						while (polled.size() < Storage.MAX_BATCH && (wkey = queue.poll()) != null) {
+							polled.add(wkey);
 						}
-						catch (Throwable t) {
-							// Re-offer so the entry isn't orphaned in the map forever. The outer
-							// catch backs off; next iteration retries from the queue.
-							drainQueue.offer(wkey);
-							throw t;
+						// a key queued more than once is only written once
+						Map<ByteArrayWrapper, NearCacheEntry> batch = new LinkedHashMap<>();
+						NearCacheEntry entry;
+						for (ByteArrayWrapper k: polled) {
+							// Re-read from the map — a newer put may have overwritten since enqueue.
+							entry = storage.entries.get(k);
+							if (entry != null) batch.put(k, entry);
 						}
-						entries.remove(wkey, entry);
-						synchronized (tokenAddToCache) {
-							tokenAddToCache.notifyAll();
+						if (!batch.isEmpty()) write(batch.values());
+
+						for (Map.Entry<ByteArrayWrapper, NearCacheEntry> e: batch.entrySet()) {
+							entry = e.getValue();
+							storage.entries.remove(e.getKey(), entry);
+							synchronized (entry) {
+								entry.notifyAll();
+							}
+							if (cache.invalidation != null) cache.invalidation.publish(e.getKey().data);
 						}
+						done += polled.size();
+						polled.clear();
 					}
 					synchronized (tokenAddToNear) {
-						if (drainQueue.isEmpty()) tokenAddToNear.wait();
+						if (queue.isEmpty()) tokenAddToNear.wait();
 					}
 
 					if (cache.nearCacheWriteCommitDelay != null) {
@@ -1014,12 +2348,16 @@ public class RedisCache extends CacheSupport implements Command {
 					}
 				}
 				catch (Throwable e) {
+					// stop() interrupts the wait for the next entry
+					if (stopped) return;
+					// the polled keys stay, the next iteration retries them
 					if (cache.log != null) cache.log.error("redis-cache", e);
 					synchronized (this) {
 						try {
 							this.wait(1000); // slow down in case of an issue
 						}
-						catch (Exception ie) {
+						catch (InterruptedException ie) {
+							if (stopped) return;
 							if (cache.log != null) cache.log.error("redis-cache", ie);
 						}
 					}
@@ -1027,34 +2365,83 @@ public class RedisCache extends CacheSupport implements Command {
 			}
 		}
 
-		private static final class ByteArrayWrapper {
-			private final byte[] data;
-			private final int hash;
+		void reconnect() {
+			reconnect = true;
+			Redis c = conn;
+			// a write waiting for its replies fails right away
+			if (c != null) close(c);
+		}
 
-			ByteArrayWrapper(byte[] data) {
-				this.data = data;
-				this.hash = Arrays.hashCode(data);
+		private void close(Redis c) {
+			Socket socket = c.getSocket();
+			try {
+				if (socket != null) socket.close();
 			}
-
-			@Override
-			public boolean equals(Object o) {
-				if (this == o) return true;
-				if (!(o instanceof ByteArrayWrapper)) return false;
-				return Arrays.equals(data, ((ByteArrayWrapper) o).data);
+			catch (Exception ex) {
+				if (storage.cache.log != null) storage.cache.log.error("redis-cache", ex);
 			}
+		}
 
-			@Override
-			public int hashCode() {
-				return hash;
+		private void write(Collection<NearCacheEntry> batch) throws IOException {
+			if (reconnect) {
+				reconnect = false;
+				if (conn != null) close(conn);
+				conn = null;
+			}
+			// one command with EX, a second one with EXPIRE on servers before 2.6.12
+			boolean setEx = storage.cache.capabilities().setEx();
+			List<byte[]> keys = new ArrayList<>(batch.size());
+			List<Object[]> commands = new ArrayList<>(batch.size());
+			for (NearCacheEntry entry: batch) {
+				byte[] bkey = entry.getByteKey();
+				String exp = entry.getExpires() > 0 ? Integer.toString(entry.getExpires()) : null;
+				keys.add(bkey);
+				if (exp == null) commands.add(new Object[] { "SET", bkey, entry.serialized() });
+				else if (setEx) commands.add(new Object[] { "SET", bkey, entry.serialized(), "EX", exp });
+				else {
+					commands.add(new Object[] { "SET", bkey, entry.serialized() });
+					keys.add(bkey);
+					commands.add(new Object[] { "EXPIRE", bkey, exp });
+				}
+			}
+			RedisCluster cluster = storage.cache.cluster;
+			if (cluster != null) {
+				cluster.pipeline(keys, commands);
+				return;
+			}
+			if (conn == null) conn = ((RedisFactory) storage.cache.pool.getFactory()).create();
+			try {
+				for (Object[] command: commands) {
+					conn.write(command);
+				}
+				conn.flush();
+				for (int i = commands.size(); i > 0; i--) {
+					conn.read();
+				}
+			}
+			catch (IOException e) {
+				// replies may be left behind, the connection cannot be used anymore
+				Socket socket = conn.getSocket();
+				conn = null;
+				try {
+					if (socket != null) socket.close();
+				}
+				catch (Exception ex) {
+					if (storage.cache.log != null) storage.cache.log.error("redis-cache", ex);
+				}
+				throw e;
 			}
 		}
 	}
 
 	public Object command(String... arguments) throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		if (async) storage.join();
+		byte[][] barr = Coder.toBytesArrays(arguments);
+		if (cluster != null) return cluster.call(cluster.key(barr), (Object[]) barr);
+		if (multiplexer != null && RedisMultiplexer.isMultiplexable(barr, false)) return multiplexer.call((Object[]) barr);
 		Redis conn = getConnection();
 		try {
-			return conn.call(Coder.toBytesArrays(arguments));
+			return conn.call(barr);
 		}
 		catch (Exception e) {
 			invalidateConnection(conn);
@@ -1068,7 +2455,10 @@ public class RedisCache extends CacheSupport implements Command {
 
 	@Override
 	public Object command(byte[][] arguments, boolean lowPrio) throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		if (async) storage.join();
+		// a shared connection does not take a pool slot, so low priority makes no difference there
+		if (cluster != null) return cluster.call(cluster.key(arguments), (Object[]) arguments);
+		if (multiplexer != null && RedisMultiplexer.isMultiplexable(arguments, false)) return multiplexer.call((Object[]) arguments);
 
 		Redis conn = getConnection(lowPrio, this.connTimeout);
 		try {
@@ -1084,9 +2474,34 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 	}
 
+	/**
+	 * @return the number of nodes the keys are spread over (cluster or shards), a SCAN has to walk them
+	 *         one after the other, 1 for a single Redis
+	 */
+	public int scanNodes() throws IOException {
+		return cluster == null ? 1 : cluster.masters().size();
+	}
+
+	/**
+	 * executes a SCAN on one of the nodes the keys are spread over, the nodes are ordered by their
+	 * address, so a position stays valid for another request as long as the nodes do not change.
+	 *
+	 * @param node index of the node, see {@link #scanNodes()}
+	 */
+	public Object scan(int node, byte[][] arguments) throws IOException {
+		if (cluster == null) return command(arguments, false);
+		if (async) storage.join();
+		List<RedisCluster.Node> nodes = new ArrayList<>(cluster.masters());
+		nodes.sort((l, r) -> l.toString().compareTo(r.toString()));
+		if (node < 0 || node >= nodes.size()) throw new IOException("invalid scan position, there is no node [" + node + "], the keys are spread over [" + nodes.size() + "] nodes");
+		return nodes.get(node).execute(conn -> conn.call(arguments));
+	}
+
 	@Override
 	public List<Object> command(List<byte[][]> arguments, boolean lowPrio) throws IOException {
-		if (async) storage.doJoin(counter(), false);
+		if (async) storage.join();
+		if (cluster != null) return commandClustered(arguments);
+		if (multiplexer != null && RedisMultiplexer.isMultiplexable(arguments)) return multiplexer.pipeline(arguments);
 		Redis conn = getConnection(lowPrio, this.connTimeout);
 		try {
 			Pipeline pl = conn.pipeline();
@@ -1105,17 +2520,38 @@ public class RedisCache extends CacheSupport implements Command {
 		}
 	}
 
+	/**
+	 * routes every command by its key, a transaction as a whole by the first key in it.
+	 */
+	private List<Object> commandClustered(List<byte[][]> arguments) throws IOException {
+		List<byte[]> keys = new ArrayList<>(arguments.size());
+		byte[] first = null;
+		boolean transaction = false;
+		for (byte[][] args: arguments) {
+			byte[] key = cluster.key(args);
+			if (first == null) first = key;
+			keys.add(key);
+			if (args.length > 0 && "MULTI".equalsIgnoreCase(new String(args[0], UTF8))) transaction = true;
+		}
+		if (transaction) {
+			for (int i = 0; i < keys.size(); i++) {
+				keys.set(i, first);
+			}
+		}
+		return cluster.pipeline(keys, arguments);
+	}
+
 	public void invalidateConnection(Redis conn) {
 		try {
-			if (conn != null) pool.invalidateObject(conn);
+			if (conn != null) owner(conn).invalidateObject(conn);
 		}
 		catch (Exception e) {
 			if (log != null) log.error("redis-cache", e);
 		}
 	}
 
-	public static synchronized long counter() {
-		return ++counter;
+	public static long counter() {
+		return counter.incrementAndGet();
 	}
 
 	public boolean isObjectSerialisationSupported() {
@@ -13,15 +13,37 @@ public class RedisCacheEntry implements CacheEntry {
 
 	private final RedisCache cache;
 	private final byte[] bkey;
-	private final Object value;
 	private final long size;
 	private DebugObject debObj;
 
+	private Object value;
+	private volatile boolean decoded;
+	private byte[] data;
+	private final ClassLoader cl;
+	private final boolean lazyStructs;
+
 	public RedisCacheEntry(RedisCache cache, byte[] bkey, Object value, long size) {
 		this.cache = cache;
 		this.bkey = bkey;
 		this.value = value;
 		this.size = size;
+		this.decoded = true;
+		this.cl = null;
+		this.lazyStructs = false;
+	}
+
+	/**
+	 * the value is only decoded with the first {@link #getValue()}, callers only interested in the key,
+	 * the size or that the entry exists (filters, existence checks ...) never pay for it. A value that
+	 * cannot be decoded fails with that call and not when the entry is created.
+	 */
+	public RedisCacheEntry(RedisCache cache, byte[] bkey, byte[] data, ClassLoader cl, boolean lazyStructs) {
+		this.cache = cache;
+		this.bkey = bkey;
+		this.data = data;
+		this.size = data.length;
+		this.cl = cl;
+		this.lazyStructs = lazyStructs;
 	}
 
 	@Override
@@ -40,9 +62,11 @@ public class RedisCacheEntry implements CacheEntry {
 		synchronized (cache) {
 			if (debObj == null) {
 				try {
-					debObj = cache.getDebugObject(cache.getConnection(), bkey);
+					debObj = cache.getDebugObject(bkey);
 				}
 				catch (IOException e) {
+					// size and last access are not known then
+					if (cache.getLog() != null) cache.getLog().error("redis-cache", e);
 				}
 			}
 		}
@@ -66,6 +90,27 @@ public class RedisCacheEntry implements CacheEntry {
 
 	@Override
 	public Object getValue() {
+		try {
+			return decode();
+		}
+		catch (IOException e) {
+			throw CFMLEngineFactory.getInstance().getCastUtil().toPageRuntimeException(e);
+		}
+	}
+
+	/**
+	 * like {@link #getValue()}, but fails with the IOException of the decoder
+	 */
+	Object decode() throws IOException {
+		if (!decoded) {
+			synchronized (this) {
+				if (!decoded) {
+					value = Coder.evaluate(cl, data, lazyStructs);
+					data = null;
+					decoded = true;
+				}
+			}
+		}
 		return value;
 	}
 
@@ -0,0 +1,749 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisFactory;
+import lucee.extension.io.cache.pool.RedisPool;
+import lucee.extension.io.cache.pool.RedisPoolConfig;
+import lucee.extension.io.cache.pool.RedisPoolListener;
+import lucee.extension.io.cache.redis.Redis.Parser.ServerError;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Client side view of a Redis Cluster.
+ * <p>
+ * The topology is read with "CLUSTER SHARDS" (Redis 7+, "CLUSTER SLOTS" for older servers) and
+ * every primary gets its own connection pool. Commands are routed to the primary serving the hash
+ * slot of their key (CRC16 of the key, or of the part within the first "{...}" if there is one).
+ * "MOVED" replies update the slot table and trigger a refresh of the topology, "ASK" replies are
+ * followed for the single command, both transparently for the caller.
+ * <p>
+ * Commands for many keys are split by node and the nodes are called in parallel. Redis rejects
+ * multi key commands for keys of different slots, see {@link #group(List, int)}.
+ */
+public class RedisCluster {
+
+	public static final int SLOTS = 16384;
+
+	private static final int MAX_REDIRECTS = 5;
+	private static final long MIN_REFRESH_INTERVAL = 1000L;
+
+	private static final byte[] ASKING = "ASKING".getBytes(Coder.UTF8);
+
+	private static final int[] CRC16 = new int[256];
+	static {
+		// CRC16-CCITT (XMODEM), as used by Redis Cluster
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 8;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+			CRC16[i] = crc & 0xFFFF;
+		}
+	}
+
+	protected final RedisFactory seed;
+	private final List<String> seeds;
+	private final RedisPoolConfig config;
+	private final RedisPoolListener listener;
+	protected final Log log;
+
+	private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+	private volatile Node[] slots = new Node[SLOTS];
+	private volatile List<Node> masters = new ArrayList<>();
+	private final Object refreshLock = new Object();
+	private volatile long lastRefresh;
+
+	/**
+	 * what all primaries support, null until known or after the topology changed
+	 */
+	private volatile Capabilities capabilities;
+	private volatile long lastNegotiation;
+
+	/**
+	 * key positions by command name, as reported by "COMMAND INFO"
+	 */
+	private final Map<String, int[]> keyPositions = new ConcurrentHashMap<>();
+
+	private final ExecutorService executor;
+
+	/**
+	 * @param seed pool of the node configured with host/port, used as first node to ask for the
+	 *            topology
+	 * @param seeds other nodes ("host:port") to ask for the topology, when the configured one is not
+	 *            reachable
+	 * @param config configuration used for the pools of the other nodes
+	 * @param listener listener used for the pools of the other nodes, can be null
+	 * @param log log, can be null
+	 */
+	public RedisCluster(RedisPool seed, List<String> seeds, RedisPoolConfig config, RedisPoolListener listener, Log log) {
+		this.seed = (RedisFactory) seed.getFactory();
+		this.seeds = seeds;
+		this.config = config;
+		this.listener = listener;
+		this.log = log;
+		nodes.put(address(this.seed.getHost(), this.seed.getPort()), new Node(this.seed.getHost(), this.seed.getPort(), seed));
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "redis-cluster-worker");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * reads the topology from the first node that answers.
+	 */
+	public void refresh() throws IOException {
+		synchronized (refreshLock) {
+			lastRefresh = System.currentTimeMillis();
+			List<Node> candidates = new ArrayList<>(masters);
+			for (Node n: nodes.values()) {
+				if (!candidates.contains(n)) candidates.add(n);
+			}
+			for (String s: seeds) {
+				int index = s.lastIndexOf(':');
+				Node n = index == -1 ? node(s.trim(), seed.getPort()) : node(s.substring(0, index).trim(), Integer.parseInt(s.substring(index + 1).trim()));
+				if (!candidates.contains(n)) candidates.add(n);
+			}
+
+			IOException last = null;
+			for (Node n: candidates) {
+				try {
+					Node[] table = new Node[SLOTS];
+					List<Node> primaries = new ArrayList<>();
+					load(n, table, primaries);
+					if (primaries.isEmpty()) throw new IOException("Redis at [" + n + "] does not know any cluster node, is cluster mode enabled?");
+					slots = table;
+					masters = primaries;
+					// pools of nodes that are no longer primaries, the pool of the seed belongs to the cache
+					for (Node old: new ArrayList<>(nodes.values())) {
+						if (!primaries.contains(old) && old.pool.getFactory() != seed) {
+							nodes.remove(old.toString());
+							old.pool.close();
+						}
+					}
+					return;
+				}
+				catch (IOException e) {
+					last = e;
+					if (log != null) log.error("redis-cache", e);
+				}
+			}
+			throw last != null ? last : new IOException("no Redis Cluster node to read the topology from");
+		}
+	}
+
+	/**
+	 * replaces the slot table and the primaries.
+	 */
+	protected void topology(Node[] table, List<Node> primaries) {
+		slots = table;
+		masters = primaries;
+		capabilities = null;
+	}
+
+	/**
+	 * The version and features all primaries support, the oldest server wins. A primary no connection
+	 * was made to yet is connected to learn its version. As long as one of them cannot be reached, the
+	 * result is {@link Capabilities#UNKNOWN} and they are tried again after a second at the earliest.
+	 * The result is kept until the topology changes.
+	 */
+	public Capabilities capabilities() {
+		Capabilities caps = capabilities;
+		if (caps != null) return caps;
+		long now = System.currentTimeMillis();
+		if (now - lastNegotiation < MIN_REFRESH_INTERVAL) return Capabilities.UNKNOWN;
+		lastNegotiation = now;
+		Capabilities oldest = null;
+		try {
+			for (Node node: masters()) {
+				caps = node.capabilities();
+				if (caps == null) return Capabilities.UNKNOWN;
+				if (oldest == null || caps.olderThan(oldest)) oldest = caps;
+			}
+		}
+		catch (IOException e) {
+			if (log != null) log.error("redis-cache", e);
+			return Capabilities.UNKNOWN;
+		}
+		if (oldest == null) return Capabilities.UNKNOWN;
+		return capabilities = oldest;
+	}
+
+	private void load(Node from, Node[] table, List<Node> primaries) throws IOException {
+		Redis conn = from.borrow();
+		try {
+			Object res;
+			try {
+				res = conn.call("CLUSTER", "SHARDS");
+				for (Object shard: (List<?>) res) {
+					Map<String, Object> sm = toMap(shard);
+					Node primary = null;
+					for (Object n: (List<?>) sm.get("nodes")) {
+						Map<String, Object> nm = toMap(n);
+						if (!"master".equals(str(nm.get("role"))) || "failed".equals(str(nm.get("health")))) continue;
+						String host = str(nm.get("endpoint"));
+						if (host == null || host.isEmpty() || "?".equals(host)) host = str(nm.get("ip"));
+						if (host == null || host.isEmpty()) host = from.host;
+						Object port = seed.isSsl() && nm.get("tls-port") != null ? nm.get("tls-port") : nm.get("port");
+						primary = node(host, ((Number) port).intValue());
+					}
+					if (primary == null) continue;
+					if (!primaries.contains(primary)) primaries.add(primary);
+					List<?> ranges = (List<?>) sm.get("slots");
+					for (int i = 0; i + 1 < ranges.size(); i += 2) {
+						Arrays.fill(table, ((Number) ranges.get(i)).intValue(), ((Number) ranges.get(i + 1)).intValue() + 1, primary);
+					}
+				}
+			}
+			catch (ServerError se) {
+				// before Redis 7
+				res = conn.call("CLUSTER", "SLOTS");
+				for (Object range: (List<?>) res) {
+					List<?> r = (List<?>) range;
+					List<?> master = (List<?>) r.get(2);
+					String host = str(master.get(0));
+					if (host == null || host.isEmpty() || "?".equals(host)) host = from.host;
+					Node primary = node(host, ((Number) master.get(1)).intValue());
+					if (!primaries.contains(primary)) primaries.add(primary);
+					Arrays.fill(table, ((Number) r.get(0)).intValue(), ((Number) r.get(1)).intValue() + 1, primary);
+				}
+			}
+		}
+		catch (ServerError se) {
+			from.release(conn);
+			conn = null;
+			throw se;
+		}
+		catch (Exception e) {
+			from.invalidate(conn);
+			conn = null;
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+		finally {
+			if (conn != null) from.release(conn);
+		}
+	}
+
+	/**
+	 * @return the hash slot of the key
+	 */
+	public static int slot(byte[] key) {
+		int start = 0;
+		int end = key.length;
+		// hash tag, only the part between the first "{" and the next "}" counts, if not empty
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] == '{') {
+				for (int j = i + 1; j < key.length; j++) {
+					if (key[j] == '}') {
+						if (j > i + 1) {
+							start = i + 1;
+							end = j;
+						}
+						break;
+					}
+				}
+				break;
+			}
+		}
+		int crc = 0;
+		for (int i = start; i < end; i++) {
+			crc = ((crc << 8) ^ CRC16[((crc >>> 8) ^ key[i]) & 0xFF]) & 0xFFFF;
+		}
+		return crc & (SLOTS - 1);
+	}
+
+	/**
+	 * @return true if the error is a redirect (MOVED/ASK) to another node
+	 */
+	public static boolean isRedirect(IOException e) {
+		return e instanceof ServerError && Redirect.parse(e.getMessage(), null) != null;
+	}
+
+	/**
+	 * splits the keys into groups of keys of the same slot, with at most max keys per group.
+	 */
+	public static List<List<byte[]>> groupBySlot(List<byte[]> keys, int max) {
+		Map<Integer, List<byte[]>> bySlot = new LinkedHashMap<>();
+		for (byte[] key: keys) {
+			bySlot.computeIfAbsent(slot(key), k -> new ArrayList<>()).add(key);
+		}
+		return split(bySlot.values(), max);
+	}
+
+	/**
+	 * splits the keys into groups for a multi key command, with at most max keys per group. In a Redis
+	 * Cluster the keys of a group are all of the same slot.
+	 */
+	public List<List<byte[]>> group(List<byte[]> keys, int max) throws IOException {
+		return groupBySlot(keys, max);
+	}
+
+	/**
+	 * splits every group into groups of at most max keys.
+	 */
+	protected static List<List<byte[]>> split(Collection<List<byte[]>> groups, int max) {
+		List<List<byte[]>> result = new ArrayList<>();
+		for (List<byte[]> group: groups) {
+			for (int i = 0; i < group.size(); i += max) {
+				result.add(group.subList(i, Math.min(group.size(), i + max)));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the primary serving the slot of the key, any primary if the key is null
+	 */
+	public Node node(byte[] key) throws IOException {
+		if (key == null) return any();
+		int slot = slot(key);
+		Node node = slots[slot];
+		if (node == null) {
+			refresh(false);
+			node = slots[slot];
+			if (node == null) throw new IOException("no Redis Cluster node serves the hash slot [" + slot + "]");
+		}
+		return node;
+	}
+
+	public Node any() throws IOException {
+		List<Node> m = masters;
+		if (m.isEmpty()) {
+			refresh(false);
+			m = masters;
+			if (m.isEmpty()) throw new IOException("no Redis Cluster node available");
+		}
+		return m.get(0);
+	}
+
+	/**
+	 * @return all primaries
+	 */
+	public List<Node> masters() throws IOException {
+		if (masters.isEmpty()) refresh(false);
+		return masters;
+	}
+
+	public int size() {
+		return masters.size();
+	}
+
+	/**
+	 * executes a command on the node serving the key and follows redirects.
+	 *
+	 * @param key key to route by, null for any node
+	 */
+	public Object call(byte[] key, Object... args) throws IOException {
+		Node target = node(key);
+		boolean asking = false;
+		for (int i = 0;; i++) {
+			Node node = target;
+			Redis conn = node.borrow();
+			try {
+				if (asking) {
+					conn.write(ASKING);
+					conn.write(args);
+					conn.flush();
+					conn.read();
+					return conn.read();
+				}
+				return conn.call(args);
+			}
+			catch (ServerError se) {
+				// an error reply, the connection is still fine
+				if (i >= MAX_REDIRECTS) throw se;
+				Redirect r = Redirect.parse(se.getMessage(), node);
+				if (r == null) {
+					if (!(se.getMessage() + "").startsWith("TRYAGAIN")) throw se;
+					// keys of a multi key command are in the middle of a migration
+					sleep(100);
+					continue;
+				}
+				target = node(r.host, r.port);
+				asking = !r.moved;
+				if (r.moved) moved(r.slot, target);
+			}
+			catch (Exception e) {
+				node.invalidate(conn);
+				conn = null;
+				throw e instanceof IOException ? (IOException) e : new IOException(e);
+			}
+			finally {
+				if (conn != null) node.release(conn);
+			}
+		}
+	}
+
+	/**
+	 * executes all commands with the same key on the node serving it.
+	 */
+	public List<Object> pipeline(byte[] key, List<Object[]> commands) throws IOException {
+		List<byte[]> keys = new ArrayList<>(commands.size());
+		for (int i = 0; i < commands.size(); i++) {
+			keys.add(key);
+		}
+		return pipeline(keys, commands);
+	}
+
+	/**
+	 * Executes the commands on the nodes serving their keys, pipelined per node and all nodes in
+	 * parallel. Commands redirected by the cluster are executed again one by one on the node they were
+	 * redirected to.
+	 *
+	 * @param keys key to route every command by, aligned with the commands, null for any node
+	 * @return the replies, aligned with the commands
+	 * @throws IOException if a node fails or Redis answers with an error for any of the commands, the
+	 *             first error is thrown after all replies were read
+	 */
+	public List<Object> pipeline(List<byte[]> keys, List<? extends Object[]> commands) throws IOException {
+		Map<Node, List<Integer>> byNode = new LinkedHashMap<>();
+		for (int i = 0; i < commands.size(); i++) {
+			byNode.computeIfAbsent(node(keys.get(i)), k -> new ArrayList<>()).add(i);
+		}
+
+		Object[] results = new Object[commands.size()];
+		List<Future<?>> futures = new ArrayList<>();
+		Map.Entry<Node, List<Integer>> inline = null;
+		for (Map.Entry<Node, List<Integer>> e: byNode.entrySet()) {
+			if (inline == null) {
+				// the caller thread takes one of the nodes itself
+				inline = e;
+				continue;
+			}
+			futures.add(executor.submit(() -> {
+				write(e.getKey(), e.getValue(), commands, results);
+				return null;
+			}));
+		}
+		IOException first = null;
+		if (inline != null) {
+			try {
+				write(inline.getKey(), inline.getValue(), commands, results);
+			}
+			catch (IOException e) {
+				first = e;
+			}
+		}
+		for (Future<?> f: futures) {
+			try {
+				f.get();
+			}
+			catch (ExecutionException e) {
+				if (first == null) first = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (first == null) first = new IOException("interrupted while waiting for Redis Cluster nodes", e);
+			}
+		}
+		if (first != null) throw first;
+
+		for (int i = 0; i < results.length; i++) {
+			if (!(results[i] instanceof ServerError)) continue;
+			ServerError se = (ServerError) results[i];
+			if (Redirect.parse(se.getMessage(), null) != null || (se.getMessage() + "").startsWith("TRYAGAIN")) {
+				results[i] = call(keys.get(i), commands.get(i));
+			}
+			else {
+				if (first == null) first = new ServerError(se.getMessage());
+				results[i] = null;
+			}
+		}
+		if (first != null) throw first;
+		return Arrays.asList(results);
+	}
+
+	private void write(Node node, List<Integer> indexes, List<? extends Object[]> commands, Object[] results) throws IOException {
+		Redis conn = node.borrow();
+		try {
+			for (int i: indexes) {
+				conn.write(commands.get(i));
+			}
+			conn.flush();
+			for (int i: indexes) {
+				try {
+					results[i] = conn.read();
+				}
+				catch (ServerError se) {
+					// handled by the caller, the other replies still need to be read
+					results[i] = se;
+				}
+			}
+		}
+		catch (Exception e) {
+			node.invalidate(conn);
+			conn = null;
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+		finally {
+			if (conn != null) node.release(conn);
+		}
+	}
+
+	/**
+	 * calls the function for every primary, all in parallel.
+	 *
+	 * @return the results of all primaries
+	 */
+	public <T> List<T> forEachMaster(NodeFunction<T> fn) throws IOException {
+		List<Node> m = masters();
+		List<Future<T>> futures = new ArrayList<>(m.size());
+		for (Node node: m) {
+			futures.add(executor.submit(() -> node.execute(fn)));
+		}
+		List<T> results = new ArrayList<>(m.size());
+		IOException first = null;
+		for (Future<T> f: futures) {
+			try {
+				results.add(f.get());
+			}
+			catch (ExecutionException e) {
+				if (first == null) first = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (first == null) first = new IOException("interrupted while waiting for Redis Cluster nodes", e);
+			}
+		}
+		if (first != null) throw first;
+		return results;
+	}
+
+	/**
+	 * the key a command is routed by, based on the key positions Redis reports for the command.
+	 *
+	 * @return the (first) key or null if the command has no key
+	 */
+	public byte[] key(byte[][] args) throws IOException {
+		if (args == null || args.length < 2) return null;
+		String name = new String(args[0], Coder.UTF8).trim().toUpperCase();
+		switch (name) {
+		// keys follow the number of keys
+		case "EVAL":
+		case "EVALSHA":
+		case "EVAL_RO":
+		case "EVALSHA_RO":
+		case "FCALL":
+		case "FCALL_RO":
+			return args.length > 3 && !"0".equals(new String(args[2], Coder.UTF8).trim()) ? args[3] : null;
+		case "XREAD":
+		case "XREADGROUP":
+			for (int i = 1; i < args.length - 1; i++) {
+				if ("STREAMS".equalsIgnoreCase(new String(args[i], Coder.UTF8))) return args[i + 1];
+			}
+			return null;
+		}
+		int[] pos = keyPositions.get(name);
+		if (pos == null) {
+			pos = new int[] { 0 };
+			Object res = call(null, "COMMAND", "INFO", name);
+			if (res instanceof List && !((List<?>) res).isEmpty() && ((List<?>) res).get(0) instanceof List) {
+				List<?> info = (List<?>) ((List<?>) res).get(0);
+				if (info.size() > 3 && info.get(3) instanceof Number) pos = new int[] { ((Number) info.get(3)).intValue() };
+			}
+			keyPositions.put(name, pos);
+		}
+		return pos[0] > 0 && pos[0] < args.length ? args[pos[0]] : null;
+	}
+
+	public void close() {
+		executor.shutdownNow();
+		for (Node node: nodes.values()) {
+			if (node.pool.getFactory() != seed) node.pool.close();
+		}
+	}
+
+	private void refresh(boolean force) throws IOException {
+		if (!force && System.currentTimeMillis() - lastRefresh < MIN_REFRESH_INTERVAL && !masters.isEmpty()) return;
+		refresh();
+	}
+
+	private void moved(int slot, Node node) {
+		Node[] table = slots;
+		table[slot] = node;
+		// other slots most likely moved as well
+		try {
+			refresh(false);
+		}
+		catch (IOException e) {
+			if (log != null) log.error("redis-cache", e);
+		}
+	}
+
+	protected Node node(String host, int port) {
+		return nodes.computeIfAbsent(address(host, port), k -> new Node(host, port, new RedisPool(seed.forNode(host, port), config, listener)));
+	}
+
+	protected static String address(String host, int port) {
+		return host + ":" + port;
+	}
+
+	private static Map<String, Object> toMap(Object obj) {
+		if (obj instanceof Map) {
+			Map<String, Object> map = new HashMap<>();
+			for (Map.Entry<?, ?> e: ((Map<?, ?>) obj).entrySet()) {
+				map.put(str(e.getKey()), e.getValue());
+			}
+			return map;
+		}
+		// RESP2 returns maps as flat lists
+		List<?> list = (List<?>) obj;
+		Map<String, Object> map = new HashMap<>();
+		for (int i = 0; i + 1 < list.size(); i += 2) {
+			map.put(str(list.get(i)), list.get(i + 1));
+		}
+		return map;
+	}
+
+	private static String str(Object obj) {
+		if (obj == null) return null;
+		if (obj instanceof byte[]) return new String((byte[]) obj, Coder.UTF8);
+		return obj.toString();
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@FunctionalInterface
+	public interface NodeFunction<T> {
+		T apply(Redis conn) throws IOException;
+	}
+
+	/**
+	 * A primary with its connection pool.
+	 */
+	public static class Node {
+		private final String host;
+		private final int port;
+		private final RedisPool pool;
+
+		Node(String host, int port, RedisPool pool) {
+			this.host = host;
+			this.port = port;
+			this.pool = pool;
+		}
+
+		public RedisPool getPool() {
+			return pool;
+		}
+
+		public Redis borrow() throws IOException {
+			try {
+				Redis redis = pool.borrowObject();
+				if (redis == null) throw new IOException("could not aquire a connection to [" + this + "]");
+				return redis;
+			}
+			catch (IOException e) {
+				throw e;
+			}
+			catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+
+		public void release(Redis conn) {
+			if (conn != null) pool.returnObject(conn);
+		}
+
+		/**
+		 * @return version and features of the node, connects to it if that did not happen yet, null if
+		 *         they are not known
+		 */
+		public Capabilities capabilities() throws IOException {
+			RedisFactory factory = (RedisFactory) pool.getFactory();
+			if (factory.getCapabilities() == null) release(borrow());
+			return factory.getCapabilities();
+		}
+
+		public void invalidate(Redis conn) {
+			try {
+				if (conn != null) pool.invalidateObject(conn);
+			}
+			catch (Exception e) {
+				// the pool logs itself
+			}
+		}
+
+		/**
+		 * runs the function with a connection of this node.
+		 */
+		public <T> T execute(NodeFunction<T> fn) throws IOException {
+			Redis conn = borrow();
+			try {
+				return fn.apply(conn);
+			}
+			catch (ServerError se) {
+				throw se;
+			}
+			catch (Exception e) {
+				invalidate(conn);
+				conn = null;
+				throw e instanceof IOException ? (IOException) e : new IOException(e);
+			}
+			finally {
+				if (conn != null) release(conn);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return address(host, port);
+		}
+	}
+
+	/**
+	 * "MOVED slot host:port" or "ASK slot host:port"
+	 */
+	private static class Redirect {
+		private final boolean moved;
+		private final int slot;
+		private final String host;
+		private final int port;
+
+		private Redirect(boolean moved, int slot, String host, int port) {
+			this.moved = moved;
+			this.slot = slot;
+			this.host = host;
+			this.port = port;
+		}
+
+		static Redirect parse(String msg, Node from) {
+			if (msg == null) return null;
+			boolean moved = msg.startsWith("MOVED ");
+			if (!moved && !msg.startsWith("ASK ")) return null;
+			String[] parts = msg.trim().split(" ");
+			if (parts.length < 3) return null;
+			int index = parts[2].lastIndexOf(':');
+			if (index == -1) return null;
+			try {
+				String host = parts[2].substring(0, index);
+				// an empty host means the same host as the node that answered
+				if (host.isEmpty() && from != null) host = from.host;
+				return new Redirect(moved, Integer.parseInt(parts[1]), host, Integer.parseInt(parts[2].substring(index + 1)));
+			}
+			catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+}
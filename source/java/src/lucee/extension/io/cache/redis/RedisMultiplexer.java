@@ -0,0 +1,433 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisFactory;
+import lucee.extension.io.cache.redis.Redis.Parser.ProtocolException;
+import lucee.extension.io.cache.redis.Redis.Parser.ServerError;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Shares a small number of connections between all caller threads instead of borrowing an exclusive
+ * connection from the pool for every operation.
+ * <p>
+ * Commands are written in order to a connection and a reader thread per connection matches the
+ * replies back to the waiting callers in FIFO order, the same way Redis pipelining works. Blocking
+ * commands and commands that change the state of a connection cannot be shared, see
+ * {@link #isMultiplexable(byte[][], boolean)}, those still need a pooled connection.
+ * <p>
+ * A caller waits for its reply no longer than the socket timeout of the factory. Without a reply in
+ * time the replies can no longer be matched to the callers, so all callers waiting on that
+ * connection fail and the next command connects again. Like pooled connections, a shared connection
+ * is replaced once it reaches the live or the idle timeout, the old one is closed as soon as the
+ * replies still expected on it arrived.
+ */
+public class RedisMultiplexer {
+
+	private final RedisFactory factory;
+	private final Connection[] connections;
+	private final AtomicInteger next = new AtomicInteger();
+	private final Log log;
+	private final Listener listener;
+	private volatile boolean closed;
+
+	/**
+	 * Gets informed about the life cycle of the shared connections and about messages the server pushes
+	 * to them.
+	 */
+	public interface Listener {
+
+		/**
+		 * a new connection was established, called before the connection is shared, so this is the place
+		 * to switch protocol or to enable features on the connection.
+		 */
+		public void connected(Redis redis) throws IOException;
+
+		public void disconnected(IOException cause);
+
+		/**
+		 * out of band message pushed by the server to a RESP3 connection.
+		 */
+		public void push(Redis.Push message);
+	}
+
+	public RedisMultiplexer(RedisFactory factory, int size, Log log) {
+		this(factory, size, log, null);
+	}
+
+	public RedisMultiplexer(RedisFactory factory, int size, Log log, Listener listener) {
+		this.factory = factory;
+		this.log = log;
+		this.listener = listener;
+		this.connections = new Connection[size < 1 ? 1 : size];
+		for (int i = 0; i < connections.length; i++) {
+			connections[i] = new Connection(i);
+		}
+	}
+
+	/**
+	 * Execute a single command and wait for its reply.
+	 *
+	 * @param args Command and arguments
+	 * @return Result of redis
+	 * @throws IOException in case the connection fails or Redis answers with an error
+	 */
+	public Object call(Object... args) throws IOException {
+		return connection().send(new Object[][] { args })[0].get();
+	}
+
+	/**
+	 * Writes all commands in one go (without any other command in between) and waits for all replies.
+	 *
+	 * @param commands Commands with their arguments
+	 * @return An aligned list of responses for each of the commands.
+	 * @throws IOException in case the connection fails or Redis answers with an error for any of the
+	 *             commands
+	 */
+	public List<Object> pipeline(List<? extends Object[]> commands) throws IOException {
+		Pending[] pendings = connection().send(commands.toArray(new Object[commands.size()][]));
+		List<Object> results = new ArrayList<>(pendings.length);
+		IOException first = null;
+		for (Pending p: pendings) {
+			try {
+				results.add(p.get());
+			}
+			catch (IOException e) {
+				// keep reading, so we do not leave replies behind that belong to us
+				if (first == null) first = e;
+				results.add(null);
+			}
+		}
+		if (first != null) throw first;
+		return results;
+	}
+
+	public int size() {
+		return connections.length;
+	}
+
+	public void close() {
+		closed = true;
+		for (Connection c: connections) {
+			c.close();
+		}
+	}
+
+	/**
+	 * drops the current connections, callers waiting for a reply fail right away and the next command
+	 * connects again (for example to a new primary after a failover).
+	 */
+	public void reconnect() {
+		for (Connection c: connections) {
+			c.close();
+		}
+	}
+
+	private Connection connection() throws IOException {
+		if (closed) throw new IOException("the multiplexed connection is closed");
+		if (connections.length == 1) return connections[0];
+		return connections[(next.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+	}
+
+	/**
+	 * checks if a command (or a group of commands send together) can be executed on a shared
+	 * connection.
+	 *
+	 * @param args command and arguments
+	 * @param pipelined if true the command is part of a group that is written without any other command
+	 *            in between, so transactions (MULTI/EXEC) are fine.
+	 */
+	public static boolean isMultiplexable(byte[][] args, boolean pipelined) {
+		if (args == null || args.length == 0 || args[0] == null) return false;
+		String name = new String(args[0], Coder.UTF8).trim().toUpperCase();
+		switch (name) {
+		// blocking commands would hold up all other callers
+		case "BLPOP":
+		case "BRPOP":
+		case "BRPOPLPUSH":
+		case "BLMOVE":
+		case "BLMPOP":
+		case "BZPOPMIN":
+		case "BZPOPMAX":
+		case "BZMPOP":
+		case "WAIT":
+		case "WAITAOF":
+			// commands that change the state of the connection
+		case "SELECT":
+		case "AUTH":
+		case "HELLO":
+		case "CLIENT":
+		case "RESET":
+		case "QUIT":
+		case "MONITOR":
+		case "SUBSCRIBE":
+		case "PSUBSCRIBE":
+		case "SSUBSCRIBE":
+		case "UNSUBSCRIBE":
+		case "PUNSUBSCRIBE":
+		case "SUNSUBSCRIBE":
+			return false;
+		case "XREAD":
+		case "XREADGROUP":
+			for (int i = 1; i < args.length; i++) {
+				if (args[i] != null && "BLOCK".equalsIgnoreCase(new String(args[i], Coder.UTF8))) return false;
+			}
+			return true;
+		case "MULTI":
+		case "EXEC":
+		case "DISCARD":
+		case "WATCH":
+		case "UNWATCH":
+			return pipelined;
+		default:
+			return true;
+		}
+	}
+
+	public static boolean isMultiplexable(List<byte[][]> commands) {
+		for (byte[][] args: commands) {
+			if (!isMultiplexable(args, true)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A single shared connection, (re)connects lazily whenever the current link is broken.
+	 */
+	private class Connection {
+		private final int index;
+		private final Object writeLock = new Object();
+		private Link link;
+
+		Connection(int index) {
+			this.index = index;
+		}
+
+		Pending[] send(Object[][] commands) throws IOException {
+			Pending[] pendings = new Pending[commands.length];
+			synchronized (writeLock) {
+				Link l = link;
+				if (l == null || l.broken) {
+					link = l = new Link(this, connect());
+				}
+				else if (factory.expired(l.redis)) {
+					Link old = l;
+					link = l = new Link(this, connect());
+					old.retire();
+				}
+				l.redis.lastUsed = System.currentTimeMillis();
+				try {
+					for (int i = 0; i < commands.length; i++) {
+						// queue before we write, a partially flushed buffer can already produce a reply
+						l.queue.add(pendings[i] = new Pending(l, factory.getSocketTimeout()));
+						l.redis.write(commands[i]);
+					}
+					l.redis.flush();
+				}
+				catch (Exception e) {
+					IOException ioe = e instanceof IOException ? (IOException) e : new IOException(e);
+					l.fail(ioe);
+					throw ioe;
+				}
+			}
+			return pendings;
+		}
+
+		private Redis connect() throws IOException {
+			Redis redis = factory.create();
+			if (listener != null) {
+				try {
+					listener.connected(redis);
+				}
+				catch (IOException e) {
+					Socket socket = redis.getSocket();
+					if (socket != null) socket.close();
+					throw e;
+				}
+			}
+			return redis;
+		}
+
+		void close() {
+			synchronized (writeLock) {
+				if (link != null) link.fail(new IOException("the multiplexed connection was closed"));
+				link = null;
+			}
+		}
+	}
+
+	/**
+	 * One physical connection with its reader thread and the callers waiting for a reply on it.
+	 */
+	private class Link implements Runnable {
+		private final Redis redis;
+		private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+		private volatile boolean broken;
+		private volatile boolean retired;
+
+		Link(Connection connection, Redis redis) {
+			this.redis = redis;
+			Thread reader = new Thread(this, "redis-multiplexer-" + connection.index + "-" + redis.getSocket().getRemoteSocketAddress());
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		@Override
+		public void run() {
+			Object res;
+			IOException err;
+			while (!broken) {
+				err = null;
+				res = null;
+				try {
+					res = redis.read();
+				}
+				catch (ServerError se) {
+					// error reply for this single command, the connection itself is still fine
+					err = se;
+				}
+				catch (IOException ioe) {
+					fail(ioe);
+					return;
+				}
+				catch (Throwable t) {
+					fail(new IOException(t));
+					return;
+				}
+				if (res instanceof Redis.Push) {
+					if (listener != null) {
+						try {
+							listener.push((Redis.Push) res);
+						}
+						catch (Exception e) {
+							if (log != null) log.error("redis-cache", e);
+						}
+					}
+					continue;
+				}
+				Pending p = queue.poll();
+				if (p == null) {
+					fail(new ProtocolException("Received a reply from Redis no command was waiting for"));
+					return;
+				}
+				p.complete(res, err);
+				if (retired && queue.isEmpty()) shutdown();
+			}
+		}
+
+		/**
+		 * nothing new is sent on this link, it is closed once all replies expected on it arrived.
+		 */
+		void retire() {
+			retired = true;
+			if (queue.isEmpty()) shutdown();
+		}
+
+		/**
+		 * closes the link without informing anybody, there is nobody waiting on it.
+		 */
+		private void shutdown() {
+			broken = true;
+			Socket socket = redis.getSocket();
+			try {
+				if (socket != null) socket.close();
+			}
+			catch (Exception e) {
+				if (log != null) log.error("redis-cache", e);
+			}
+		}
+
+		void fail(IOException cause) {
+			if (!broken) {
+				broken = true;
+				if (log != null && !closed) log.error("redis-cache", cause);
+				if (listener != null) listener.disconnected(cause);
+				Socket socket = redis.getSocket();
+				try {
+					if (socket != null) socket.close();
+				}
+				catch (Exception e) {
+					if (log != null) log.error("redis-cache", e);
+				}
+			}
+			Pending p;
+			while ((p = queue.poll()) != null) {
+				p.complete(null, cause);
+			}
+		}
+	}
+
+	/**
+	 * The reply a caller is waiting for.
+	 */
+	private static class Pending {
+		private final Link link;
+		private final long timeout;
+		private Object result;
+		private IOException error;
+		private boolean done;
+
+		/**
+		 * @param timeout ms to wait for the reply, 0 or less for no limit
+		 */
+		Pending(Link link, long timeout) {
+			this.link = link;
+			this.timeout = timeout;
+		}
+
+		synchronized void complete(Object result, IOException error) {
+			this.result = result;
+			this.error = error;
+			this.done = true;
+			notifyAll();
+		}
+
+		Object get() throws IOException {
+			synchronized (this) {
+				long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+				long remaining;
+				while (!done) {
+					try {
+						if (deadline == 0) wait();
+						else {
+							remaining = deadline - System.currentTimeMillis();
+							if (remaining <= 0) break;
+							wait(remaining);
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException("interrupted while waiting for a reply from Redis", e);
+					}
+				}
+			}
+			// outside the lock, failing the link completes the other callers waiting on it as well
+			if (!isDone()) {
+				// replies can no longer be matched to the callers, everybody waiting on the link fails, this one
+				// included, and the next command connects again
+				link.fail(new SocketTimeoutException("no reply from Redis within " + timeout + "ms"));
+			}
+			synchronized (this) {
+				// the reader took the reply off the link but has not handed it over yet
+				if (!done) throw new SocketTimeoutException("no reply from Redis within " + timeout + "ms");
+				if (error != null) {
+					// rethrow with the stack of the caller, the message is what callers check for (WRONGTYPE ...)
+					if (error instanceof ServerError) throw new ServerError(error.getMessage());
+					throw new IOException(error.getMessage(), error);
+				}
+				return result;
+			}
+		}
+
+		private synchronized boolean isDone() {
+			return done;
+		}
+	}
+}
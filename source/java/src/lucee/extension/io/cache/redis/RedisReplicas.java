@@ -0,0 +1,356 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisFactory;
+import lucee.extension.io.cache.pool.RedisPool;
+import lucee.extension.io.cache.pool.RedisPoolConfig;
+import lucee.extension.io.cache.pool.RedisPoolListener;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Routes read only commands to the replicas of the primary.
+ * <p>
+ * Every replica gets its own connection pool. The replicas are the ones configured or, if none are
+ * configured, the ones the primary lists as online in "INFO replication". A monitor thread checks
+ * them periodically: the round trip of a PING is measured and the replication offset of every
+ * replica is compared with the one of the primary. A replica that lost the link to the primary or
+ * fell behind more than the configured lag (in bytes of the replication stream) is not used until it
+ * caught up again.
+ */
+public class RedisReplicas {
+
+	/**
+	 * reads go to the primary only (default)
+	 */
+	public static final int PRIMARY = 0;
+	/**
+	 * reads go to the replicas only, they fail if none is available
+	 */
+	public static final int REPLICA = 1;
+	/**
+	 * reads go to the replicas, to the primary if none is available
+	 */
+	public static final int REPLICA_PREFERRED = 2;
+	/**
+	 * reads go to the node with the lowest measured latency, primary included
+	 */
+	public static final int NEAREST = 3;
+
+	private final RedisFactory primary;
+	private final List<String> configured;
+	private final int mode;
+	private final long maxLag;
+	private final long interval;
+	private final RedisPoolConfig config;
+	private final RedisPoolListener listener;
+	private final Log log;
+
+	private volatile Map<String, Replica> replicas = new LinkedHashMap<>();
+	private volatile Replica[] available = new Replica[0];
+	private volatile long primaryLatency = Long.MAX_VALUE;
+	private final AtomicInteger next = new AtomicInteger();
+
+	private volatile boolean closed;
+	private volatile Redis monitor;
+
+	/**
+	 * @param primary factory of the primary, also used as template for the replica connections
+	 * @param configured replicas ("host:port"), empty to use the ones the primary reports
+	 * @param mode one of {@link #REPLICA}, {@link #REPLICA_PREFERRED} or {@link #NEAREST}
+	 * @param maxLag max number of bytes a replica can be behind the primary, 0 for no limit
+	 * @param interval how often (ms) the replicas are checked
+	 * @param config configuration used for the pools of the replicas
+	 * @param listener listener used for the pools of the replicas, can be null
+	 * @param log log, can be null
+	 */
+	RedisReplicas(RedisFactory primary, List<String> configured, int mode, long maxLag, long interval, RedisPoolConfig config, RedisPoolListener listener, Log log) {
+		this.primary = primary;
+		this.configured = configured;
+		this.mode = mode;
+		this.maxLag = Math.max(0, maxLag);
+		this.interval = Math.max(100, interval);
+		this.config = config;
+		this.listener = listener;
+		this.log = log;
+	}
+
+	/**
+	 * @return the mode for the value of the `readFrom` init argument, -1 if the value is invalid
+	 */
+	public static int toMode(String str) {
+		if (str == null) return PRIMARY;
+		switch (str.trim().toLowerCase().replace("_", "").replace("-", "")) {
+		case "":
+		case "primary":
+		case "master":
+			return PRIMARY;
+		case "replica":
+		case "slave":
+			return REPLICA;
+		case "replicapreferred":
+		case "slavepreferred":
+			return REPLICA_PREFERRED;
+		case "nearest":
+		case "lowestlatency":
+			return NEAREST;
+		}
+		return -1;
+	}
+
+	public void start() {
+		check();
+		Thread t = new Thread(this::monitorLoop, "redis-cache-replica-monitor");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * @return a connection to the replica to read from or null if the read should go to the primary
+	 * @throws IOException if no replica is available in mode {@link #REPLICA}
+	 */
+	public Redis borrow() throws IOException {
+		Replica replica = choose();
+		if (replica == null) {
+			if (mode == REPLICA) throw new IOException("no Redis replica is available to read from");
+			return null;
+		}
+		try {
+			Redis redis = replica.pool.borrowObject();
+			if (redis == null) throw new IOException("could not aquire a connection to the replica [" + replica + "]");
+			return redis;
+		}
+		catch (Exception e) {
+			if (log != null) log.error("redis-cache", e);
+			// the monitor takes it out with the next check, until then the primary steps in
+			replica.available = false;
+			if (mode == REPLICA) throw e instanceof IOException ? (IOException) e : new IOException(e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the pool of the replica the connection was borrowed from, null if it is not from a replica
+	 */
+	public RedisPool owner(Redis conn) {
+		for (Replica replica: replicas.values()) {
+			if (replica.pool.owns(conn)) return replica.pool;
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of replicas currently used for reads
+	 */
+	public int size() {
+		return available.length;
+	}
+
+	/**
+	 * the primary changed, the replicas are checked again right away.
+	 */
+	public void reconnect() {
+		Redis redis = monitor;
+		monitor = null;
+		if (redis != null) close(redis);
+	}
+
+	public void close() {
+		closed = true;
+		reconnect();
+		for (Replica replica: replicas.values()) {
+			replica.pool.close();
+		}
+	}
+
+	private Replica choose() {
+		Replica[] arr = available;
+		if (arr.length == 0) return null;
+		if (mode == NEAREST) {
+			Replica nearest = null;
+			for (Replica r: arr) {
+				if (r.available && (nearest == null || r.latency < nearest.latency)) nearest = r;
+			}
+			return nearest == null || nearest.latency >= primaryLatency ? null : nearest;
+		}
+		for (int i = 0; i < arr.length; i++) {
+			Replica r = arr[(next.getAndIncrement() & Integer.MAX_VALUE) % arr.length];
+			if (r.available) return r;
+		}
+		return null;
+	}
+
+	private void monitorLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(interval);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			if (!closed) check();
+		}
+	}
+
+	private void check() {
+		long masterOffset;
+		List<String> discovered = new ArrayList<>();
+		Redis redis = monitor;
+		try {
+			if (redis == null) monitor = redis = primary.create();
+			long start = System.nanoTime();
+			redis.call("PING");
+			primaryLatency = average(primaryLatency, System.nanoTime() - start);
+			Map<String, String> info = info(redis);
+			masterOffset = toLong(info.get("master_repl_offset"));
+			// slave0:ip=10.0.0.2,port=6379,state=online,offset=1234,lag=0
+			for (Map.Entry<String, String> e: info.entrySet()) {
+				if (!e.getKey().startsWith("slave") || !e.getValue().contains("ip=")) continue;
+				Map<String, String> slave = split(e.getValue(), ',');
+				if ("online".equals(slave.get("state"))) discovered.add(slave.get("ip") + ":" + slave.get("port"));
+			}
+		}
+		catch (Exception e) {
+			if (log != null && !closed) log.error("redis-cache", e);
+			monitor = null;
+			if (redis != null) close(redis);
+			// without the offset of the primary we cannot tell the lag
+			primaryLatency = Long.MAX_VALUE;
+			masterOffset = -1;
+		}
+
+		sync(configured.isEmpty() ? discovered : configured);
+
+		List<Replica> list = new ArrayList<>();
+		for (Replica replica: replicas.values()) {
+			replica.available = check(replica, masterOffset);
+			if (replica.available) list.add(replica);
+		}
+		available = list.toArray(new Replica[list.size()]);
+	}
+
+	private boolean check(Replica replica, long masterOffset) {
+		Redis conn = null;
+		try {
+			conn = replica.pool.borrowObject();
+			long start = System.nanoTime();
+			conn.call("PING");
+			replica.latency = average(replica.latency, System.nanoTime() - start);
+			Map<String, String> info = info(conn);
+			if (!"up".equals(info.get("master_link_status"))) return false;
+			if (maxLag > 0) {
+				if (masterOffset < 0) return false;
+				long lag = masterOffset - toLong(info.get("slave_repl_offset"));
+				if (lag > maxLag) {
+					if (log != null) log.debug("redis-cache", "replica [" + replica + "] is " + lag + " bytes behind the primary");
+					return false;
+				}
+			}
+			return true;
+		}
+		catch (Exception e) {
+			if (log != null && !closed) log.error("redis-cache", e);
+			try {
+				if (conn != null) replica.pool.invalidateObject(conn);
+			}
+			catch (Exception ex) {
+				if (log != null) log.error("redis-cache", ex);
+			}
+			conn = null;
+			return false;
+		}
+		finally {
+			if (conn != null) replica.pool.returnObject(conn);
+		}
+	}
+
+	private void sync(List<String> addresses) {
+		Map<String, Replica> current = replicas;
+		Map<String, Replica> updated = new LinkedHashMap<>();
+		for (String addr: addresses) {
+			Replica replica = current.get(addr);
+			if (replica == null) {
+				int index = addr.lastIndexOf(':');
+				String host = index == -1 ? addr : addr.substring(0, index);
+				int port = index == -1 ? primary.getPort() : Integer.parseInt(addr.substring(index + 1));
+				replica = new Replica(host, port, new RedisPool(primary.forNode(host, port), config, listener));
+			}
+			updated.put(addr, replica);
+		}
+		replicas = updated;
+		for (Map.Entry<String, Replica> e: current.entrySet()) {
+			if (!updated.containsKey(e.getKey())) {
+				e.getValue().available = false;
+				e.getValue().pool.abort();
+			}
+		}
+	}
+
+	private static Map<String, String> info(Redis redis) throws IOException {
+		Object res = redis.call("INFO", "replication");
+		return split(res instanceof byte[] ? new String((byte[]) res, Coder.UTF8) : "", '\n');
+	}
+
+	private static Map<String, String> split(String str, char delimiter) {
+		Map<String, String> map = new LinkedHashMap<>();
+		int index;
+		for (String line: str.split(String.valueOf(delimiter))) {
+			line = line.trim();
+			index = delimiter == '\n' ? line.indexOf(':') : line.indexOf('=');
+			if (index > 0) map.put(line.substring(0, index), line.substring(index + 1).trim());
+		}
+		return map;
+	}
+
+	private static long toLong(String str) {
+		if (str == null) return 0L;
+		try {
+			return Long.parseLong(str.trim());
+		}
+		catch (NumberFormatException e) {
+			return 0L;
+		}
+	}
+
+	private static long average(long current, long sample) {
+		// exponentially weighted, so a single slow round trip does not flip the decision
+		if (current == Long.MAX_VALUE) return sample;
+		return (current * 3 + sample) / 4;
+	}
+
+	private void close(Redis redis) {
+		try {
+			Socket socket = redis.getSocket();
+			if (socket != null) socket.close();
+		}
+		catch (Exception e) {
+			if (log != null) log.error("redis-cache", e);
+		}
+	}
+
+	private static class Replica {
+		private final String host;
+		private final int port;
+		private final RedisPool pool;
+		private volatile boolean available;
+		private volatile long latency = Long.MAX_VALUE;
+
+		Replica(String host, int port, RedisPool pool) {
+			this.host = host;
+			this.port = port;
+			this.pool = pool;
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisFactory;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Discovers the current primary of a Redis deployment managed by Sentinel.
+ * <p>
+ * The primary is resolved with "SENTINEL get-master-addr-by-name" from the first sentinel that
+ * answers. A subscriber thread listens on the "+switch-master" channel of one of the sentinels and
+ * reports a failover as soon as the sentinels agreed on the new primary. Whenever that subscription
+ * is (re)established the primary is resolved again, a switch may have happened in the meantime.
+ */
+public class RedisSentinel {
+
+	private static final byte[] SWITCH_MASTER = "+switch-master".getBytes(Coder.UTF8);
+	private static final byte[] MESSAGE = "message".getBytes(Coder.UTF8);
+
+	/**
+	 * Gets informed about the primary to use.
+	 */
+	public interface Listener {
+
+		/**
+		 * called with the current primary whenever the subscription is established and with the new
+		 * primary after a failover, so it can be called with the address already in use.
+		 */
+		public void switched(String host, int port);
+	}
+
+	private final List<RedisFactory> sentinels;
+	private final String masterName;
+	private final Listener listener;
+	private final Log log;
+
+	private volatile boolean closed;
+	private volatile Redis subscription;
+
+	/**
+	 * @param sentinels factories for the connections to the sentinels
+	 * @param masterName name of the monitored primary
+	 * @param listener informed about a failover
+	 * @param log log, can be null
+	 */
+	RedisSentinel(List<RedisFactory> sentinels, String masterName, Listener listener, Log log) {
+		this.sentinels = sentinels;
+		this.masterName = masterName;
+		this.listener = listener;
+		this.log = log;
+	}
+
+	public String getMasterName() {
+		return masterName;
+	}
+
+	/**
+	 * @return host and port of the current primary
+	 * @throws IOException if no sentinel answers or none of them knows the primary
+	 */
+	public String[] resolve() throws IOException {
+		IOException last = null;
+		for (RedisFactory factory: sentinels) {
+			Redis redis = null;
+			try {
+				redis = factory.create();
+				Object res = redis.call("SENTINEL", "get-master-addr-by-name", masterName);
+				if (res instanceof List && ((List<?>) res).size() >= 2) {
+					List<?> addr = (List<?>) res;
+					return new String[] { new String((byte[]) addr.get(0), Coder.UTF8), new String((byte[]) addr.get(1), Coder.UTF8) };
+				}
+				last = new IOException("Sentinel at [" + factory.getHost() + ":" + factory.getPort() + "] does not know the primary [" + masterName + "]");
+			}
+			catch (IOException e) {
+				last = e;
+			}
+			finally {
+				if (redis != null) close(redis);
+			}
+		}
+		throw last != null ? last : new IOException("no sentinel defined");
+	}
+
+	public void start() {
+		Thread subscriber = new Thread(this::subscribeLoop, "redis-cache-sentinel-subscriber");
+		subscriber.setDaemon(true);
+		subscriber.start();
+	}
+
+	public void close() {
+		closed = true;
+		Redis redis = subscription;
+		if (redis != null) close(redis);
+	}
+
+	private void subscribeLoop() {
+		int index = 0;
+		while (!closed) {
+			RedisFactory factory = sentinels.get(index++ % sentinels.size());
+			Redis redis = null;
+			try {
+				redis = factory.create();
+				Socket socket = redis.getSocket();
+				if (socket != null) socket.setKeepAlive(true);
+				subscription = redis;
+				redis.call("SUBSCRIBE", SWITCH_MASTER);
+				// we may have missed a switch while we were not subscribed
+				String[] addr = resolve();
+				listener.switched(addr[0], Integer.parseInt(addr[1]));
+
+				Object msg;
+				while (!closed) {
+					msg = redis.read();
+					if (msg instanceof List) receive((List<?>) msg);
+				}
+			}
+			catch (Exception e) {
+				if (log != null && !closed) log.error("redis-cache", e);
+			}
+			finally {
+				subscription = null;
+				if (redis != null) close(redis);
+			}
+			// the next sentinel right away, wait only after all of them failed
+			if (!closed && index % sentinels.size() == 0) sleep(1000);
+		}
+	}
+
+	private void receive(List<?> msg) {
+		if (msg.size() < 3 || !(msg.get(0) instanceof byte[]) || !Arrays.equals(MESSAGE, (byte[]) msg.get(0)) || !(msg.get(2) instanceof byte[])) return;
+		try {
+			String[] addr = switchedTo(masterName, new String((byte[]) msg.get(2), Coder.UTF8));
+			if (addr != null) listener.switched(addr[0], Integer.parseInt(addr[1]));
+		}
+		catch (Exception e) {
+			if (log != null) log.error("redis-cache", e);
+		}
+	}
+
+	/**
+	 * parses a "+switch-master" message, "&lt;master name&gt; &lt;old ip&gt; &lt;old port&gt; &lt;new
+	 * ip&gt; &lt;new port&gt;"
+	 *
+	 * @param masterName name of the monitored primary
+	 * @param message the message as published by the sentinel
+	 * @return host and port of the new primary, null if the message is about another primary or not
+	 *         a valid switch
+	 */
+	public static String[] switchedTo(String masterName, String message) {
+		if (message == null) return null;
+		String[] parts = message.trim().split("\\s+");
+		if (parts.length < 5 || !parts[0].equals(masterName)) return null;
+		try {
+			Integer.parseInt(parts[4]);
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		return new String[] { parts[3], parts[4] };
+	}
+
+	private void close(Redis redis) {
+		try {
+			Socket socket = redis.getSocket();
+			if (socket != null) socket.close();
+		}
+		catch (Exception e) {
+			if (log != null) log.error("redis-cache", e);
+		}
+	}
+
+	private void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
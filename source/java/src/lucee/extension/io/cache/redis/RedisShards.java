@@ -0,0 +1,158 @@
+package lucee.extension.io.cache.redis;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import lucee.commons.io.log.Log;
+import lucee.extension.io.cache.pool.RedisPool;
+import lucee.extension.io.cache.pool.RedisPoolConfig;
+import lucee.extension.io.cache.pool.RedisPoolListener;
+import lucee.extension.io.cache.util.Coder;
+
+/**
+ * Client side sharding over independent Redis instances.
+ * <p>
+ * The keys are mapped to hash slots exactly like in a Redis Cluster (see
+ * {@link RedisCluster#slot(byte[])}, hash tags included) and the slots are spread over the
+ * instances with a consistent hash ring. Every instance gets a number of virtual nodes on the ring
+ * (times its weight), a slot belongs to the next virtual node clockwise. Adding or removing an
+ * instance therefore only moves about 1/N of the slots, the others stay where they are. The ring
+ * only depends on the addresses and weights, not on the order the instances are configured in, so
+ * all nodes sharing the cache agree on it.
+ * <p>
+ * Everything else, routing, the parallel fan out of commands for many keys and of commands for all
+ * instances, is the one of {@link RedisCluster}. The instances never redirect, an instance that is
+ * down makes the commands for its keys fail.
+ */
+public class RedisShards extends RedisCluster {
+
+	private final List<String> shards;
+	private final int virtualNodes;
+
+	/**
+	 * @param seed pool of the instance configured with host/port, used for commands without a key if
+	 *            it is one of the shards
+	 * @param shards the instances ("host:port" or "host:port:weight", IPv6 addresses in brackets
+	 *            "[address]:port")
+	 * @param virtualNodes virtual nodes per instance and unit of weight
+	 * @param config configuration used for the pools of the instances
+	 * @param listener listener used for the pools of the instances, can be null
+	 * @param log log, can be null
+	 */
+	public RedisShards(RedisPool seed, List<String> shards, int virtualNodes, RedisPoolConfig config, RedisPoolListener listener, Log log) {
+		super(seed, new ArrayList<String>(), config, listener, log);
+		this.shards = shards;
+		this.virtualNodes = Math.max(1, virtualNodes);
+	}
+
+	/**
+	 * builds the ring, the instances are not contacted.
+	 */
+	@Override
+	public void refresh() throws IOException {
+		TreeMap<Long, Node> ring = new TreeMap<>();
+		List<Node> primaries = new ArrayList<>();
+		for (String shard: shards) {
+			String[] parts = parse(shard);
+			String host = parts[0];
+			int port = toInt(shard, "port", parts[1]);
+			int weight = parts[2] == null ? 1 : Math.max(1, toInt(shard, "weight", parts[2]));
+			Node node = node(host, port);
+			if (primaries.contains(node)) continue;
+			primaries.add(node);
+			// every digest gives 4 points on the ring
+			String name = address(host, port);
+			for (int i = 0, points = virtualNodes * weight; i * 4 < points; i++) {
+				byte[] digest = md5(name + "-" + i);
+				for (int j = 0; j < 4 && i * 4 + j < points; j++) {
+					ring.putIfAbsent(position(digest, j), node);
+				}
+			}
+		}
+		if (primaries.isEmpty()) throw new IOException("no Redis instance defined to shard over");
+
+		Node[] table = new Node[SLOTS];
+		for (int slot = 0; slot < SLOTS; slot++) {
+			Map.Entry<Long, Node> e = ring.ceilingEntry(position(md5(Integer.toString(slot)), 0));
+			table[slot] = (e == null ? ring.firstEntry() : e).getValue();
+		}
+		topology(table, primaries);
+	}
+
+	/**
+	 * The instances do not know slots, a multi key command can take keys of any slot the instance
+	 * serves. The keys are grouped by instance, so a command for many keys costs one round trip per
+	 * instance and not one per slot.
+	 */
+	@Override
+	public List<List<byte[]>> group(List<byte[]> keys, int max) throws IOException {
+		Map<Node, List<byte[]>> byNode = new LinkedHashMap<>();
+		for (byte[] key: keys) {
+			byNode.computeIfAbsent(node(key), k -> new ArrayList<>()).add(key);
+		}
+		return split(byNode.values(), max);
+	}
+
+	private static long position(byte[] digest, int index) {
+		int off = index * 4;
+		return ((long) (digest[off + 3] & 0xFF) << 24) | ((long) (digest[off + 2] & 0xFF) << 16) | ((long) (digest[off + 1] & 0xFF) << 8) | (digest[off] & 0xFF);
+	}
+
+	private static byte[] md5(String str) throws IOException {
+		try {
+			return MessageDigest.getInstance("MD5").digest(str.getBytes(Coder.UTF8));
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * splits "host:port[:weight]" or "[IPv6 address]:port[:weight]"
+	 *
+	 * @return host, port and weight (null if not defined)
+	 */
+	static String[] parse(String shard) throws IOException {
+		String str = shard.trim();
+		String host;
+		String rest;
+		if (str.startsWith("[")) {
+			int end = str.indexOf(']');
+			if (end == -1) throw new IOException("invalid shard [" + shard + "], the IPv6 address is missing the closing bracket");
+			host = str.substring(1, end).trim();
+			rest = str.substring(end + 1).trim();
+			if (!rest.isEmpty() && !rest.startsWith(":")) throw new IOException("invalid shard [" + shard + "], expected [address]:port or [address]:port:weight");
+			rest = rest.isEmpty() ? "" : rest.substring(1);
+		}
+		else {
+			int index = str.indexOf(':');
+			host = index == -1 ? str : str.substring(0, index).trim();
+			rest = index == -1 ? "" : str.substring(index + 1);
+			if (rest.indexOf(':') != rest.lastIndexOf(':')) {
+				throw new IOException("invalid shard [" + shard + "], expected host:port or host:port:weight, an IPv6 address has to be in brackets ([address]:port)");
+			}
+		}
+		if (host.isEmpty()) throw new IOException("invalid shard [" + shard + "], the host is missing");
+		if (rest.trim().isEmpty()) throw new IOException("invalid shard [" + shard + "], the port is missing, expected host:port or host:port:weight");
+		int index = rest.indexOf(':');
+		if (index == -1) return new String[] { host, rest.trim(), null };
+		return new String[] { host, rest.substring(0, index).trim(), rest.substring(index + 1).trim() };
+	}
+
+	private static int toInt(String shard, String name, String str) throws IOException {
+		try {
+			int value = Integer.parseInt(str);
+			if (value > 0) return value;
+		}
+		catch (NumberFormatException e) {
+			// same error as for a number out of range
+		}
+		throw new IOException("invalid shard [" + shard + "], the " + name + " [" + str + "] is not a positive number");
+	}
+}
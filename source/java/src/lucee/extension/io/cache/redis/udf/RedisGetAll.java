@@ -0,0 +1,65 @@
+package lucee.extension.io.cache.redis.udf;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import lucee.commons.io.cache.Cache;
+import lucee.extension.io.cache.redis.RedisCache;
+import lucee.extension.io.cache.util.RedisUtil;
+import lucee.loader.engine.CFMLEngine;
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.PageContext;
+import lucee.runtime.config.Config;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.ext.function.BIF;
+import lucee.runtime.ext.function.Function;
+import lucee.runtime.type.Struct;
+import lucee.runtime.util.Cast;
+
+public class RedisGetAll extends BIF implements Function {
+
+	private static final long serialVersionUID = 2920370325958614713L;
+
+	@Override
+	public Object invoke(PageContext pc, Object[] args) throws PageException {
+		CFMLEngine eng = CFMLEngineFactory.getInstance();
+		if (args.length < 1 || args.length > 2) throw eng.getExceptionUtil().createFunctionException(pc, "RedisGetAll", 1, 2, args.length);
+		Cast cast = eng.getCastUtil();
+
+		List<String> keys = new ArrayList<>();
+		if (eng.getDecisionUtil().isSimpleValue(args[0])) {
+			for (Object key: eng.getListUtil().toArrayRemoveEmpty(cast.toString(args[0]), ",").toList()) {
+				keys.add(cast.toString(key).trim());
+			}
+		}
+		else {
+			for (Object key: cast.toList(args[0])) {
+				keys.add(cast.toString(key));
+			}
+		}
+		String cacheName = args.length == 2 && args[1] != null ? cast.toString(args[1]).toUpperCase() : null;
+
+		Cache cache = RedisUtil.getCache(pc, cacheName, Config.CACHE_TYPE_OBJECT);
+		try {
+			Map<String, Object> values;
+			if (cache instanceof RedisCache) values = ((RedisCache) cache).getAll(keys);
+			else {
+				// loaded by another version of the extension
+				Method m = cache.getClass().getMethod("getAll", new Class[] { Collection.class });
+				values = (Map<String, Object>) m.invoke(cache, new Object[] { keys });
+			}
+			Struct result = eng.getCreationUtil().createStruct(Struct.TYPE_LINKED);
+			for (Map.Entry<String, Object> e: values.entrySet()) {
+				result.set(e.getKey(), e.getValue());
+			}
+			return result;
+		}
+		catch (Exception e) {
+			throw cast.toPageException(e);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package lucee.extension.io.cache.redis.udf;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lucee.commons.io.cache.Cache;
+import lucee.extension.io.cache.redis.RedisCache;
+import lucee.extension.io.cache.util.RedisUtil;
+import lucee.loader.engine.CFMLEngine;
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.PageContext;
+import lucee.runtime.config.Config;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.ext.function.BIF;
+import lucee.runtime.ext.function.Function;
+import lucee.runtime.type.Collection.Key;
+import lucee.runtime.type.Struct;
+import lucee.runtime.util.Cast;
+
+public class RedisPutAll extends BIF implements Function {
+
+	private static final long serialVersionUID = -1790539457469447931L;
+
+	@Override
+	public Object invoke(PageContext pc, Object[] args) throws PageException {
+		CFMLEngine eng = CFMLEngineFactory.getInstance();
+		if (args.length < 1 || args.length > 4) throw eng.getExceptionUtil().createFunctionException(pc, "RedisPutAll", 1, 4, args.length);
+		Cast cast = eng.getCastUtil();
+
+		Struct sct = cast.toStruct(args[0]);
+		Map<String, Object> values = new LinkedHashMap<>();
+		Iterator<Key> it = sct.keyIterator();
+		Key key;
+		while (it.hasNext()) {
+			key = it.next();
+			values.put(key.getString(), sct.get(key));
+		}
+		// like cachePut, timespans of 0 or less mean the default of the cache
+		Long live = args.length >= 2 && args[1] != null ? Long.valueOf(cast.toTimespan(args[1]).getMillis()) : null;
+		Long idle = args.length >= 3 && args[2] != null ? Long.valueOf(cast.toTimespan(args[2]).getMillis()) : null;
+		String cacheName = args.length == 4 && args[3] != null ? cast.toString(args[3]).toUpperCase() : null;
+
+		Cache cache = RedisUtil.getCache(pc, cacheName, Config.CACHE_TYPE_OBJECT);
+		try {
+			if (cache instanceof RedisCache) ((RedisCache) cache).putAll(values, idle, live);
+			else {
+				// loaded by another version of the extension
+				Method m = cache.getClass().getMethod("putAll", new Class[] { Map.class, Long.class, Long.class });
+				m.invoke(cache, new Object[] { values, idle, live });
+			}
+		}
+		catch (Exception e) {
+			throw cast.toPageException(e);
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,42 @@
+package lucee.extension.io.cache.redis.udf;
+
+import java.io.IOException;
+
+import lucee.extension.io.cache.redis.Command;
+import lucee.loader.engine.CFMLEngine;
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.PageContext;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.util.Cast;
+
+public class RedisScan extends AbstrRedisCommand {
+
+	private static final long serialVersionUID = -6394541730262046321L;
+
+	@Override
+	public Object invoke(PageContext pc, Object[] args) throws PageException {
+		CFMLEngine eng = CFMLEngineFactory.getInstance();
+		if (args.length > 4) throw eng.getExceptionUtil().createFunctionException(pc, "RedisScan", 0, 4, args.length);
+		Cast cast = eng.getCastUtil();
+
+		String pattern = args.length >= 1 && args[0] != null ? cast.toString(args[0]) : "*";
+		int count = args.length >= 2 && args[1] != null ? cast.toIntValue(args[1]) : 100;
+		String cacheName = args.length >= 3 && args[2] != null ? cast.toString(args[2]).toUpperCase() : null;
+		String cursor = args.length >= 4 && args[3] != null ? cast.toString(args[3]) : "0";
+
+		if (count < 1) throw eng.getExceptionUtil().createFunctionException(pc, "RedisScan", 2, "count", "count must be a positive number, now it is [" + count + "]", null);
+
+		try {
+			Command rc = getCommand(pc, eng, cacheName);
+			return new RedisScanCursor(rc, pattern, count, cursor);
+		}
+		catch (IOException e) {
+			throw cast.toPageException(e);
+		}
+	}
+
+	@Override
+	public boolean isLowPrio() {
+		return false;
+	}
+}
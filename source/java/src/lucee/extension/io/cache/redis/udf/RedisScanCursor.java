@@ -0,0 +1,116 @@
+package lucee.extension.io.cache.redis.udf;
+
+import java.io.IOException;
+import java.util.List;
+
+import lucee.extension.io.cache.redis.Command;
+import lucee.extension.io.cache.redis.RedisCache;
+import lucee.extension.io.cache.util.Coder;
+import lucee.loader.engine.CFMLEngine;
+import lucee.loader.engine.CFMLEngineFactory;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.type.Array;
+
+/**
+ * Walks the keys of a Redis cache batch by batch with SCAN, returned by the function RedisScan.
+ * <p>
+ * Redis keeps no state for a scan, so the position ({@link #getCursor()}) can be stored and passed to
+ * RedisScan later (even in another request) to continue where it stopped. Like SCAN itself, a key can
+ * be returned more than once and keys added or removed during the scan may or may not be returned.
+ * <p>
+ * With a cluster or shards, the nodes are walked one after the other, the position is then
+ * "node:cursor" (the first node has no prefix).
+ */
+public class RedisScanCursor {
+
+	private static final byte[] SCAN = Coder.toBytes("SCAN");
+	private static final byte[] MATCH = Coder.toBytes("MATCH");
+	private static final byte[] COUNT = Coder.toBytes("COUNT");
+
+	private final Command command;
+	private final byte[] pattern;
+	private final byte[] count;
+	private String cursor;
+	private int node;
+	private int nodes = -1;
+	private boolean done;
+
+	public RedisScanCursor(Command command, String pattern, int count, String cursor) throws IOException {
+		this.command = command;
+		this.pattern = Coder.toBytes(pattern);
+		this.count = Coder.toBytes(Integer.toString(count));
+		cursor = cursor == null || cursor.trim().isEmpty() ? "0" : cursor.trim();
+		int index = cursor.indexOf(':');
+		if (index != -1) {
+			try {
+				node = Integer.parseInt(cursor.substring(0, index));
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("invalid scan position [" + cursor + "]");
+			}
+			cursor = cursor.substring(index + 1);
+		}
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return true until the whole keyspace was walked
+	 */
+	public boolean hasNext() {
+		return !done;
+	}
+
+	/**
+	 * @return the next keys, count is a hint for Redis, not an exact number, the last batch can be empty
+	 */
+	public Array next() throws PageException {
+		CFMLEngine eng = CFMLEngineFactory.getInstance();
+		Array keys = eng.getCreationUtil().createArray();
+		try {
+			// matches can be sparse, go on until there is something or the end is reached
+			while (!done && keys.size() == 0) {
+				byte[][] args = new byte[][] { SCAN, Coder.toBytes(cursor), MATCH, pattern, COUNT, count };
+				List<Object> res;
+				if (command instanceof RedisCache) {
+					if (nodes == -1) nodes = ((RedisCache) command).scanNodes();
+					res = (List<Object>) ((RedisCache) command).scan(node, args);
+				}
+				// loaded by another version of the extension, a single node
+				else {
+					nodes = 1;
+					res = (List<Object>) command.command(args, false);
+				}
+				cursor = Coder.toString((byte[]) res.get(0));
+				// this node is done, on with the next one
+				if ("0".equals(cursor) && ++node >= nodes) done = true;
+				List<byte[]> batch = (List<byte[]>) res.get(1);
+				if (batch != null) {
+					for (byte[] key: batch) {
+						keys.appendEL(Coder.toString(key));
+					}
+				}
+			}
+			return keys;
+		}
+		catch (IOException e) {
+			throw eng.getCastUtil().toPageException(e);
+		}
+	}
+
+	/**
+	 * @return position to pass to RedisScan to continue from here, "0" once the scan is complete
+	 */
+	public String getCursor() {
+		if (done || node == 0) return cursor;
+		return node + ":" + cursor;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public String toString() {
+		return "RedisScanCursor:" + getCursor();
+	}
+}
@@ -37,6 +37,7 @@ import org.bson.BsonInt32;
 import org.bson.BsonInt64;
 import org.bson.BsonNull;
 import org.bson.BsonString;
+import org.bson.BsonType;
 import org.bson.BsonValue;
 import org.bson.codecs.BsonDocumentCodec;
 import org.bson.codecs.DecoderContext;
@@ -86,8 +87,29 @@ public class BSON {
 	private static final Class<?>[] IK_STOARE_VALUE_INIT = new Class[] { Map.class, byte[].class, long.class };
 	private static final Class<?>[] IK_STOARE_ITEM_INIT = new Class[] { Object.class, long.class };
 
+	/**
+	 * reuses the output buffer of the thread, up to this size, bigger ones are dropped after use
+	 */
+	private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<BasicOutputBuffer> buffers = new ThreadLocal<BasicOutputBuffer>() {
+		@Override
+		protected BasicOutputBuffer initialValue() {
+			return new BasicOutputBuffer();
+		}
+	};
+
+	private static final String ID_FIELD_NAME = "_id";
+
+	@SuppressWarnings("unchecked")
 	public static Map<String, Object> toMap(byte[] raw) throws IOException {
-		return toMap(toBsonDocument(raw));
+		BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(raw));
+		try {
+			return (Map<String, Object>) readDocument(reader, null, false);
+		}
+		finally {
+			reader.close();
+		}
 	}
 
 	public static Map<String, Object> toMap(BsonDocument bd) throws IOException {
@@ -113,8 +135,15 @@ public class BSON {
 		}
 	}
 
+	/**
+	 * @return false if the data cannot be a BSON document, checked without parsing it
+	 */
+	public static boolean isCandidate(byte[] raw) {
+		return raw.length > 0 && raw[raw.length - 1] == LAST_BYTE_OF_A_BSON_BYTE_ARRAY;
+	}
+
 	public static BsonDocument toBsonDocument(byte[] raw, BsonDocument defaultValue) {
-		if (raw.length == 0 || raw[raw.length - 1] != LAST_BYTE_OF_A_BSON_BYTE_ARRAY) return defaultValue;
+		if (!isCandidate(raw)) return defaultValue;
 
 		try {
 			return toBsonDocument(raw);
@@ -140,7 +169,122 @@ public class BSON {
 	}
 
 	public static Struct toStruct(byte[] raw, CFMLEngine engine) throws IOException, ClassNotFoundException {
-		return toStruct(toBsonDocument(raw), engine);
+		BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(raw));
+		try {
+			return (Struct) readDocument(reader, engine, false);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * reads a BSON document straight into a Struct (or an IKStorageValue if it is one), without a
+	 * BsonDocument in between.
+	 *
+	 * @return the value or the default value if the data is no BSON document
+	 * @throws IOException if the data is a BSON document, but a value in it cannot be read
+	 */
+	public static Object toObject(byte[] raw, CFMLEngine engine, Object defaultValue) throws IOException {
+		if (!isCandidate(raw)) return defaultValue;
+
+		BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(raw));
+		try {
+			return readDocument(reader, engine, true);
+		}
+		// the reader fails with runtime exceptions on invalid data
+		catch (RuntimeException e) {
+			return defaultValue;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private static Object readDocument(BsonBinaryReader reader, CFMLEngine engine, boolean storageValue) throws IOException {
+		reader.readStartDocument();
+		Struct sct = engine == null ? null : engine.getCreationUtil().createStruct(Struct.TYPE_LINKED);
+		Map<String, Object> map = engine == null ? new HashMap<>() : null;
+		BsonType type;
+		String name;
+		while ((type = reader.readBsonType()) != BsonType.END_OF_DOCUMENT) {
+			name = reader.readName();
+			// an IKStorageValue starts with its last modified date
+			if (storageValue && type == BsonType.INT64 && engine != null && IK_STORAGEVALUE_KEY.equals(name)) {
+				return readIKStorageValue(reader, reader.readInt64(), engine);
+			}
+			storageValue = false;
+			if (sct != null) sct.setEL(name, readValue(reader, type, engine));
+			else map.put(name, readValue(reader, type, engine));
+		}
+		reader.readEndDocument();
+		return sct != null ? sct : map;
+	}
+
+	private static Object readValue(BsonBinaryReader reader, BsonType type, CFMLEngine engine) throws IOException {
+		switch (type) {
+		case DOCUMENT:
+			return readDocument(reader, engine, false);
+		case STRING:
+			return reader.readString();
+		case BOOLEAN:
+			return reader.readBoolean();
+		case DOUBLE:
+			return reader.readDouble();
+		case ARRAY:
+			reader.readStartArray();
+			List<Object> list = (engine != null) ? (List) engine.getCreationUtil().createArray() : new ArrayList<>();
+			while ((type = reader.readBsonType()) != BsonType.END_OF_DOCUMENT) {
+				list.add(readValue(reader, type, engine));
+			}
+			reader.readEndArray();
+			return list;
+		case INT32:
+			return reader.readInt32();
+		case INT64:
+			return reader.readInt64();
+		case DECIMAL128:
+			Decimal128 dec = reader.readDecimal128();
+			if (dec.isNaN() || dec.isInfinite()) throw new IOException("BSON decimal [" + dec + "] cannot be converted to a number");
+			return dec.bigDecimalValue();
+		case DATE_TIME:
+			return new Date(reader.readDateTime());
+		case NULL:
+			reader.readNull();
+			return null;
+		case BINARY:
+			return toObject(reader.readBinaryData().getData());
+		default:
+			// invalid data has to fail as such, not as an unsupported type
+			reader.skipValue();
+			throw new IOException("BSON type [" + type.name() + "] is not supported yet!");
+		}
+	}
+
+	private static Object readIKStorageValue(BsonBinaryReader reader, long lastModified, CFMLEngine engine) throws IOException {
+		try {
+			initIKStorageValue(engine);
+			Map<Key, Object> map = new ConcurrentHashMap<>();
+			String name;
+			while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+				name = reader.readName();
+				reader.readStartArray();
+				reader.readBsonType();
+				long itemLastModified = reader.readInt64();
+				Object value = readValue(reader, reader.readBsonType(), engine);
+				reader.readBsonType();
+				reader.readEndArray();
+				map.put(engine.getCastUtil().toKey(name), IKStorageScopeItemConstr.newInstance(new Object[] { value, itemLastModified }));
+			}
+			reader.readEndDocument();
+			return IKStorageValueConstr.newInstance(new Object[] { map, null, lastModified });
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw engine.getExceptionUtil().toIOException(e);
+		}
 	}
 
 	public static Struct toStruct(BsonDocument bd, CFMLEngine engine) throws IOException {
@@ -156,12 +300,7 @@ public class BSON {
 
 	public static Object toIKStorageValue(long lastModified, Iterator<Entry<String, BsonValue>> it, CFMLEngine engine) throws IOException {
 		try {
-			if (IKStorageValue == null) {
-				IKStorageValue = engine.getClassUtil().loadClass("lucee.runtime.type.scope.storage.IKStorageValue");
-				IKStorageValueConstr = IKStorageValue.getConstructor(IK_STOARE_VALUE_INIT);
-				IKStorageScopeItem = engine.getClassUtil().loadClass("lucee.runtime.type.scope.storage.IKStorageScopeItem");
-				IKStorageScopeItemConstr = IKStorageScopeItem.getConstructor(IK_STOARE_ITEM_INIT);
-			}
+			initIKStorageValue(engine);
 
 			Map<Key, Object> map = new ConcurrentHashMap<>();
 
@@ -183,6 +322,15 @@ public class BSON {
 		}
 	}
 
+	private static void initIKStorageValue(CFMLEngine engine) throws Exception {
+		if (IKStorageValue == null) {
+			IKStorageValue = engine.getClassUtil().loadClass("lucee.runtime.type.scope.storage.IKStorageValue");
+			IKStorageValueConstr = IKStorageValue.getConstructor(IK_STOARE_VALUE_INIT);
+			IKStorageScopeItem = engine.getClassUtil().loadClass("lucee.runtime.type.scope.storage.IKStorageScopeItem");
+			IKStorageScopeItemConstr = IKStorageScopeItem.getConstructor(IK_STOARE_ITEM_INIT);
+		}
+	}
+
 	private static Object _toObject(BsonValue bv, CFMLEngine engine) throws IOException {
 		if (bv instanceof BsonDocument) {
 			if (engine != null) return toStruct((BsonDocument) bv, engine);
@@ -222,21 +370,199 @@ public class BSON {
 			return null;
 		}
 		if (bv.isBinary()) {
-			byte[] data = bv.asBinary().getData();
-			if (Coder.isGzip(data)) return Coder.decompress(CFMLEngineFactory.getInstance().getClass().getClassLoader(), data);
-			if (isObjectStream(data)) return evaluate(CFMLEngineFactory.getInstance().getClass().getClassLoader(), data);
-			return data;
-
+			return toObject(bv.asBinary().getData());
 		}
 		throw new IOException("BSON type [" + bv.getBsonType().name() + "] is not supported yet!");
 	}
 
+	/**
+	 * @return a binary value, Java serialized values deserialized
+	 */
+	static Object toObject(byte[] data) throws IOException {
+		if (Coder.isGzip(data)) return Coder.decompress(CFMLEngineFactory.getInstance().getClass().getClassLoader(), data);
+		if (isObjectStream(data)) return evaluate(CFMLEngineFactory.getInstance().getClass().getClassLoader(), data);
+		return data;
+	}
+
 	public static String toBase64String(Object o, boolean allowObjectSerialisation) throws IOException, PageException {
 		return Base64.encode(toBytes(o, allowObjectSerialisation));
 	}
 
+	/**
+	 * writes the value straight into BSON, without a BsonDocument in between, the result is the same as
+	 * the one of {@link #toBytes(BsonDocument)}.
+	 */
 	public static byte[] toBytes(Object o, boolean allowObjectSerialisation) throws IOException, PageException {
-		return toBytes(toBsonDocument(o, allowObjectSerialisation));
+		BasicOutputBuffer buffer = buffers.get();
+		buffer.truncateToPosition(0);
+		BsonBinaryWriter writer = new BsonBinaryWriter(buffer);
+		try {
+			if (o instanceof Struct) writeStruct(writer, (Struct) o, new HashSet<>(), allowObjectSerialisation, true);
+			else if (o instanceof Map<?, ?>) writeMap(writer, (Map<?, ?>) o, new HashSet<>(), allowObjectSerialisation, true);
+			else if (o != null && "lucee.runtime.type.scope.storage.IKStorageValue".equals(o.getClass().getName()))
+				writeIKStorageValue(writer, o, new HashSet<>(), allowObjectSerialisation);
+			else if (o == null) throw new IOException("cannot convert null value to a BSON object");
+			else throw new IOException("cannot convert [" + o.getClass().getName() + "] to a BSON object, object must be a struct or a map");
+			return buffer.toByteArray();
+		}
+		finally {
+			writer.close();
+			if (buffer.getPosition() > MAX_BUFFER_SIZE) buffers.remove();
+		}
+	}
+
+	/**
+	 * @return the value as BSON or the default value if it cannot be converted
+	 */
+	public static byte[] toBytes(Object o, boolean allowObjectSerialisation, byte[] defaultValue) {
+		if (!(o instanceof Struct) && !(o instanceof Map<?, ?>) && (o == null || !"lucee.runtime.type.scope.storage.IKStorageValue".equals(o.getClass().getName())))
+			return defaultValue;
+		try {
+			return toBytes(o, allowObjectSerialisation);
+		}
+		catch (Exception e) {
+		}
+		return defaultValue;
+	}
+
+	private static void writeValue(BsonBinaryWriter writer, Object o, Set<Object> inside, boolean allowObjectSerialisation) throws IOException, PageException {
+		// simple values
+		if (o == null) writer.writeNull();
+		else if (o instanceof CharSequence) writer.writeString(o.toString());
+		else if (o instanceof Boolean) writer.writeBoolean(((Boolean) o).booleanValue());
+		else if (o instanceof Number) {
+			if (o instanceof Double) writer.writeDouble(((Double) o).doubleValue());
+			else if (o instanceof Integer) writer.writeInt32(((Integer) o).intValue());
+			else if (o instanceof Long) writer.writeInt64(((Long) o).longValue());
+			else if (o instanceof BigDecimal) writer.writeDecimal128(new Decimal128((BigDecimal) o));
+			else writer.writeDouble(((Number) o).doubleValue());
+		}
+		else if (o instanceof Date) writer.writeDateTime(((Date) o).getTime());
+		else if (o instanceof byte[]) writer.writeBinaryData(new BsonBinary((byte[]) o));
+
+		// complex value
+		else if (o instanceof Collection || o instanceof Map<?, ?> || o instanceof java.util.Collection<?>) {
+			try {
+				if (inside.contains(o))
+					throw new IOException("object cannot be serialized, betcause it has a internal relation to itself, one object is pointing to itself of one of its parents!");
+				inside.add(o);
+				if (o instanceof Struct) writeStruct(writer, (Struct) o, inside, allowObjectSerialisation, false);
+				else if (o instanceof Map<?, ?>) writeMap(writer, (Map<?, ?>) o, inside, allowObjectSerialisation, false);
+				else writeArray(writer, o instanceof Collection ? ((Collection) o).getIterator() : ((java.util.Collection<?>) o).iterator(), inside, allowObjectSerialisation);
+			}
+			finally {
+				inside.remove(o);
+			}
+		}
+		else if (o instanceof ObjectWrap) writeValue(writer, ((ObjectWrap) o).getEmbededObject(), inside, allowObjectSerialisation);
+		else if (o instanceof Castable) writer.writeString(((Castable) o).castToString());
+		else if (allowObjectSerialisation && o instanceof Serializable) writer.writeBinaryData(new BsonBinary(Coder.compress(o)));
+		else throw new IOException("type [" + o.getClass().getName() + "] cannot be converted to BSON yet!");
+	}
+
+	private static void writeArray(BsonBinaryWriter writer, Iterator<?> it, Set<Object> inside, boolean allowObjectSerialisation) throws IOException, PageException {
+		writer.writeStartArray();
+		while (it.hasNext()) {
+			writeValue(writer, it.next(), inside, allowObjectSerialisation);
+		}
+		writer.writeEndArray();
+	}
+
+	/**
+	 * @param top the document written, like with {@link #toBytes(BsonDocument)} an "_id" field of it is
+	 *            written first
+	 */
+	private static void writeStruct(BsonBinaryWriter writer, Struct sct, Set<Object> inside, boolean allowObjectSerialisation, boolean top) throws IOException, PageException {
+		writer.writeStartDocument();
+		boolean hasId = top && sct.containsKey(ID_FIELD_NAME) && writeId(writer, sct.entryIterator(), inside, allowObjectSerialisation);
+		Iterator<Entry<Key, Object>> it = sct.entryIterator();
+		Entry<Key, Object> e;
+		String name;
+		while (it.hasNext()) {
+			e = it.next();
+			name = e.getKey().toString();
+			if (hasId && ID_FIELD_NAME.equals(name)) continue;
+			writer.writeName(name);
+			writeValue(writer, e.getValue(), inside, allowObjectSerialisation);
+		}
+		writer.writeEndDocument();
+	}
+
+	private static void writeMap(BsonBinaryWriter writer, Map<?, ?> map, Set<Object> inside, boolean allowObjectSerialisation, boolean top) throws IOException, PageException {
+		writer.writeStartDocument();
+		boolean hasId = top && writeId(writer, map.entrySet().iterator(), inside, allowObjectSerialisation);
+		Iterator<?> it = map.entrySet().iterator();
+		Entry<?, ?> e;
+		String name;
+		while (it.hasNext()) {
+			e = (Entry<?, ?>) it.next();
+			name = e.getKey().toString(); // TODO do caster.toString here
+			if (hasId && ID_FIELD_NAME.equals(name)) continue;
+			writer.writeName(name);
+			writeValue(writer, e.getValue(), inside, allowObjectSerialisation);
+		}
+		writer.writeEndDocument();
+	}
+
+	/**
+	 * writes the "_id" field if there is one
+	 */
+	private static boolean writeId(BsonBinaryWriter writer, Iterator<?> it, Set<Object> inside, boolean allowObjectSerialisation) throws IOException, PageException {
+		Entry<?, ?> e;
+		while (it.hasNext()) {
+			e = (Entry<?, ?>) it.next();
+			if (ID_FIELD_NAME.equals(e.getKey().toString())) {
+				writer.writeName(ID_FIELD_NAME);
+				writeValue(writer, e.getValue(), inside, allowObjectSerialisation);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void writeIKStorageValue(BsonBinaryWriter writer, Object obj, Set<Object> inside, boolean allowObjectSerialisation) throws IOException {
+		try {
+			// init methods
+			if (getValue == null || getValue.getDeclaringClass() != obj.getClass()) {
+				getValue = obj.getClass().getMethod("getValue", EMPTY_CLASS);
+				lastModified = obj.getClass().getMethod("lastModified", EMPTY_CLASS);
+			}
+			Map<?, ?> items = (Map<?, ?>) getValue.invoke(obj, EMPTY_OBJ);
+
+			writer.writeStartDocument();
+			// an "_id" item is written first, like with toBytes(BsonDocument)
+			Object id = null;
+			boolean hasId = false;
+			for (Entry<?, ?> e: items.entrySet()) {
+				if (ID_FIELD_NAME.equals(e.getKey().toString())) {
+					id = e.getValue();
+					hasId = true;
+					break;
+				}
+			}
+			if (hasId) writeIKStorageItem(writer, ID_FIELD_NAME, (ObjectWrap) id, inside, allowObjectSerialisation);
+			writer.writeInt64(IK_STORAGEVALUE_KEY, ((Long) lastModified.invoke(obj, EMPTY_OBJ)).longValue());
+			String name;
+			for (Entry<?, ?> e: items.entrySet()) {
+				name = e.getKey().toString();
+				if (hasId && ID_FIELD_NAME.equals(name)) continue;
+				writeIKStorageItem(writer, name, (ObjectWrap) e.getValue(), inside, allowObjectSerialisation);
+			}
+			writer.writeEndDocument();
+		}
+		catch (Exception e) {
+			throw CFMLEngineFactory.getInstance().getExceptionUtil().toIOException(e);
+		}
+	}
+
+	private static void writeIKStorageItem(BsonBinaryWriter writer, String name, ObjectWrap ow, Set<Object> inside, boolean allowObjectSerialisation) throws Exception {
+		if (lastModifiedItem == null || lastModifiedItem.getDeclaringClass() != ow.getClass()) {
+			lastModifiedItem = ow.getClass().getMethod("lastModified", EMPTY_CLASS);
+		}
+		writer.writeStartArray(name);
+		writer.writeInt64(((Long) lastModifiedItem.invoke(ow, EMPTY_OBJ)).longValue());
+		writeValue(writer, ow.getEmbededObject(), inside, allowObjectSerialisation);
+		writer.writeEndArray();
 	}
 
 	public static byte[] toBytes(BsonDocument bd) throws IOException {
@@ -0,0 +1,108 @@
+package lucee.extension.io.cache.util;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes the values of a bulk read (MGET) like {@link Coder#evaluate(ClassLoader, byte[], boolean)}.
+ * <p>
+ * Decoding BSON or compressed values costs more than reading them from Redis, for thousands of
+ * values on a single thread the CPU is the limit and not the network. When the values of a bulk read
+ * reach the threshold (in bytes), they are decoded in parallel on the common fork join pool of the
+ * JVM, the calling thread helps with the work. Below it they are decoded one after the other when
+ * read, as before. The order is kept and a value that cannot be decoded fails where it is read, like
+ * with a serial decode.
+ * <p>
+ * The common pool is used because threads of our own would outlive the extension (its class loader
+ * included) when it is updated or removed. A task decodes no more than {@link #MAX_CHUNK} values, so
+ * a big bulk read does not hold up other users of the pool for long.
+ */
+public class BulkDecoder {
+
+	private static final int MAX_CHUNK = 64;
+
+	private final ClassLoader cl;
+	private final List<byte[]> data;
+	private final boolean lazy;
+	private Object[] values;
+	private IOException[] errors;
+
+	private BulkDecoder(ClassLoader cl, List<byte[]> data, boolean lazy) {
+		this.cl = cl;
+		this.data = data;
+		this.lazy = lazy;
+	}
+
+	/**
+	 * @param data the values as read from Redis, null for a missing value
+	 * @param lazy see {@link Coder#evaluate(ClassLoader, byte[], boolean)}
+	 * @param threshold bytes from which on the values are decoded in parallel, 0 never
+	 */
+	public static BulkDecoder decode(ClassLoader cl, List<byte[]> data, boolean lazy, int threshold) {
+		BulkDecoder decoder = new BulkDecoder(cl, data, lazy);
+		if (threshold > 0 && data.size() > 1 && Runtime.getRuntime().availableProcessors() > 1) {
+			long bytes = 0;
+			for (byte[] d: data) {
+				if (d != null) bytes += d.length;
+			}
+			if (bytes >= threshold) {
+				decoder.values = new Object[data.size()];
+				decoder.errors = new IOException[data.size()];
+				ForkJoinPool pool = ForkJoinPool.commonPool();
+				int chunk = Math.min(MAX_CHUNK, Math.max(1, data.size() / (pool.getParallelism() * 4)));
+				pool.invoke(decoder.new Chunk(0, data.size(), chunk));
+			}
+		}
+		return decoder;
+	}
+
+	public int size() {
+		return data.size();
+	}
+
+	/**
+	 * @return the value at the index, decoded now unless it was decoded in parallel
+	 */
+	public Object get(int index) throws IOException {
+		if (values == null) return Coder.evaluate(cl, data.get(index), lazy);
+		if (errors[index] != null) throw errors[index];
+		return values[index];
+	}
+
+	private class Chunk extends RecursiveAction {
+
+		private static final long serialVersionUID = -6110867402766587372L;
+
+		private final int from;
+		private final int to;
+		private final int size;
+
+		private Chunk(int from, int to, int size) {
+			this.from = from;
+			this.to = to;
+			this.size = size;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > size) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Chunk(from, middle, size), new Chunk(middle, to, size));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				try {
+					values[i] = Coder.evaluate(cl, data.get(i), lazy);
+				}
+				catch (IOException e) {
+					errors[i] = e;
+				}
+				catch (RuntimeException e) {
+					errors[i] = new IOException(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package lucee.extension.io.cache.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import io.airlift.compress.MalformedInputException;
+import io.airlift.compress.lz4.Lz4Compressor;
+import io.airlift.compress.lz4.Lz4Decompressor;
+import io.airlift.compress.zstd.ZstdCompressor;
+import io.airlift.compress.zstd.ZstdDecompressor;
+
+/**
+ * Compression codec for serialized values, see {@link Compression}.
+ * <p>
+ * Values compressed by a codec are stored with a header that contains the id of the codec, so
+ * {@link Coder#evaluate(ClassLoader, byte[])} can read values of all codecs side by side, no matter
+ * what codec is configured. Codecs are registered with {@link Coder#register(Codec)}, the ids 0 - 15
+ * are reserved for the codecs of this extension.
+ */
+public interface Codec {
+
+	/**
+	 * @return id written into the header of the compressed values, unique among all codecs
+	 */
+	public byte getId();
+
+	/**
+	 * @return name used to configure the codec, case insensitive
+	 */
+	public String getName();
+
+	public byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+	public byte[] decompress(byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * GZIP, what was always used. Values compressed with it are stored without the header, the GZIP
+	 * magic bytes identify them.
+	 */
+	public static class Gzip implements Codec {
+
+		public static final byte ID = 2;
+
+		private final int level;
+
+		public Gzip(int level) {
+			this.level = level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION ? Deflater.DEFAULT_COMPRESSION : level;
+		}
+
+		@Override
+		public byte getId() {
+			return ID;
+		}
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		/**
+		 * @return a stream writing GZIP with the level of this codec
+		 */
+		public GZIPOutputStream toStream(OutputStream os) throws IOException {
+			if (level == Deflater.DEFAULT_COMPRESSION) return new GZIPOutputStream(os);
+			return new GZIPOutputStream(os) {
+				{
+					def.setLevel(level);
+				}
+			};
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int offset, int length) throws IOException {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, length / 2));
+			GZIPOutputStream out = toStream(baos);
+			out.write(data, offset, length);
+			out.close();
+			return baos.toByteArray();
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+			GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data, offset, length));
+			try {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, length * 3));
+				byte[] buffer = new byte[8192];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					baos.write(buffer, 0, len);
+				}
+				return baos.toByteArray();
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Deflate (zlib), with a low level by default, it is a lot faster than GZIP with the default level
+	 * and compresses serialized values almost as well.
+	 */
+	public static class Deflate implements Codec {
+
+		public static final byte ID = 1;
+
+		private final int level;
+
+		public Deflate(int level) {
+			this.level = level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION ? Deflater.BEST_SPEED : level;
+		}
+
+		@Override
+		public byte getId() {
+			return ID;
+		}
+
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int offset, int length) throws IOException {
+			Deflater deflater = new Deflater(level);
+			try {
+				deflater.setInput(data, offset, length);
+				deflater.finish();
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, length / 2));
+				byte[] buffer = new byte[8192];
+				while (!deflater.finished()) {
+					baos.write(buffer, 0, deflater.deflate(buffer));
+				}
+				return baos.toByteArray();
+			}
+			finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(data, offset, length);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.max(64, length * 3));
+				byte[] buffer = new byte[8192];
+				int len;
+				while (!inflater.finished()) {
+					len = inflater.inflate(buffer);
+					if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) throw new IOException("truncated or invalid deflate data");
+					baos.write(buffer, 0, len);
+				}
+				return baos.toByteArray();
+			}
+			catch (DataFormatException e) {
+				throw new IOException(e);
+			}
+			finally {
+				inflater.end();
+			}
+		}
+	}
+
+	/**
+	 * LZ4 (pure Java, aircompressor), a lot faster than Deflate in both directions for a lower ratio.
+	 * There is no level, the compressed block is stored behind the length of the uncompressed data.
+	 */
+	public static class Lz4 implements Codec {
+
+		public static final byte ID = 3;
+
+		@Override
+		public byte getId() {
+			return ID;
+		}
+
+		@Override
+		public String getName() {
+			return "lz4";
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int offset, int length) throws IOException {
+			// the compressor keeps a hash table, it is not thread safe
+			Lz4Compressor compressor = new Lz4Compressor();
+			byte[] out = new byte[4 + compressor.maxCompressedLength(length)];
+			writeLength(out, length);
+			int len = compressor.compress(data, offset, length, out, 4, out.length - 4);
+			return Arrays.copyOf(out, 4 + len);
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+			byte[] out = new byte[readLength(data, offset, length)];
+			try {
+				int len = new Lz4Decompressor().decompress(data, offset + 4, length - 4, out, 0, out.length);
+				if (len != out.length) throw new IOException("invalid lz4 data, expected " + out.length + " bytes, got " + len);
+			}
+			catch (MalformedInputException e) {
+				throw new IOException(e);
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Zstandard (pure Java, aircompressor), compresses about as well as Deflate at a high level at the
+	 * speed of Deflate at a low level. aircompressor has a fixed level (3), the compressed frame is
+	 * stored behind the length of the uncompressed data.
+	 */
+	public static class Zstd implements Codec {
+
+		public static final byte ID = 4;
+
+		@Override
+		public byte getId() {
+			return ID;
+		}
+
+		@Override
+		public String getName() {
+			return "zstd";
+		}
+
+		@Override
+		public byte[] compress(byte[] data, int offset, int length) throws IOException {
+			ZstdCompressor compressor = new ZstdCompressor();
+			byte[] out = new byte[4 + compressor.maxCompressedLength(length)];
+			writeLength(out, length);
+			int len = compressor.compress(data, offset, length, out, 4, out.length - 4);
+			return Arrays.copyOf(out, 4 + len);
+		}
+
+		@Override
+		public byte[] decompress(byte[] data, int offset, int length) throws IOException {
+			byte[] out = new byte[readLength(data, offset, length)];
+			try {
+				int len = new ZstdDecompressor().decompress(data, offset + 4, length - 4, out, 0, out.length);
+				if (len != out.length) throw new IOException("invalid zstd data, expected " + out.length + " bytes, got " + len);
+			}
+			catch (MalformedInputException e) {
+				throw new IOException(e);
+			}
+			return out;
+		}
+	}
+
+	static void writeLength(byte[] out, int length) {
+		out[0] = (byte) (length >>> 24);
+		out[1] = (byte) (length >>> 16);
+		out[2] = (byte) (length >>> 8);
+		out[3] = (byte) length;
+	}
+
+	static int readLength(byte[] data, int offset, int length) throws IOException {
+		if (length < 4) throw new IOException("truncated compressed data");
+		int len = ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+		if (len < 0) throw new IOException("invalid length [" + len + "] of compressed data");
+		return len;
+	}
+}
@@ -7,14 +7,11 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.charset.Charset;
 import java.text.DecimalFormat;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.Locale;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
-
-import org.bson.BsonDocument;
-import org.bson.BsonValue;
 
 import lucee.loader.engine.CFMLEngine;
 import lucee.loader.engine.CFMLEngineFactory;
@@ -25,6 +22,29 @@ public class Coder {
 	private static final byte GZIP0 = (byte) 0x1f;
 	private static final byte GZIP1 = (byte) 0x8b;
 
+	// header of values compressed with a codec, followed by the id of the codec, 0xC1 is never part of
+	// UTF-8, so the header cannot be mistaken for the start of a string
+	private static final byte CODEC0 = (byte) 0xC1;
+	private static final byte CODEC1 = (byte) 0xFE;
+	private static final int CODEC_HEADER_LENGTH = 3;
+
+	// header of values with a sliding expiration, followed by the idle time in seconds (4 bytes, big
+	// endian), see withIdle. 0xFC is not the second byte of any other header and like with the envelope,
+	// the fourth byte cannot be the high byte of the length of a BSON document
+	private static final byte IDLE0 = (byte) 0xC1;
+	private static final byte IDLE1 = (byte) 0xFC;
+	private static final byte IDLE3 = (byte) 0xF1;
+	public static final int IDLE_HEADER_LENGTH = 8;
+
+	private static final Map<Byte, Codec> codecsById = new ConcurrentHashMap<>();
+	private static final Map<String, Codec> codecsByName = new ConcurrentHashMap<>();
+	static {
+		register(new Codec.Deflate(-1));
+		register(new Codec.Gzip(-1));
+		register(new Codec.Lz4());
+		register(new Codec.Zstd());
+	}
+
 	private static DecimalFormat ff = (DecimalFormat) DecimalFormat.getInstance(Locale.US);
 	private static CFMLEngine eng;
 	static {
@@ -72,27 +92,77 @@ public class Coder {
 	}
 
 	public static Object evaluate(ClassLoader cl, byte[] data) throws IOException {
+		return evaluate(cl, data, false);
+	}
+
+	/**
+	 * @param lazy structs stored as BSON are returned as {@link LazyStruct}, their members are only
+	 *            decoded when read
+	 */
+	public static Object evaluate(ClassLoader cl, byte[] data, boolean lazy) throws IOException {
 		if (data == null) return null;
+		if (hasIdleHeader(data)) {
+			data = Arrays.copyOfRange(data, IDLE_HEADER_LENGTH, data.length);
+		}
+		if (Envelope.isEnvelope(data)) {
+			return fromEnvelope(cl, data, lazy);
+		}
 		if (isGzip(data)) {
 			return decompress(cl, data);
 		}
+		if (CompactBinary.isCompactBinary(data)) {
+			return CompactBinary.toObject(data, CFMLEngineFactory.getInstance());
+		}
+		if (hasCodecHeader(data)) {
+			byte[] raw = decode(data);
+			// a BSON document can start with the same bytes, then it is read as such below
+			if (raw != null && isObjectStream(raw)) data = raw;
+			else if (BSON.toBsonDocument(data, null) == null) throw new IOException("the value was compressed with a codec [id:" + data[2] + "] that is not available");
+		}
 
 		if (!isObjectStream(data)) {
-			BsonDocument doc = BSON.toBsonDocument(data, null);
-			if (doc != null) {
-				if (doc.getFirstKey().equals(BSON.IK_STORAGEVALUE_KEY)) {
-					Iterator<Entry<String, BsonValue>> it = doc.entrySet().iterator();
-					Entry<String, BsonValue> first = it.next();
-					BsonValue v = first.getValue();
-					if (v.isInt64() && first.getKey().equals(BSON.IK_STORAGEVALUE_KEY)) {
-						return BSON.toIKStorageValue(v.asInt64().longValue(), it, CFMLEngineFactory.getInstance());
-					}
-				}
-				return BSON.toStruct(doc, CFMLEngineFactory.getInstance());
+			if (lazy && BSON.isCandidate(data)) {
+				LazyStruct sct = LazyStruct.getInstance(data, 0, CFMLEngineFactory.getInstance());
+				if (sct != null) return sct;
 			}
+			Object val = BSON.isCandidate(data) ? BSON.toObject(data, CFMLEngineFactory.getInstance(), null) : null;
+			if (val != null) return val;
 			return toString(data);
 		}
+		return readObject(cl, data);
+	}
 
+	/**
+	 * reads a value in an {@link Envelope}, the type says what decoder to use, nothing is tried.
+	 */
+	private static Object fromEnvelope(ClassLoader cl, byte[] data, boolean lazy) throws IOException {
+		byte type = Envelope.getType(data);
+		if (lazy && type == Envelope.TYPE_BSON && Envelope.isUncompressed(data)) {
+			// no need to copy the payload, the lazy struct reads it in place
+			LazyStruct sct = LazyStruct.getInstance(data, Envelope.LENGTH, CFMLEngineFactory.getInstance());
+			if (sct != null) return sct;
+		}
+		byte[] payload = Envelope.unwrap(data);
+		switch (type) {
+		case Envelope.TYPE_STRING:
+			return toString(payload);
+		case Envelope.TYPE_COMPACT:
+			return CompactBinary.toObject(payload, CFMLEngineFactory.getInstance());
+		case Envelope.TYPE_BSON:
+			if (lazy) {
+				LazyStruct sct = LazyStruct.getInstance(payload, 0, CFMLEngineFactory.getInstance());
+				if (sct != null) return sct;
+			}
+			Object val = BSON.toObject(payload, CFMLEngineFactory.getInstance(), null);
+			if (val == null) throw new IOException("the value is not a valid BSON document");
+			return val;
+		case Envelope.TYPE_JAVA:
+			return readObject(cl, payload);
+		}
+		throw new IOException("the value has a type [" + type + "] that is not supported by this version of the extension");
+	}
+
+	private static Object readObject(ClassLoader cl, byte[] data) throws IOException {
 		ByteArrayInputStream bais = new ByteArrayInputStream(data);
 		ObjectInputStream ois = null;
 		try {
@@ -142,6 +212,64 @@ public class Coder {
 	}
 
 	public static byte[] serialize(Object value) throws IOException {
+		return serialize(value, Compression.GZIP);
+	}
+
+	/**
+	 * @param compression how values stored with Java serialization are compressed
+	 */
+	public static byte[] serialize(Object value, Compression compression) throws IOException {
+		return serialize(value, compression, false);
+	}
+
+	/**
+	 * @param compression how values stored with Java serialization are compressed
+	 * @param compact store structs, arrays, queries and dates in the compact binary format instead of
+	 *            BSON/Java serialization, see {@link CompactBinary}
+	 */
+	public static byte[] serialize(Object value, Compression compression, boolean compact) throws IOException {
+		return serialize(value, compression, compact, false);
+	}
+
+	/**
+	 * @param compression how values stored with Java serialization are compressed, with an envelope
+	 *            how all values are compressed
+	 * @param compact store structs, arrays, queries and dates in the compact binary format instead of
+	 *            BSON/Java serialization, see {@link CompactBinary}
+	 * @param envelope store the value in an {@link Envelope}, older versions of this extension cannot
+	 *            read them
+	 */
+	public static byte[] serialize(Object value, Compression compression, boolean compact, boolean envelope) throws IOException {
+		if (envelope) {
+			byte[] text = toText(value);
+			if (text != null) return Envelope.wrap(Envelope.TYPE_STRING, text, compression);
+			if (compact) {
+				byte[] barr = CompactBinary.toBytes(value);
+				if (barr != null) return Envelope.wrap(Envelope.TYPE_COMPACT, barr, compression);
+			}
+			byte[] bson = BSON.toBytes(value, false, null);
+			if (bson != null) return Envelope.wrap(Envelope.TYPE_BSON, bson, compression);
+			return Envelope.wrap(Envelope.TYPE_JAVA, toObjectStream(value), compression);
+		}
+
+		byte[] text = toText(value);
+		if (text != null) return text;
+
+		if (compact) {
+			byte[] barr = CompactBinary.toBytes(value);
+			if (barr != null) return barr;
+		}
+
+		byte[] bson = BSON.toBytes(value, false, null);
+		if (bson != null) return bson;
+
+		return compression.compress(value);
+	}
+
+	/**
+	 * @return strings and numbers as UTF-8, null for all other values
+	 */
+	private static byte[] toText(Object value) {
 		if (eng == null) {
 			// this fails when executed outside a Lucee engine
 			try {
@@ -169,23 +297,92 @@ public class Coder {
 				return toBytes(value.toString());
 			}
 		}
-
-		BsonDocument doc = BSON.toBsonDocument(value, false, null);
-		if (doc != null) {
-			return BSON.toBytes(doc);
-		}
-
-		return compress(value);
+		return null;
 	}
 
-	public static byte[] compress(Object val) throws IOException {
+	/**
+	 * @return the value, Java serialized
+	 */
+	static byte[] toObjectStream(Object value) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		ObjectOutputStream oos = new ObjectOutputStream(new GZIPOutputStream(baos));
-		oos.writeObject(val);
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(value);
 		oos.close();
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Prefixes a serialized value with the time it may stay unread before it expires, Redis refreshes
+	 * the time to live with it on every read (see RedisCache). The header is skipped by
+	 * {@link #evaluate(ClassLoader, byte[], boolean)}.
+	 *
+	 * @param seconds idle time, 0 or less for none, then the data is returned as it is
+	 */
+	public static byte[] withIdle(byte[] data, int seconds) {
+		if (seconds <= 0) return data;
+		byte[] result = new byte[data.length + IDLE_HEADER_LENGTH];
+		result[0] = IDLE0;
+		result[1] = IDLE1;
+		result[3] = IDLE3;
+		result[4] = (byte) (seconds >>> 24);
+		result[5] = (byte) (seconds >>> 16);
+		result[6] = (byte) (seconds >>> 8);
+		result[7] = (byte) seconds;
+		System.arraycopy(data, 0, result, IDLE_HEADER_LENGTH, data.length);
+		return result;
+	}
+
+	public static boolean hasIdleHeader(byte[] data) {
+		return data != null && data.length >= IDLE_HEADER_LENGTH && data[0] == IDLE0 && data[1] == IDLE1 && data[3] == IDLE3;
+	}
+
+	public static byte[] compress(Object val) throws IOException {
+		return Compression.GZIP.compress(val);
+	}
+
+	/**
+	 * registers a codec, so values compressed with it can be read and it can be configured by name.
+	 */
+	public static void register(Codec codec) {
+		codecsById.put(codec.getId(), codec);
+		codecsByName.put(codec.getName().trim().toLowerCase(), codec);
+	}
+
+	public static Codec getCodec(String name) {
+		return name == null ? null : codecsByName.get(name.trim().toLowerCase());
+	}
+
+	static Codec getCodec(byte id) {
+		return codecsById.get(id);
+	}
+
+	static byte[] withHeader(Codec codec, byte[] compressed) {
+		byte[] data = new byte[compressed.length + CODEC_HEADER_LENGTH];
+		data[0] = CODEC0;
+		data[1] = CODEC1;
+		data[2] = codec.getId();
+		System.arraycopy(compressed, 0, data, CODEC_HEADER_LENGTH, compressed.length);
+		return data;
+	}
+
+	private static boolean hasCodecHeader(byte[] data) {
+		return data.length > CODEC_HEADER_LENGTH && data[0] == CODEC0 && data[1] == CODEC1;
+	}
+
+	/**
+	 * @return the decompressed data or null if the codec is unknown or the data is not valid for it
+	 */
+	private static byte[] decode(byte[] data) {
+		Codec codec = codecsById.get(data[2]);
+		if (codec == null) return null;
+		try {
+			return codec.decompress(data, CODEC_HEADER_LENGTH, data.length - CODEC_HEADER_LENGTH);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
 	public static Object decompress(ClassLoader cl, byte[] bytes) throws IOException {
 		ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
 		ObjectInputStreamImpl objectIn = new ObjectInputStreamImpl(cl, new GZIPInputStream(bais));
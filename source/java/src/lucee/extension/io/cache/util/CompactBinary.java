@@ -0,0 +1,537 @@
+package lucee.extension.io.cache.util;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.w3c.dom.Node;
+
+import lucee.loader.engine.CFMLEngine;
+import lucee.runtime.Component;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.op.Castable;
+import lucee.runtime.type.Collection;
+import lucee.runtime.type.Collection.Key;
+import lucee.runtime.type.ObjectWrap;
+import lucee.runtime.type.Query;
+import lucee.runtime.type.Struct;
+import lucee.runtime.type.scope.Scope;
+
+/**
+ * Compact binary format for the core types of Lucee (struct, array, query, date, string, number,
+ * boolean, binary), written and read in a single pass without building an intermediate tree like
+ * BSON does.
+ * <p>
+ * Every value starts with a type byte. Lengths, counts and integers are varints (zigzag for signed
+ * values), so small numbers take a single byte. Struct keys and query column names are written once
+ * per value and referenced by their index after that, an array of structs with the same keys only
+ * pays for the keys once. Dates are milliseconds, decimals scale and unscaled value, doubles without
+ * a fraction are written as integers.
+ * <p>
+ * A value starts with a header (0xC1 0xFD version), 0xC1 is never part of UTF-8, so the header cannot
+ * be mistaken for the start of a string.
+ */
+public class CompactBinary {
+
+	private static final byte HEADER0 = (byte) 0xC1;
+	private static final byte HEADER1 = (byte) 0xFD;
+	private static final byte VERSION = 1;
+	private static final int HEADER_LENGTH = 3;
+
+	private static final byte NULL = 0;
+	private static final byte TRUE = 1;
+	private static final byte FALSE = 2;
+	private static final byte INT = 3;
+	private static final byte LONG = 4;
+	private static final byte DOUBLE = 5;
+	// a double without a fraction, written as varint
+	private static final byte DOUBLE_INT = 6;
+	private static final byte DECIMAL = 7;
+	private static final byte STRING = 8;
+	private static final byte DATE = 9;
+	private static final byte BINARY = 10;
+	private static final byte STRUCT = 11;
+	private static final byte ARRAY = 12;
+	private static final byte QUERY = 13;
+
+	// doubles beyond that cannot be told apart from their neighbours as long
+	private static final double MAX_EXACT = 9007199254740992D;
+
+	public static boolean isCompactBinary(byte[] data) {
+		return data != null && data.length > HEADER_LENGTH && data[0] == HEADER0 && data[1] == HEADER1 && data[2] == VERSION;
+	}
+
+	/**
+	 * @return the value in the compact format or null if the value contains a type the format does not
+	 *         support, then it has to be serialized another way
+	 */
+	public static byte[] toBytes(Object value) throws IOException {
+		if (!isSupported(value)) return null;
+		Writer writer = new Writer();
+		writer.buffer[0] = HEADER0;
+		writer.buffer[1] = HEADER1;
+		writer.buffer[2] = VERSION;
+		writer.pos = HEADER_LENGTH;
+		try {
+			if (!writer.value(value)) return null;
+		}
+		catch (PageException e) {
+			throw new IOException(e);
+		}
+		return writer.toByteArray();
+	}
+
+	/**
+	 * @param engine used to create the Lucee types, without engine Java types are returned
+	 *            (Map/List/Date)
+	 */
+	public static Object toObject(byte[] data, CFMLEngine engine) throws IOException {
+		if (!isCompactBinary(data)) throw new IOException("data is not in the compact binary format");
+		Reader reader = new Reader(data, HEADER_LENGTH, engine);
+		try {
+			return reader.value();
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("invalid data in the compact binary format, the data is truncated");
+		}
+		catch (PageException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * only collections and dates are worth it, simple values are stored as string
+	 */
+	private static boolean isSupported(Object value) {
+		if (value instanceof Struct) return isPlainStruct(value);
+		return value instanceof Query || value instanceof Collection || value instanceof Map || value instanceof List || value instanceof Date;
+	}
+
+	private static boolean isPlainStruct(Object value) {
+		// a component or a scope is more than its data
+		return !(value instanceof Component) && !(value instanceof Scope) && !(value instanceof Node);
+	}
+
+	private static class Writer {
+		private byte[] buffer = new byte[256];
+		private int pos;
+		private final Map<String, Integer> keys = new HashMap<>();
+		// the values we are inside of, to detect a value pointing to itself
+		private final Map<Object, Object> inside = new IdentityHashMap<>();
+
+		/**
+		 * @return false if the value is of a type that is not supported
+		 */
+		boolean value(Object o) throws IOException, PageException {
+			if (o == null) {
+				write(NULL);
+				return true;
+			}
+			if (o instanceof CharSequence) {
+				write(STRING);
+				string(o.toString());
+				return true;
+			}
+			if (o instanceof Boolean) {
+				write(((Boolean) o).booleanValue() ? TRUE : FALSE);
+				return true;
+			}
+			if (o instanceof Number) return number((Number) o);
+			if (o instanceof Date) {
+				write(DATE);
+				varlong(zigzag(((Date) o).getTime()));
+				return true;
+			}
+			if (o instanceof byte[]) {
+				byte[] barr = (byte[]) o;
+				write(BINARY);
+				varint(barr.length);
+				write(barr, 0, barr.length);
+				return true;
+			}
+
+			if (o instanceof Query || o instanceof Collection || o instanceof Map || o instanceof java.util.Collection) {
+				if (inside.put(o, o) != null)
+					throw new IOException("object cannot be serialized, betcause it has a internal relation to itself, one object is pointing to itself of one of its parents!");
+				try {
+					if (o instanceof Query) return query((Query) o);
+					if (o instanceof Struct) return isPlainStruct(o) && struct((Struct) o);
+					if (o instanceof Map) return map((Map<?, ?>) o);
+					if (o instanceof Collection) return array(((Collection) o).size(), ((Collection) o).getIterator());
+					return array(((java.util.Collection<?>) o).size(), ((java.util.Collection<?>) o).iterator());
+				}
+				finally {
+					inside.remove(o);
+				}
+			}
+			if (o instanceof ObjectWrap) return value(((ObjectWrap) o).getEmbededObject());
+			if (o instanceof Castable) {
+				write(STRING);
+				string(((Castable) o).castToString());
+				return true;
+			}
+			return false;
+		}
+
+		private boolean number(Number n) {
+			if (n instanceof Double || n instanceof Float) {
+				double d = n.doubleValue();
+				// -0 is not 0
+				if (d == Math.rint(d) && Math.abs(d) < MAX_EXACT && (d != 0 || 1 / d > 0)) {
+					write(DOUBLE_INT);
+					varlong(zigzag((long) d));
+				}
+				else {
+					write(DOUBLE);
+					long bits = Double.doubleToRawLongBits(d);
+					ensure(8);
+					for (int i = 56; i >= 0; i -= 8) {
+						buffer[pos++] = (byte) (bits >>> i);
+					}
+				}
+				return true;
+			}
+			if (n instanceof Integer || n instanceof Short || n instanceof Byte) {
+				write(INT);
+				varlong(zigzag(n.intValue()));
+				return true;
+			}
+			if (n instanceof Long) {
+				write(LONG);
+				varlong(zigzag(n.longValue()));
+				return true;
+			}
+			if (n instanceof BigDecimal) {
+				BigDecimal bd = (BigDecimal) n;
+				write(DECIMAL);
+				varlong(zigzag(bd.scale()));
+				byte[] unscaled = bd.unscaledValue().toByteArray();
+				varint(unscaled.length);
+				write(unscaled, 0, unscaled.length);
+				return true;
+			}
+			// no type to read it back as it was
+			if (n instanceof BigInteger) return false;
+			write(DOUBLE);
+			long bits = Double.doubleToRawLongBits(n.doubleValue());
+			ensure(8);
+			for (int i = 56; i >= 0; i -= 8) {
+				buffer[pos++] = (byte) (bits >>> i);
+			}
+			return true;
+		}
+
+		private boolean struct(Struct sct) throws IOException, PageException {
+			write(STRUCT);
+			varint(sct.size());
+			Iterator<Entry<Key, Object>> it = sct.entryIterator();
+			Entry<Key, Object> e;
+			while (it.hasNext()) {
+				e = it.next();
+				key(e.getKey().getString());
+				if (!value(e.getValue())) return false;
+			}
+			return true;
+		}
+
+		private boolean map(Map<?, ?> map) throws IOException, PageException {
+			write(STRUCT);
+			varint(map.size());
+			for (Entry<?, ?> e: map.entrySet()) {
+				key(String.valueOf(e.getKey()));
+				if (!value(e.getValue())) return false;
+			}
+			return true;
+		}
+
+		private boolean array(int size, Iterator<?> it) throws IOException, PageException {
+			write(ARRAY);
+			varint(size);
+			int count = 0;
+			while (it.hasNext()) {
+				if (!value(it.next())) return false;
+				count++;
+			}
+			// changed while we were writing it
+			if (count != size) throw new IOException("array was modified while it was serialized");
+			return true;
+		}
+
+		private boolean query(Query qry) throws IOException, PageException {
+			Key[] columns = qry.getColumnNames();
+			int rows = qry.getRecordcount();
+			write(QUERY);
+			string(qry.getName() == null ? "" : qry.getName());
+			varint(columns.length);
+			for (Key column: columns) {
+				key(column.getString());
+				string(qry.getColumn(column).getTypeAsString());
+			}
+			varint(rows);
+			// column by column, values of the same type are next to each other
+			for (Key column: columns) {
+				for (int row = 1; row <= rows; row++) {
+					if (!value(qry.getAt(column, row, null))) return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * a key is written once, after that only its index: (index << 1) | 1, or (length << 1) for a new
+		 * key, followed by the key.
+		 */
+		private void key(String key) {
+			Integer index = keys.get(key);
+			if (index != null) {
+				varint((index << 1) | 1);
+				return;
+			}
+			keys.put(key, keys.size());
+			byte[] barr = key.getBytes(Coder.UTF8);
+			varint(barr.length << 1);
+			write(barr, 0, barr.length);
+		}
+
+		private void string(String str) {
+			int len = str.length();
+			// mostly ASCII, written directly without creating a byte array first
+			ensure(len + 5);
+			int start = pos;
+			varint(len);
+			int offset = pos;
+			for (int i = 0; i < len; i++) {
+				char c = str.charAt(i);
+				if (c >= 0x80) {
+					pos = start;
+					byte[] barr = str.getBytes(Coder.UTF8);
+					varint(barr.length);
+					write(barr, 0, barr.length);
+					return;
+				}
+				buffer[offset + i] = (byte) c;
+			}
+			pos = offset + len;
+		}
+
+		private static long zigzag(long l) {
+			return (l << 1) ^ (l >> 63);
+		}
+
+		private void varint(int i) {
+			varlong(i & 0xFFFFFFFFL);
+		}
+
+		private void varlong(long l) {
+			ensure(10);
+			while ((l & ~0x7FL) != 0) {
+				buffer[pos++] = (byte) ((l & 0x7F) | 0x80);
+				l >>>= 7;
+			}
+			buffer[pos++] = (byte) l;
+		}
+
+		private void write(byte b) {
+			ensure(1);
+			buffer[pos++] = b;
+		}
+
+		private void write(byte[] barr, int off, int len) {
+			ensure(len);
+			System.arraycopy(barr, off, buffer, pos, len);
+			pos += len;
+		}
+
+		private void ensure(int len) {
+			if (pos + len <= buffer.length) return;
+			byte[] tmp = new byte[Math.max(buffer.length * 2, pos + len)];
+			System.arraycopy(buffer, 0, tmp, 0, pos);
+			buffer = tmp;
+		}
+
+		byte[] toByteArray() {
+			byte[] barr = new byte[pos];
+			System.arraycopy(buffer, 0, barr, 0, pos);
+			return barr;
+		}
+	}
+
+	private static class Reader {
+		private final byte[] data;
+		private int pos;
+		private final CFMLEngine engine;
+		private final List<String> keys = new ArrayList<>();
+		private final List<Key> luceeKeys = new ArrayList<>();
+
+		Reader(byte[] data, int pos, CFMLEngine engine) {
+			this.data = data;
+			this.pos = pos;
+			this.engine = engine;
+		}
+
+		Object value() throws IOException, PageException {
+			byte type = data[pos++];
+			switch (type) {
+			case NULL:
+				return null;
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return Integer.valueOf((int) unzigzag(varlong()));
+			case LONG:
+				return Long.valueOf(unzigzag(varlong()));
+			case DOUBLE_INT:
+				return Double.valueOf(unzigzag(varlong()));
+			case DOUBLE:
+				long bits = 0;
+				for (int i = 0; i < 8; i++) {
+					bits = (bits << 8) | (data[pos++] & 0xFF);
+				}
+				return Double.valueOf(Double.longBitsToDouble(bits));
+			case DECIMAL:
+				int scale = (int) unzigzag(varlong());
+				byte[] unscaled = new byte[varint()];
+				System.arraycopy(data, pos, unscaled, 0, unscaled.length);
+				pos += unscaled.length;
+				return new BigDecimal(new BigInteger(unscaled), scale);
+			case STRING:
+				return string();
+			case DATE:
+				long time = unzigzag(varlong());
+				return engine == null ? new Date(time) : engine.getCreationUtil().createDateTime(time);
+			case BINARY:
+				byte[] barr = new byte[varint()];
+				System.arraycopy(data, pos, barr, 0, barr.length);
+				pos += barr.length;
+				return barr;
+			case STRUCT:
+				return struct();
+			case ARRAY:
+				return array();
+			case QUERY:
+				return query();
+			}
+			throw new IOException("invalid data in the compact binary format, unknown type [" + type + "] at position [" + (pos - 1) + "]");
+		}
+
+		private Object struct() throws IOException, PageException {
+			int size = varint();
+			if (engine == null) {
+				Map<String, Object> map = new LinkedHashMap<>();
+				for (int i = 0; i < size; i++) {
+					String key = keys.get(key());
+					map.put(key, value());
+				}
+				return map;
+			}
+			Struct sct = engine.getCreationUtil().createStruct(Struct.TYPE_LINKED);
+			for (int i = 0; i < size; i++) {
+				Key key = luceeKeys.get(key());
+				sct.setEL(key, value());
+			}
+			return sct;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Object array() throws IOException, PageException {
+			int size = varint();
+			List<Object> list = engine == null ? new ArrayList<>(size) : (List<Object>) engine.getCreationUtil().createArray();
+			for (int i = 0; i < size; i++) {
+				list.add(value());
+			}
+			return list;
+		}
+
+		private Object query() throws IOException, PageException {
+			String name = string();
+			int count = varint();
+			Key[] columns = new Key[count];
+			String[] names = new String[count];
+			String[] types = new String[count];
+			for (int i = 0; i < count; i++) {
+				int index = key();
+				names[i] = keys.get(index);
+				if (engine != null) columns[i] = luceeKeys.get(index);
+				types[i] = string();
+			}
+			int rows = varint();
+			if (engine == null) {
+				// without engine a query is a map of columns
+				Map<String, Object> map = new LinkedHashMap<>();
+				for (int i = 0; i < count; i++) {
+					List<Object> column = new ArrayList<>(rows);
+					for (int row = 0; row < rows; row++) {
+						column.add(value());
+					}
+					map.put(names[i], column);
+				}
+				return map;
+			}
+			Query qry = engine.getCreationUtil().createQuery(columns, types, rows, name);
+			for (int i = 0; i < count; i++) {
+				for (int row = 1; row <= rows; row++) {
+					qry.setAt(columns[i], row, value());
+				}
+			}
+			return qry;
+		}
+
+		/**
+		 * @return the index of the key in the key table
+		 */
+		private int key() throws IOException {
+			int v = varint();
+			if ((v & 1) == 1) {
+				int index = v >>> 1;
+				if (index >= keys.size()) throw new IOException("invalid data in the compact binary format, unknown key index [" + index + "]");
+				return index;
+			}
+			int len = v >>> 1;
+			String key = new String(data, pos, len, Coder.UTF8);
+			pos += len;
+			keys.add(key);
+			// converted once, the same key is used for every struct
+			if (engine != null) luceeKeys.add(engine.getCastUtil().toKey(key));
+			return keys.size() - 1;
+		}
+
+		private String string() {
+			int len = varint();
+			String str = new String(data, pos, len, Coder.UTF8);
+			pos += len;
+			return str;
+		}
+
+		private static long unzigzag(long l) {
+			return (l >>> 1) ^ -(l & 1);
+		}
+
+		private int varint() {
+			return (int) varlong();
+		}
+
+		private long varlong() {
+			long result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				result |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			}
+			while ((b & 0x80) != 0);
+			return result;
+		}
+	}
+}
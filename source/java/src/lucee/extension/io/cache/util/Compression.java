@@ -0,0 +1,117 @@
+package lucee.extension.io.cache.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * How values that are stored with Java serialization get compressed.
+ * <p>
+ * Values smaller than the threshold are stored as they are, for them compression costs more than it
+ * saves. Bigger values are compressed with the codec, unless that does not make them smaller: for
+ * big values a sample is compressed first, so data that is already compressed (images, archives
+ * ...) is detected without compressing all of it. A value that is stored uncompressed is a plain
+ * Java serialization stream, readable by every version of this extension.
+ * <p>
+ * GZIP is special, it is not written with a header, because older versions of this extension only
+ * know GZIP and detect it by its own magic bytes.
+ */
+public class Compression {
+
+	/**
+	 * what was always done, everything is compressed with GZIP and the default level
+	 */
+	public static final Compression GZIP = new Compression(new Codec.Gzip(Deflater.DEFAULT_COMPRESSION), 0);
+
+	/**
+	 * no compression at all
+	 */
+	public static final Compression NONE = new Compression(null, Integer.MAX_VALUE);
+
+	private static final int SAMPLE_SIZE = 4096;
+
+	/**
+	 * a compressed value has to be at least this much smaller, otherwise decompressing it is not worth
+	 * it
+	 */
+	private static final double MIN_RATIO = 0.9;
+
+	private final Codec codec;
+	private final int threshold;
+
+	/**
+	 * @param codec codec to use, null for no compression
+	 * @param threshold min size (bytes) of a serialized value to get compressed
+	 */
+	public Compression(Codec codec, int threshold) {
+		this.codec = codec;
+		this.threshold = codec == null ? Integer.MAX_VALUE : Math.max(0, threshold);
+	}
+
+	/**
+	 * @param name "gzip", "none" or the name of a registered codec
+	 * @param level compression level, -1 for the default of the codec
+	 * @param threshold min size (bytes) of a serialized value to get compressed
+	 * @return the compression or null if there is no codec with the given name
+	 */
+	public static Compression getInstance(String name, int level, int threshold) {
+		if (name == null || name.trim().isEmpty() || "gzip".equalsIgnoreCase(name.trim())) {
+			return new Compression(new Codec.Gzip(level < 0 ? Deflater.DEFAULT_COMPRESSION : level), threshold);
+		}
+		if ("none".equalsIgnoreCase(name.trim()) || "false".equalsIgnoreCase(name.trim())) return NONE;
+		// the level is part of the codec instance
+		if ("deflate".equalsIgnoreCase(name.trim())) return new Compression(new Codec.Deflate(level < 0 ? Deflater.BEST_SPEED : level), threshold);
+		Codec codec = Coder.getCodec(name.trim());
+		return codec == null ? null : new Compression(codec, threshold);
+	}
+
+	public String getName() {
+		return codec == null ? "none" : codec.getName();
+	}
+
+	/**
+	 * @return the codec, null if nothing gets compressed
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * serializes the value with Java serialization and compresses it.
+	 */
+	public byte[] compress(Object val) throws IOException {
+		// what was always done, straight into GZIP
+		if (codec instanceof Codec.Gzip && threshold == 0) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(((Codec.Gzip) codec).toStream(baos));
+			oos.writeObject(val);
+			oos.close();
+			return baos.toByteArray();
+		}
+
+		byte[] raw = Coder.toObjectStream(val);
+		byte[] compressed = encode(raw);
+		if (compressed == null) return raw;
+		return codec instanceof Codec.Gzip ? compressed : Coder.withHeader(codec, compressed);
+	}
+
+	/**
+	 * compresses the data with the codec, without any header.
+	 *
+	 * @return the compressed data or null if compressing the data is not worth it, because it is
+	 *         smaller than the threshold or does not get smaller
+	 */
+	public byte[] encode(byte[] raw) throws IOException {
+		if (codec == null || raw.length < threshold) return null;
+
+		// incompressible data is detected on a sample, from the middle, the start is the class description
+		if (raw.length >= SAMPLE_SIZE * 4) {
+			int offset = (raw.length - SAMPLE_SIZE) / 2;
+			if (codec.compress(raw, offset, SAMPLE_SIZE).length > SAMPLE_SIZE * MIN_RATIO) return null;
+		}
+		byte[] compressed = codec.compress(raw, 0, raw.length);
+		if (compressed.length > raw.length * MIN_RATIO) return null;
+		return compressed;
+	}
+}
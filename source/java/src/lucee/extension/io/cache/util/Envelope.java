@@ -0,0 +1,87 @@
+package lucee.extension.io.cache.util;
+
+import java.io.IOException;
+
+/**
+ * Self describing envelope for serialized values.
+ * <p>
+ * Untagged values have to be recognized by trying the formats one after the other (GZIP, the codec
+ * header, compact, BSON, Java serialization and at the end a plain string), what costs a failed BSON
+ * parse for every string or number read. A value in an envelope says what it is, the reader goes
+ * straight to the right decoder. The envelope is 4 bytes:
+ *
+ * <pre>
+ * 0xC1 | type | codec | 0xF0 + version
+ * </pre>
+ *
+ * 0xC1 is never part of UTF-8, so a string cannot start with it, and the last byte cannot be the
+ * high byte of the length of a BSON document (a byte array is never bigger than 2GB), so an
+ * envelope is never mistaken for an untagged value. The codec is the id of the {@link Codec} the
+ * payload is compressed with, 0 for an uncompressed payload.
+ */
+public class Envelope {
+
+	public static final byte TYPE_STRING = 1;
+	public static final byte TYPE_JAVA = 2;
+	public static final byte TYPE_BSON = 3;
+	public static final byte TYPE_COMPACT = 4;
+
+	public static final byte NO_CODEC = 0;
+
+	public static final int VERSION = 1;
+
+	private static final byte MAGIC = (byte) 0xC1;
+	private static final byte VERSION_BYTE = (byte) (0xF0 + VERSION);
+	static final int LENGTH = 4;
+
+	/**
+	 * wraps the payload, compressed if the compression says it is worth it.
+	 */
+	public static byte[] wrap(byte type, byte[] payload, Compression compression) throws IOException {
+		byte codec = NO_CODEC;
+		byte[] compressed = compression == null ? null : compression.encode(payload);
+		if (compressed != null) {
+			codec = compression.getCodec().getId();
+			payload = compressed;
+		}
+		byte[] data = new byte[payload.length + LENGTH];
+		data[0] = MAGIC;
+		data[1] = type;
+		data[2] = codec;
+		data[3] = VERSION_BYTE;
+		System.arraycopy(payload, 0, data, LENGTH, payload.length);
+		return data;
+	}
+
+	public static boolean isEnvelope(byte[] data) {
+		// types are below 0x80, the headers of the codecs (0xC1 0xFE) and of the compact format (0xC1 0xFD) are not
+		return data != null && data.length >= LENGTH && data[0] == MAGIC && data[1] >= 0 && data[3] == VERSION_BYTE;
+	}
+
+	/**
+	 * @return the type of the value, the envelope has to be checked with {@link #isEnvelope(byte[])}
+	 *         before
+	 */
+	public static byte getType(byte[] data) {
+		return data[1];
+	}
+
+	static boolean isUncompressed(byte[] data) {
+		return data[2] == NO_CODEC;
+	}
+
+	/**
+	 * @return the payload, decompressed
+	 * @throws IOException if the codec is not available or the payload is not valid for it
+	 */
+	public static byte[] unwrap(byte[] data) throws IOException {
+		if (data[2] == NO_CODEC) {
+			byte[] payload = new byte[data.length - LENGTH];
+			System.arraycopy(data, LENGTH, payload, 0, payload.length);
+			return payload;
+		}
+		Codec codec = Coder.getCodec(data[2]);
+		if (codec == null) throw new IOException("the value was compressed with a codec [id:" + data[2] + "] that is not available");
+		return codec.decompress(data, LENGTH, data.length - LENGTH);
+	}
+}
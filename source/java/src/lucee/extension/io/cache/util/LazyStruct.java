@@ -0,0 +1,753 @@
+package lucee.extension.io.cache.util;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.bson.BsonType;
+import org.bson.types.Decimal128;
+
+import lucee.loader.engine.CFMLEngine;
+import lucee.runtime.PageContext;
+import lucee.runtime.dump.DumpData;
+import lucee.runtime.dump.DumpProperties;
+import lucee.runtime.exp.PageException;
+import lucee.runtime.type.Array;
+import lucee.runtime.type.Collection;
+import lucee.runtime.type.Struct;
+import lucee.runtime.type.dt.DateTime;
+
+/**
+ * Struct backed by the BSON document it was stored as, a member is only decoded when it is read.
+ * <p>
+ * The first read indexes the members of the document (name, type and position, no value is
+ * decoded), a member is decoded the first time it is read and a nested struct becomes a lazy struct
+ * itself, so reading a few members of a big struct only costs the members read. A change, and
+ * everything that needs all of the struct anyway (dump, cast, the {@link Map} views ...), decodes
+ * all members into a regular struct, from then on that struct does everything.
+ * <p>
+ * The data is never changed, lazy structs of the same value (near cache copies, duplicates) share
+ * it, the index and the members nobody can change (strings, numbers, booleans, dates) once decoded,
+ * so a further lazy struct of the same value costs nothing until it is read. Everything else read
+ * from it (nested structs, arrays, binaries) is decoded for every lazy struct, as it can be changed.
+ */
+public class LazyStruct implements Struct {
+
+	private static final long serialVersionUID = 6513794208154393462L;
+
+	private static final byte END = 0x00;
+	private static final byte DOUBLE = 0x01;
+	private static final byte STRING = 0x02;
+	private static final byte DOCUMENT = 0x03;
+	private static final byte ARRAY = 0x04;
+	private static final byte BINARY = 0x05;
+	private static final byte BOOLEAN = 0x08;
+	private static final byte DATE_TIME = 0x09;
+	private static final byte NULL = 0x0A;
+	private static final byte INT32 = 0x10;
+	private static final byte INT64 = 0x12;
+	private static final byte DECIMAL128 = 0x13;
+	private static final byte OLD_BINARY = 0x02;
+
+	private final Index idx;
+	private final transient CFMLEngine engine;
+
+	// the members read, null until the first read
+	private Object[] values;
+	private boolean[] decoded;
+	// a member that can be changed (struct, array, date, binary ...) was read
+	private boolean escaped;
+
+	// all members decoded, set with the first change
+	private volatile Struct struct;
+
+	private LazyStruct(Index idx) {
+		this.idx = idx;
+		this.engine = idx.engine;
+	}
+
+	/**
+	 * @param data BSON document
+	 * @param offset position of the document in data
+	 * @return a lazy struct or null if data is not a BSON document or it is an IKStorageValue, the
+	 *         members of the document are checked, nested documents are checked when read
+	 */
+	public static LazyStruct getInstance(byte[] data, int offset, CFMLEngine engine) {
+		Index idx = new Index(data, offset, engine);
+		try {
+			idx.build();
+		}
+		catch (IOException e) {
+			return null;
+		}
+		if (idx.names.length > 0 && idx.types[0] == INT64 && BSON.IK_STORAGEVALUE_KEY.equals(idx.names[0].getString())) return null;
+		return new LazyStruct(idx);
+	}
+
+	/**
+	 * @return the index of the member or -1 if there is none
+	 */
+	private int indexOf(Key key) {
+		init();
+		Integer i = idx.map.get(key);
+		return i == null ? -1 : i.intValue();
+	}
+
+	private void init() {
+		try {
+			idx.build();
+		}
+		catch (IOException e) {
+			throw engine.getExceptionUtil().createPageRuntimeException(engine.getCastUtil().toPageException(e));
+		}
+	}
+
+	private synchronized Object value(int i) throws PageException {
+		if (values == null) {
+			values = new Object[idx.names.length];
+			decoded = new boolean[idx.names.length];
+		}
+		if (!decoded[i]) {
+			Object val;
+			try {
+				val = idx.member(i);
+			}
+			catch (IOException e) {
+				throw engine.getCastUtil().toPageException(e);
+			}
+			if (!isImmutable(val)) escaped = true;
+			values[i] = val;
+			decoded[i] = true;
+		}
+		return values[i];
+	}
+
+	private Object valueEL(int i) {
+		try {
+			return value(i);
+		}
+		catch (PageException e) {
+			throw engine.getExceptionUtil().createPageRuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return true for values nobody can change, dates included, as no CFML function changes a date, they
+	 *         all return a new one
+	 */
+	public static boolean isImmutable(Object val) {
+		return val == null || val instanceof String || val instanceof Boolean || val instanceof Number || val instanceof Date;
+	}
+
+	/**
+	 * @return the struct with all members decoded, that from now on is used for everything
+	 */
+	private Struct struct() {
+		Struct sct = struct;
+		if (sct != null) return sct;
+		synchronized (this) {
+			if (struct == null) {
+				init();
+				sct = engine.getCreationUtil().createStruct(Struct.TYPE_LINKED);
+				for (int i = 0; i < idx.names.length; i++) {
+					sct.setEL(idx.names[i], valueEL(i));
+				}
+				struct = sct;
+			}
+			return struct;
+		}
+	}
+
+	private Key toKey(Object key) {
+		if (key instanceof Key) return (Key) key;
+		return key == null ? null : engine.getCastUtil().toKey(key, null);
+	}
+
+	/**
+	 * a struct is never written as lazy struct, but as regular struct
+	 */
+	private Object writeReplace() {
+		return struct();
+	}
+
+	@Override
+	public int size() {
+		if (struct != null) return struct.size();
+		init();
+		return idx.map.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public Key[] keys() {
+		if (struct != null) return struct.keys();
+		if (isUnique()) return idx.names.clone();
+		return struct().keys();
+	}
+
+	@Override
+	public Object get(Key key) throws PageException {
+		if (struct != null) return struct.get(key);
+		int i = indexOf(key);
+		if (i == -1) throw engine.getExceptionUtil().createExpressionException("key [" + key.getString() + "] doesn't exist");
+		return value(i);
+	}
+
+	@Override
+	public Object get(String key) throws PageException {
+		return get(engine.getCastUtil().toKey(key));
+	}
+
+	@Override
+	public Object get(Key key, Object defaultValue) {
+		if (struct != null) return struct.get(key, defaultValue);
+		int i = indexOf(key);
+		if (i == -1) return defaultValue;
+		return valueEL(i);
+	}
+
+	@Override
+	public Object get(String key, Object defaultValue) {
+		return get(engine.getCastUtil().toKey(key), defaultValue);
+	}
+
+	@Override
+	public Object get(Object key) {
+		Key k = toKey(key);
+		return k == null ? null : get(k, null);
+	}
+
+	@Override
+	public Object get(PageContext pc, Key key) throws PageException {
+		return get(key);
+	}
+
+	@Override
+	public Object get(PageContext pc, Key key, Object defaultValue) {
+		return get(key, defaultValue);
+	}
+
+	@Override
+	public boolean containsKey(Key key) {
+		if (struct != null) return struct.containsKey(key);
+		return indexOf(key) != -1;
+	}
+
+	@Override
+	public boolean containsKey(String key) {
+		return containsKey(engine.getCastUtil().toKey(key));
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		Key k = toKey(key);
+		return k != null && containsKey(k);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return struct().containsValue(value);
+	}
+
+	@Override
+	public Iterator<Key> keyIterator() {
+		if (struct != null || !isUnique()) return struct().keyIterator();
+		final Key[] names = idx.names;
+		return new Iterator<Key>() {
+			private int i;
+
+			@Override
+			public boolean hasNext() {
+				return i < names.length;
+			}
+
+			@Override
+			public Key next() {
+				if (i >= names.length) throw new NoSuchElementException();
+				return names[i++];
+			}
+		};
+	}
+
+	@Override
+	public Iterator<String> keysAsStringIterator() {
+		final Iterator<Key> it = keyIterator();
+		return new Iterator<String>() {
+
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public String next() {
+				return it.next().getString();
+			}
+		};
+	}
+
+	@Override
+	public Iterator<Object> valueIterator() {
+		if (struct != null || !isUnique()) return struct().valueIterator();
+		final int size = idx.names.length;
+		return new Iterator<Object>() {
+			private int i;
+
+			@Override
+			public boolean hasNext() {
+				return i < size;
+			}
+
+			@Override
+			public Object next() {
+				if (i >= size) throw new NoSuchElementException();
+				return valueEL(i++);
+			}
+		};
+	}
+
+	@Override
+	public Iterator<Entry<Key, Object>> entryIterator() {
+		if (struct != null || !isUnique()) return struct().entryIterator();
+		final Key[] names = idx.names;
+		return new Iterator<Entry<Key, Object>>() {
+			private int i;
+
+			@Override
+			public boolean hasNext() {
+				return i < names.length;
+			}
+
+			@Override
+			public Entry<Key, Object> next() {
+				if (i >= names.length) throw new NoSuchElementException();
+				Key name = names[i];
+				return new AbstractMap.SimpleImmutableEntry<Key, Object>(name, valueEL(i++));
+			}
+		};
+	}
+
+	@Override
+	public Iterator<?> getIterator() {
+		return keysAsStringIterator();
+	}
+
+	/**
+	 * @return true if no name is used more than once, then the index is in the order of the struct
+	 */
+	private boolean isUnique() {
+		init();
+		return idx.map.size() == idx.names.length;
+	}
+
+	@Override
+	public Collection duplicate(boolean deepCopy) {
+		// the data is never changed, a new lazy struct for it is a deep copy, as long as nothing was
+		// changed and no member was read that could have been changed
+		synchronized (this) {
+			if (deepCopy && struct == null && !escaped) return new LazyStruct(idx);
+		}
+		return struct().duplicate(deepCopy);
+	}
+
+	@Override
+	public Object clone() {
+		return duplicate(true);
+	}
+
+	// everything below changes the struct or needs all of it
+
+	@Override
+	public Object set(Key key, Object value) throws PageException {
+		return struct().set(key, value);
+	}
+
+	@Override
+	public Object set(String key, Object value) throws PageException {
+		return struct().set(key, value);
+	}
+
+	@Override
+	public Object setEL(Key key, Object value) {
+		return struct().setEL(key, value);
+	}
+
+	@Override
+	public Object setEL(String key, Object value) {
+		return struct().setEL(key, value);
+	}
+
+	@Override
+	public Object set(PageContext pc, Key key, Object value) throws PageException {
+		return struct().set(pc, key, value);
+	}
+
+	@Override
+	public Object setEL(PageContext pc, Key key, Object value) {
+		return struct().setEL(pc, key, value);
+	}
+
+	@Override
+	public Object put(Object key, Object value) {
+		return struct().put(key, value);
+	}
+
+	@Override
+	public void putAll(Map map) {
+		struct().putAll(map);
+	}
+
+	@Override
+	public Object remove(Key key) throws PageException {
+		return struct().remove(key);
+	}
+
+	@Override
+	public Object removeEL(Key key) {
+		return struct().removeEL(key);
+	}
+
+	@Override
+	public Object remove(Key key, Object defaultValue) {
+		return struct().remove(key, defaultValue);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return struct().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		struct().clear();
+	}
+
+	@Override
+	public Set keySet() {
+		return struct().keySet();
+	}
+
+	@Override
+	public java.util.Collection values() {
+		return struct().values();
+	}
+
+	@Override
+	public Set entrySet() {
+		return struct().entrySet();
+	}
+
+	@Override
+	public Object call(PageContext pc, Key methodName, Object[] arguments) throws PageException {
+		return struct().call(pc, methodName, arguments);
+	}
+
+	@Override
+	public Object callWithNamedValues(PageContext pc, Key methodName, Struct args) throws PageException {
+		return struct().callWithNamedValues(pc, methodName, args);
+	}
+
+	@Override
+	public DumpData toDumpData(PageContext pageContext, int maxlevel, DumpProperties properties) {
+		return struct().toDumpData(pageContext, maxlevel, properties);
+	}
+
+	@Override
+	public String castToString() throws PageException {
+		return struct().castToString();
+	}
+
+	@Override
+	public String castToString(String defaultValue) {
+		return struct().castToString(defaultValue);
+	}
+
+	@Override
+	public boolean castToBooleanValue() throws PageException {
+		return struct().castToBooleanValue();
+	}
+
+	@Override
+	public Boolean castToBoolean(Boolean defaultValue) {
+		return struct().castToBoolean(defaultValue);
+	}
+
+	@Override
+	public double castToDoubleValue() throws PageException {
+		return struct().castToDoubleValue();
+	}
+
+	@Override
+	public double castToDoubleValue(double defaultValue) {
+		return struct().castToDoubleValue(defaultValue);
+	}
+
+	@Override
+	public DateTime castToDateTime() throws PageException {
+		return struct().castToDateTime();
+	}
+
+	@Override
+	public DateTime castToDateTime(DateTime defaultValue) {
+		return struct().castToDateTime(defaultValue);
+	}
+
+	@Override
+	public int compareTo(String str) throws PageException {
+		return struct().compareTo(str);
+	}
+
+	@Override
+	public int compareTo(boolean b) throws PageException {
+		return struct().compareTo(b);
+	}
+
+	@Override
+	public int compareTo(double d) throws PageException {
+		return struct().compareTo(d);
+	}
+
+	@Override
+	public int compareTo(DateTime dt) throws PageException {
+		return struct().compareTo(dt);
+	}
+
+	/**
+	 * the members of a document, shared by all lazy structs of the same document, it does not change
+	 * once it is built
+	 */
+	private static final class Index {
+
+		private static final Object NULL_MEMBER = new Object();
+
+		private final byte[] data;
+		private final int offset;
+		private final CFMLEngine engine;
+
+		private Key[] names;
+		private byte[] types;
+		private int[] positions;
+		private Map<Key, Integer> map;
+		// the members nobody can change (strings, numbers, booleans, dates) once decoded and the indexes of the
+		// nested documents, set without lock, a race only decodes a member twice
+		private Object[] members;
+
+		private Index(byte[] data, int offset, CFMLEngine engine) {
+			this.data = data;
+			this.offset = offset;
+			this.engine = engine;
+		}
+
+		synchronized void build() throws IOException {
+			if (names != null) return;
+			if (offset < 0 || offset + 5 > data.length) throw invalid();
+			int end = offset + readInt(offset);
+			if (end - offset < 5 || end > data.length || data[end - 1] != END) throw invalid();
+			int count = 0, capacity = 16;
+			Key[] names = new Key[capacity];
+			byte[] types = new byte[capacity];
+			int[] positions = new int[capacity];
+			int pos = offset + 4;
+			byte type;
+			while ((type = next(pos++, end)) != END) {
+				int nameEnd = cstringEnd(pos, end);
+				if (count == capacity) {
+					capacity *= 2;
+					names = Arrays.copyOf(names, capacity);
+					types = Arrays.copyOf(types, capacity);
+					positions = Arrays.copyOf(positions, capacity);
+				}
+				names[count] = engine.getCastUtil().toKey(new String(data, pos, nameEnd - pos, Coder.UTF8));
+				types[count] = type;
+				positions[count] = nameEnd + 1;
+				pos = skip(type, nameEnd + 1, end);
+				count++;
+			}
+			if (pos != end) throw invalid();
+
+			Map<Key, Integer> index = new HashMap<>(Math.max(16, count * 2));
+			for (int i = 0; i < count; i++) {
+				// like in a struct, the last member with the same name wins
+				index.put(names[i], i);
+			}
+			this.types = Arrays.copyOf(types, count);
+			this.positions = Arrays.copyOf(positions, count);
+			this.members = new Object[count];
+			this.map = index;
+			this.names = Arrays.copyOf(names, count);
+		}
+
+		/**
+		 * @return the member, decoded for every caller unless nobody can change it
+		 */
+		private Object member(int i) throws IOException {
+			byte type = types[i];
+			Object m = members[i];
+			if (m == null) {
+				if (type == DOCUMENT) m = new Index(data, positions[i], engine);
+				else {
+					Object val = decode(type, positions[i]);
+					if (!isImmutable(val)) return val;
+					m = val == null ? NULL_MEMBER : val;
+				}
+				members[i] = m;
+			}
+			if (m instanceof Index) return new LazyStruct((Index) m);
+			return m == NULL_MEMBER ? null : m;
+		}
+
+		/**
+		 * @return the position after the value
+		 */
+		private int skip(byte type, int pos, int end) throws IOException {
+			int next;
+			switch (type) {
+			case 0x06: // undefined
+			case NULL:
+			case (byte) 0xFF: // min key
+			case 0x7F: // max key
+				next = pos;
+				break;
+			case BOOLEAN:
+				next = pos + 1;
+				break;
+			case INT32:
+				next = pos + 4;
+				break;
+			case DOUBLE:
+			case DATE_TIME:
+			case 0x11: // timestamp
+			case INT64:
+				next = pos + 8;
+				break;
+			case 0x07: // object id
+				next = pos + 12;
+				break;
+			case DECIMAL128:
+				next = pos + 16;
+				break;
+			case STRING:
+			case 0x0D: // javascript
+			case 0x0E: // symbol
+				next = pos + 4 + checkLength(pos, end, 1);
+				break;
+			case BINARY:
+				next = pos + 5 + checkLength(pos, end, 0);
+				break;
+			case DOCUMENT:
+			case ARRAY:
+			case 0x0F: // javascript with scope
+				next = pos + checkLength(pos, end, 5);
+				break;
+			case 0x0C: // db pointer
+				next = pos + 4 + checkLength(pos, end, 1) + 12;
+				break;
+			case 0x0B: // regular expression
+				next = cstringEnd(cstringEnd(pos, end) + 1, end) + 1;
+				break;
+			default:
+				throw invalid();
+			}
+			if (next > end) throw invalid();
+			return next;
+		}
+
+		/**
+		 * @return the type of the next member, a document cannot end without the end marker
+		 */
+		private byte next(int pos, int end) throws IOException {
+			if (pos >= end) throw invalid();
+			return data[pos];
+		}
+
+		private int checkLength(int pos, int end, int min) throws IOException {
+			if (pos + 4 > end) throw invalid();
+			int len = readInt(pos);
+			if (len < min || len > end - pos) throw invalid();
+			return len;
+		}
+
+		private int cstringEnd(int pos, int end) throws IOException {
+			for (int i = pos; i < end; i++) {
+				if (data[i] == END) return i;
+			}
+			throw invalid();
+		}
+
+		private Object decode(byte type, int pos) throws IOException {
+			switch (type) {
+			case DOUBLE:
+				return Double.longBitsToDouble(readLong(pos));
+			case STRING:
+				return new String(data, pos + 4, readInt(pos) - 1, Coder.UTF8);
+			case DOCUMENT:
+				return new LazyStruct(new Index(data, pos, engine));
+			case ARRAY:
+				return array(pos);
+			case BINARY:
+				int len = readInt(pos);
+				int start = pos + 5;
+				if (data[pos + 4] == OLD_BINARY) {
+					start += 4;
+					len -= 4;
+				}
+				return BSON.toObject(Arrays.copyOfRange(data, start, start + len));
+			case BOOLEAN:
+				return data[pos] != 0;
+			case DATE_TIME:
+				return new Date(readLong(pos));
+			case NULL:
+				return null;
+			case INT32:
+				return readInt(pos);
+			case INT64:
+				return readLong(pos);
+			case DECIMAL128:
+				Decimal128 dec = Decimal128.fromIEEE754BIDEncoding(readLong(pos + 8), readLong(pos));
+				if (dec.isNaN() || dec.isInfinite()) throw new IOException("BSON decimal [" + dec + "] cannot be converted to a number");
+				return dec.bigDecimalValue();
+			}
+			BsonType bt = BsonType.findByValue(type);
+			throw new IOException("BSON type [" + (bt == null ? Byte.toString(type) : bt.name()) + "] is not supported yet!");
+		}
+
+		/**
+		 * an array is a document with the indexes as names, the structs in it are lazy
+		 */
+		private Array array(int pos) throws IOException {
+			Array arr = engine.getCreationUtil().createArray();
+			int end = pos + readInt(pos);
+			pos += 4;
+			byte type;
+			while ((type = next(pos++, end)) != END) {
+				int valuePos = cstringEnd(pos, end) + 1;
+				arr.appendEL(decode(type, valuePos));
+				pos = skip(type, valuePos, end);
+			}
+			return arr;
+		}
+
+		private int readInt(int pos) {
+			return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+		}
+
+		private long readLong(int pos) {
+			return (readInt(pos) & 0xFFFFFFFFL) | ((long) readInt(pos + 4)) << 32;
+		}
+
+		private static IOException invalid() {
+			return new IOException("the value is not a valid BSON document");
+		}
+	}
+}